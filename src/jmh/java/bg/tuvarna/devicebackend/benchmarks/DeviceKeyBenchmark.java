@@ -0,0 +1,202 @@
+package bg.tuvarna.devicebackend.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the devices schema before and after {@code DeviceKeyMigration}: {@code serial} keys devices by
+ * their {@code serial_number} and renovations by {@code device_serial_number}, {@code id} keys both by the
+ * numeric device id, with the serial number kept as a unique column. Each variant gets its own copy of the
+ * tables, with {@value #RENOVATIONS_PER_DEVICE} renovations per device, and is measured on the lookup by
+ * primary key and on the devices to renovations join, for one device and for a page of
+ * {@value #PAGE_SIZE} devices.
+ * <p>
+ * Runs on an in-memory H2 database by default. To measure PostgreSQL, which is what the migration targets,
+ * build the benchmark jar with {@code ./gradlew jmhJar} and pass a connection URL:
+ * {@code java -jar build/libs/device-backend-*-jmh.jar DeviceKeyBenchmark
+ * -p url=jdbc:postgresql://localhost:5432/bench?user=...&password=...}.
+ * The benchmark only touches its own {@code bench_devices} and {@code bench_renovations} tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceKeyBenchmark {
+    private static final int RENOVATIONS_PER_DEVICE = 2;
+    private static final int PAGE_SIZE = 50;
+    private static final int INSERT_BATCH = 1_000;
+
+    @Param({"jdbc:h2:mem:device-keys;DB_CLOSE_DELAY=-1"})
+    private String url;
+
+    @Param({"serial", "id"})
+    private String key;
+
+    @Param({"100000"})
+    private int deviceCount;
+
+    private String[] serials;
+    private Connection connection;
+    private PreparedStatement findByKey;
+    private PreparedStatement renovationsOfDevice;
+    private PreparedStatement renovationsOfPage;
+    private int[] sample;
+    private int cursor;
+
+    @Setup
+    public void setUp() throws SQLException {
+        // Serials spread over a handful of prefixes, like real product lines, so they don't sort in id order.
+        serials = new String[deviceCount];
+        for (int device = 0; device < deviceCount; device++) {
+            serials[device] = "P" + (device % 20) + "X" + String.format("%08d", device);
+        }
+
+        connection = DriverManager.getConnection(url);
+        createTables();
+        fill();
+
+        String keyColumn = byId() ? "id" : "serial_number";
+        String foreignKey = byId() ? "device_id" : "device_serial_number";
+        findByKey = connection.prepareStatement(
+                "SELECT serial_number, purchase_date FROM bench_devices WHERE " + keyColumn + " = ?");
+        renovationsOfDevice = connection.prepareStatement(
+                "SELECT d.serial_number, r.description, r.renovation_date FROM bench_devices d " +
+                        "JOIN bench_renovations r ON r." + foreignKey + " = d." + keyColumn + " WHERE d." + keyColumn + " = ?");
+        renovationsOfPage = connection.prepareStatement(
+                "SELECT d.serial_number, r.description, r.renovation_date FROM bench_devices d " +
+                        "JOIN bench_renovations r ON r." + foreignKey + " = d." + keyColumn +
+                        " WHERE d." + keyColumn + " >= ? ORDER BY d." + keyColumn + " FETCH FIRST " +
+                        PAGE_SIZE * RENOVATIONS_PER_DEVICE + " ROWS ONLY");
+
+        Random random = new Random(42);
+        sample = new int[4096];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = random.nextInt(deviceCount);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS bench_renovations");
+            statement.execute("DROP TABLE IF EXISTS bench_devices");
+        }
+        connection.close();
+    }
+
+    @Benchmark
+    public int findByKey() throws SQLException {
+        return consume(bindKey(findByKey, 1, nextDevice()));
+    }
+
+    @Benchmark
+    public int renovationsOfDevice() throws SQLException {
+        return consume(bindKey(renovationsOfDevice, 1, nextDevice()));
+    }
+
+    @Benchmark
+    public int renovationsOfPage() throws SQLException {
+        return consume(bindKey(renovationsOfPage, 1, nextDevice()));
+    }
+
+    private boolean byId() {
+        return key.equals("id");
+    }
+
+    private int nextDevice() {
+        cursor = (cursor + 1) & (sample.length - 1);
+        return sample[cursor];
+    }
+
+    private PreparedStatement bindKey(PreparedStatement statement, int index, int device) throws SQLException {
+        if (byId()) {
+            statement.setLong(index, device + 1L);
+        } else {
+            statement.setString(index, serials[device]);
+        }
+        return statement;
+    }
+
+    private static int consume(PreparedStatement statement) throws SQLException {
+        int rows = 0;
+        try (ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                rows += resultSet.getString(1).length();
+            }
+        }
+        return rows;
+    }
+
+    private void createTables() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE IF EXISTS bench_renovations");
+            statement.execute("DROP TABLE IF EXISTS bench_devices");
+            if (byId()) {
+                statement.execute("CREATE TABLE bench_devices (id bigint PRIMARY KEY, " +
+                        "serial_number varchar(255) NOT NULL UNIQUE, purchase_date date)");
+                statement.execute("CREATE TABLE bench_renovations (id bigint PRIMARY KEY, " +
+                        "device_id bigint NOT NULL REFERENCES bench_devices (id), " +
+                        "description varchar(255), renovation_date date)");
+                statement.execute("CREATE INDEX bench_renovations_device_idx ON bench_renovations (device_id)");
+            } else {
+                statement.execute("CREATE TABLE bench_devices (serial_number varchar(255) PRIMARY KEY, purchase_date date)");
+                statement.execute("CREATE TABLE bench_renovations (id bigint PRIMARY KEY, " +
+                        "device_serial_number varchar(255) NOT NULL REFERENCES bench_devices (serial_number), " +
+                        "description varchar(255), renovation_date date)");
+                statement.execute("CREATE INDEX bench_renovations_device_idx ON bench_renovations (device_serial_number)");
+            }
+        }
+    }
+
+    private void fill() throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        Date date = Date.valueOf("2024-01-15");
+
+        String insertDevice = byId()
+                ? "INSERT INTO bench_devices (id, serial_number, purchase_date) VALUES (?, ?, ?)"
+                : "INSERT INTO bench_devices (serial_number, purchase_date) VALUES (?, ?)";
+        try (PreparedStatement devices = connection.prepareStatement(insertDevice)) {
+            for (int device = 0; device < deviceCount; device++) {
+                int column = 1;
+                if (byId()) {
+                    devices.setLong(column++, device + 1L);
+                }
+                devices.setString(column++, serials[device]);
+                devices.setDate(column, date);
+                devices.addBatch();
+                if ((device + 1) % INSERT_BATCH == 0) {
+                    devices.executeBatch();
+                }
+            }
+            devices.executeBatch();
+        }
+
+        String insertRenovation = "INSERT INTO bench_renovations (id, " + (byId() ? "device_id" : "device_serial_number") +
+                ", description, renovation_date) VALUES (?, ?, ?, ?)";
+        try (PreparedStatement renovations = connection.prepareStatement(insertRenovation)) {
+            long id = 0;
+            for (int device = 0; device < deviceCount; device++) {
+                for (int i = 0; i < RENOVATIONS_PER_DEVICE; i++) {
+                    renovations.setLong(1, ++id);
+                    bindKey(renovations, 2, device);
+                    renovations.setString(3, "Replaced part " + i);
+                    renovations.setDate(4, date);
+                    renovations.addBatch();
+                }
+                if ((device + 1) % INSERT_BATCH == 0) {
+                    renovations.executeBatch();
+                }
+            }
+            renovations.executeBatch();
+        }
+
+        connection.commit();
+        connection.setAutoCommit(autoCommit);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ANALYZE");
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package bg.tuvarna.devicebackend.benchmarks;
+
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.utils.SerialRangeIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares serial-to-passport resolution through {@link SerialRangeIndex} with the
+ * previous algorithm: every passport whose prefix matches the serial
+ * ({@code :serialId LIKE CONCAT(p.serialPrefix, '%')}) followed by split/parseInt per candidate.
+ * The legacy path is measured in memory only, so it is a lower bound for the real query,
+ * which additionally pays for the database round trip and a full table scan.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PassportLookupBenchmark {
+    private static final int RANGE_SIZE = 1_000;
+
+    @Param({"10000", "50000"})
+    private int passportCount;
+
+    private List<Passport> passports;
+    private SerialRangeIndex index;
+    private String[] serials;
+    private List<String> serialList;
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        passports = new ArrayList<>(passportCount);
+        // Prefixes share leading characters ("P1", "P12", ...) like real product lines do.
+        int prefixes = Math.max(1, passportCount / 20);
+        for (int i = 0; i < passportCount; i++) {
+            int prefix = i % prefixes;
+            int slot = i / prefixes;
+            passports.add(Passport.builder()
+                    .id((long) i)
+                    .serialPrefix("P" + prefix + "X")
+                    .fromSerialNumber(slot * RANGE_SIZE)
+                    .toSerialNumber(slot * RANGE_SIZE + RANGE_SIZE - 1)
+                    .warrantyMonths(24)
+                    .build());
+        }
+        index = SerialRangeIndex.of(passports);
+
+        Random random = new Random(42);
+        serials = new String[4096];
+        for (int i = 0; i < serials.length; i++) {
+            Passport passport = passports.get(random.nextInt(passports.size()));
+            serials[i] = passport.getSerialPrefix() + (passport.getFromSerialNumber() + random.nextInt(RANGE_SIZE));
+        }
+        serialList = List.of(serials);
+    }
+
+    private String nextSerial() {
+        cursor = (cursor + 1) & (serials.length - 1);
+        return serials[cursor];
+    }
+
+    @Benchmark
+    public Passport index() {
+        return index.find(nextSerial());
+    }
+
+    /**
+     * Resolves the whole serial sample in one call, as {@code POST /passports/resolve} does.
+     */
+    @Benchmark
+    @OperationsPerInvocation(4096)
+    public Passport[] indexBatch() {
+        return index.findAll(serialList);
+    }
+
+    @Benchmark
+    public Passport legacyScan() {
+        String serialId = nextSerial();
+        for (Passport passport : passports) {
+            if (!serialId.startsWith(passport.getSerialPrefix())) {
+                continue;
+            }
+            int serialNumber;
+            try {
+                serialNumber = Integer.parseInt(serialId.split(passport.getSerialPrefix())[1]);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (serialNumber >= passport.getFromSerialNumber() && serialNumber <= passport.getToSerialNumber()) {
+                return passport;
+            }
+        }
+        return null;
+    }
+}
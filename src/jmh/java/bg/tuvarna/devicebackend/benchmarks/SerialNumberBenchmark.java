@@ -0,0 +1,65 @@
+package bg.tuvarna.devicebackend.benchmarks;
+
+import bg.tuvarna.devicebackend.utils.SerialNumber;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link SerialNumber} parsing with the previous approach of
+ * {@code Integer.parseInt(serial.split(prefix)[1])}, which compiles a regex, allocates
+ * the split array and substrings, and throws on malformed input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SerialNumberBenchmark {
+    private static final String PREFIX = "ABC-X";
+
+    private String valid;
+    private String malformed;
+
+    @Setup
+    public void setUp() {
+        valid = PREFIX + "00150";
+        malformed = PREFIX + "15O";
+    }
+
+    @Benchmark
+    public int parseValid() {
+        return SerialNumber.parseNumber(valid, PREFIX.length());
+    }
+
+    @Benchmark
+    public int legacyParseValid() {
+        return legacyParse(valid);
+    }
+
+    @Benchmark
+    public int parseMalformed() {
+        return SerialNumber.parseNumber(malformed, PREFIX.length());
+    }
+
+    @Benchmark
+    public int legacyParseMalformed() {
+        return legacyParse(malformed);
+    }
+
+    @Benchmark
+    public SerialNumber parseFull() {
+        return SerialNumber.parse(valid);
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return SerialNumber.isValid(valid);
+    }
+
+    private static int legacyParse(String serial) {
+        try {
+            return Integer.parseInt(serial.split(PREFIX)[1]);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package bg.tuvarna.devicebackend.annotations;
+
+import bg.tuvarna.devicebackend.validators.ValidSerialNumberValidator;
+import jakarta.validation.Constraint;
+import jakarta.validation.Payload;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+@Constraint(validatedBy = ValidSerialNumberValidator.class)
+public @interface ValidSerialNumber {
+    String message() default "Serial number not valid";
+    Class<?>[] groups() default {};
+    Class<? extends Payload>[] payload() default {};
+}
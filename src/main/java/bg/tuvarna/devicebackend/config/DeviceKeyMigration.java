@@ -0,0 +1,238 @@
+package bg.tuvarna.devicebackend.config;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.orm.jpa.EntityManagerFactoryDependsOnPostProcessor;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Moves an existing PostgreSQL {@code devices} table from its {@code serial_number} primary key to
+ * the numeric {@code id} key, and re-points {@code renovations} from {@code device_serial_number}
+ * to {@code device_id}. Does nothing on other databases, on a fresh database (Hibernate creates the
+ * new schema) or once the key has moved, so it is safe to run on each startup.
+ * <p>
+ * It runs before Hibernate's schema update and keeps the tables usable by instances still running
+ * the old version: the new columns are filled in chunks of {@value #CHUNK_SIZE} rows, each in its
+ * own short transaction, indexes are built concurrently, constraints are validated without blocking
+ * writes, and the keys are swapped in one brief transaction at the end. A trigger keeps both
+ * renovation columns filled, so {@code renovations.device_serial_number} can be dropped once no old
+ * instance is left.
+ */
+@Component
+@RequiredArgsConstructor
+public class DeviceKeyMigration {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceKeyMigration.class);
+    private static final int CHUNK_SIZE = 10_000;
+    private static final int CUTOVER_ATTEMPTS = 5;
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Makes Hibernate wait for the migration, the way Boot orders Flyway before JPA.
+     */
+    @Component
+    static class JpaDependency extends EntityManagerFactoryDependsOnPostProcessor {
+        JpaDependency() {
+            super(DeviceKeyMigration.class);
+        }
+    }
+
+    @PostConstruct
+    void migrate() {
+        if (!isPostgres() || !needsMigration()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        logger.info("Migrating devices to a numeric primary key");
+        addColumns();
+        long devices = backfillDeviceIds();
+        long renovations = backfillRenovationDeviceIds();
+        createIndexConcurrently("devices_id_key", "CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS devices_id_key ON public.devices (id)");
+        createIndexConcurrently("devices_serial_number_key",
+                "CREATE UNIQUE INDEX CONCURRENTLY IF NOT EXISTS devices_serial_number_key ON public.devices (serial_number)");
+        createIndexConcurrently("renovations_device_id_idx",
+                "CREATE INDEX CONCURRENTLY IF NOT EXISTS renovations_device_id_idx ON public.renovations (device_id)");
+        setIdNotNull();
+        swapKeys();
+        jdbcTemplate.execute("ALTER TABLE public.renovations VALIDATE CONSTRAINT renovations_device_id_fkey");
+        logger.info("Migrated {} devices and {} renovations to numeric device keys in {} ms",
+                devices, renovations, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private boolean isPostgres() {
+        String product = jdbcTemplate.execute(
+                (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName()
+        );
+        return "PostgreSQL".equalsIgnoreCase(product);
+    }
+
+    private boolean needsMigration() {
+        List<String> primaryKey = jdbcTemplate.queryForList("""
+                SELECT a.attname FROM pg_index i
+                JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = ANY (i.indkey)
+                WHERE i.indrelid = to_regclass('public.devices') AND i.indisprimary
+                """, String.class);
+        return primaryKey.equals(List.of("serial_number"));
+    }
+
+    private void addColumns() {
+        jdbcTemplate.execute("CREATE SEQUENCE IF NOT EXISTS public.devices_id_seq");
+        jdbcTemplate.execute("ALTER TABLE public.devices ADD COLUMN IF NOT EXISTS id bigint");
+        // Set after adding the column, so only new rows use it and the table isn't rewritten.
+        jdbcTemplate.execute("ALTER TABLE public.devices ALTER COLUMN id SET DEFAULT nextval('public.devices_id_seq')");
+        jdbcTemplate.execute("ALTER SEQUENCE public.devices_id_seq OWNED BY public.devices.id");
+
+        jdbcTemplate.execute("ALTER TABLE public.renovations ADD COLUMN IF NOT EXISTS device_id bigint");
+        jdbcTemplate.execute("ALTER TABLE public.renovations ALTER COLUMN device_serial_number DROP NOT NULL");
+        jdbcTemplate.execute("""
+                CREATE OR REPLACE FUNCTION public.renovations_sync_device_key() RETURNS trigger AS $$
+                BEGIN
+                    IF NEW.device_id IS NULL AND NEW.device_serial_number IS NOT NULL THEN
+                        SELECT id INTO NEW.device_id FROM public.devices WHERE serial_number = NEW.device_serial_number;
+                    ELSIF NEW.device_serial_number IS NULL AND NEW.device_id IS NOT NULL THEN
+                        SELECT serial_number INTO NEW.device_serial_number FROM public.devices WHERE id = NEW.device_id;
+                    END IF;
+                    RETURN NEW;
+                END
+                $$ LANGUAGE plpgsql
+                """);
+        jdbcTemplate.execute("DROP TRIGGER IF EXISTS renovations_sync_device_key ON public.renovations");
+        jdbcTemplate.execute("""
+                CREATE TRIGGER renovations_sync_device_key BEFORE INSERT OR UPDATE ON public.renovations
+                FOR EACH ROW EXECUTE FUNCTION public.renovations_sync_device_key()
+                """);
+    }
+
+    /**
+     * Numbers the existing devices in serial number order, walking the old primary key index.
+     */
+    private long backfillDeviceIds() {
+        long updated = 0;
+        String last = "";
+        while (true) {
+            List<String> upper = jdbcTemplate.queryForList(
+                    "SELECT serial_number FROM public.devices WHERE serial_number > ? ORDER BY serial_number OFFSET ? LIMIT 1",
+                    String.class, last, CHUNK_SIZE - 1);
+            if (upper.isEmpty()) {
+                return updated + jdbcTemplate.update(
+                        "UPDATE public.devices SET id = nextval('public.devices_id_seq') WHERE serial_number > ? AND id IS NULL",
+                        last);
+            }
+            updated += jdbcTemplate.update(
+                    "UPDATE public.devices SET id = nextval('public.devices_id_seq') " +
+                            "WHERE serial_number > ? AND serial_number <= ? AND id IS NULL",
+                    last, upper.get(0));
+            last = upper.get(0);
+        }
+    }
+
+    private long backfillRenovationDeviceIds() {
+        Long maxId = jdbcTemplate.queryForObject("SELECT max(id) FROM public.renovations", Long.class);
+        long updated = 0;
+        for (long from = 0; maxId != null && from < maxId; from += CHUNK_SIZE) {
+            updated += jdbcTemplate.update("""
+                    UPDATE public.renovations r SET device_id = d.id FROM public.devices d
+                    WHERE d.serial_number = r.device_serial_number AND r.device_id IS NULL AND r.id > ? AND r.id <= ?
+                    """, from, from + CHUNK_SIZE);
+        }
+        return updated;
+    }
+
+    private void createIndexConcurrently(String name, String statement) {
+        // A failed concurrent build leaves an invalid index behind, which IF NOT EXISTS would keep.
+        List<Boolean> valid = jdbcTemplate.queryForList(
+                "SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?)", Boolean.class, "public." + name);
+        if (valid.equals(List.of(false))) {
+            jdbcTemplate.execute("DROP INDEX CONCURRENTLY public." + name);
+        }
+        jdbcTemplate.execute(statement);
+    }
+
+    /**
+     * A validated CHECK lets SET NOT NULL skip its table scan under an exclusive lock,
+     * and validating only blocks schema changes.
+     */
+    private void setIdNotNull() {
+        if (!constraintExists("devices", "devices_id_not_null")) {
+            jdbcTemplate.execute("ALTER TABLE public.devices ADD CONSTRAINT devices_id_not_null CHECK (id IS NOT NULL) NOT VALID");
+        }
+        jdbcTemplate.execute("ALTER TABLE public.devices VALIDATE CONSTRAINT devices_id_not_null");
+        jdbcTemplate.execute("ALTER TABLE public.devices ALTER COLUMN id SET NOT NULL");
+        jdbcTemplate.execute("ALTER TABLE public.devices DROP CONSTRAINT devices_id_not_null");
+    }
+
+    /**
+     * Swaps the primary key and the renovations foreign key in one transaction. Every statement is
+     * catalog-only, but they need an exclusive lock, so a short lock timeout keeps the swap from
+     * queueing traffic behind a long-running query; it is retried instead.
+     */
+    private void swapKeys() {
+        List<String> oldForeignKeys = jdbcTemplate.queryForList("""
+                SELECT conname FROM pg_constraint
+                WHERE conrelid = 'public.renovations'::regclass AND confrelid = 'public.devices'::regclass AND contype = 'f'
+                """, String.class);
+        String oldPrimaryKey = jdbcTemplate.queryForObject(
+                "SELECT conname FROM pg_constraint WHERE conrelid = 'public.devices'::regclass AND contype = 'p'", String.class);
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+                    inTransaction(connection, statement -> {
+                        statement.execute("SET LOCAL lock_timeout = '5s'");
+                        for (String foreignKey : oldForeignKeys) {
+                            statement.execute("ALTER TABLE public.renovations DROP CONSTRAINT \"" + foreignKey + "\"");
+                        }
+                        statement.execute("ALTER TABLE public.devices DROP CONSTRAINT \"" + oldPrimaryKey + "\"");
+                        statement.execute("ALTER TABLE public.devices ADD CONSTRAINT devices_pkey PRIMARY KEY USING INDEX devices_id_key");
+                        statement.execute("ALTER TABLE public.devices ADD CONSTRAINT devices_serial_number_key " +
+                                "UNIQUE USING INDEX devices_serial_number_key");
+                        statement.execute("ALTER TABLE public.renovations ADD CONSTRAINT renovations_device_id_fkey " +
+                                "FOREIGN KEY (device_id) REFERENCES public.devices (id) NOT VALID");
+                    });
+                    return null;
+                });
+                return;
+            } catch (DataAccessException e) {
+                if (attempt == CUTOVER_ATTEMPTS) {
+                    throw e;
+                }
+                logger.warn("Device key swap attempt {} failed, retrying: {}", attempt, e.getMessage());
+            }
+        }
+    }
+
+    private interface StatementWork {
+        void run(Statement statement) throws SQLException;
+    }
+
+    private static void inTransaction(Connection connection, StatementWork work) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            work.run(statement);
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private boolean constraintExists(String table, String name) {
+        return !jdbcTemplate.queryForList(
+                "SELECT 1 FROM pg_constraint WHERE conrelid = to_regclass(?) AND conname = ?",
+                Integer.class, "public." + table, name).isEmpty();
+    }
+}
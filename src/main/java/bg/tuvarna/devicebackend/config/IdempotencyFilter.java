@@ -0,0 +1,240 @@
+package bg.tuvarna.devicebackend.config;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorResponse;
+import bg.tuvarna.devicebackend.utils.IdempotencyStore;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.ContentCachingResponseWrapper;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * Makes the registration endpoints safe to retry. A POST carrying an {@value #HEADER} header has its
+ * response (status, Location, content type and body) stored under that key, scoped to the endpoint
+ * and the caller, and a retry with the same key and body gets the stored response back with an
+ * {@value #REPLAYED_HEADER} header instead of registering again. Server errors aren't stored.
+ * <p>
+ * Registered as a plain servlet filter, so it runs after the security filter chain and knows the caller.
+ * Responses are stored in this instance's memory only: with several instances behind a load balancer, a
+ * retry reaching another instance runs again.
+ */
+@Component
+public class IdempotencyFilter extends OncePerRequestFilter {
+    public static final String HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+    private static final int MAX_KEY_LENGTH = 255;
+    private static final Set<String> PATHS = Set.of(
+            "/api/v1/devices",
+            "/api/v1/devices/anonymousDevice",
+            "/api/v1/users/registration"
+    );
+
+    private record StoredResponse(int status, String contentType, String location, byte[] body) {
+    }
+
+    private final IdempotencyStore<StoredResponse> store;
+    private final ObjectMapper objectMapper;
+    private final Counter executed;
+    private final Counter replayed;
+
+    public IdempotencyFilter(
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${idempotency.max-entries:100000}") int maxEntries,
+            @Value("${idempotency.ttl:24h}") Duration ttl
+    ) {
+        this.objectMapper = objectMapper;
+        this.store = new IdempotencyStore<>(maxEntries, ttl.toNanos());
+        this.executed = meterRegistry.counter("http.idempotency.requests", "result", "executed");
+        this.replayed = meterRegistry.counter("http.idempotency.requests", "result", "replayed");
+        Gauge.builder("http.idempotency.store.size", store, IdempotencyStore::size).register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(@NonNull HttpServletRequest request) {
+        return !"POST".equals(request.getMethod())
+                || request.getHeader(HEADER) == null
+                || !PATHS.contains(request.getRequestURI().substring(request.getContextPath().length()));
+    }
+
+    @Override
+    protected void doFilterInternal(
+            @NonNull HttpServletRequest request,
+            @NonNull HttpServletResponse response,
+            @NonNull FilterChain filterChain
+    ) throws ServletException, IOException {
+        String key = request.getHeader(HEADER);
+        if (key.isBlank() || key.length() > MAX_KEY_LENGTH) {
+            writeError(response, new CustomException("Invalid " + HEADER + " header", ErrorCode.Validation));
+            return;
+        }
+
+        byte[] body = request.getInputStream().readAllBytes();
+        HttpServletRequest cachedRequest = new CachedBodyRequest(request, body);
+
+        boolean[] ran = {false};
+        StoredResponse stored;
+        try {
+            stored = store.execute(
+                    scope(request) + key,
+                    fingerprint(body),
+                    () -> {
+                        ran[0] = true;
+                        executed.increment();
+                        return proceed(cachedRequest, response, filterChain);
+                    },
+                    result -> result.status() < 500,
+                    replayed::increment
+            );
+        } catch (CustomException e) {
+            writeError(response, e);
+            return;
+        } catch (ChainException e) {
+            if (e.getCause() instanceof ServletException cause) {
+                throw cause;
+            }
+            throw (IOException) e.getCause();
+        }
+
+        if (!ran[0]) {
+            response.setHeader(REPLAYED_HEADER, "true");
+            write(response, stored);
+        }
+    }
+
+    private StoredResponse proceed(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) {
+        ContentCachingResponseWrapper wrapper = new ContentCachingResponseWrapper(response);
+        try {
+            filterChain.doFilter(request, wrapper);
+            StoredResponse stored = new StoredResponse(
+                    wrapper.getStatus(),
+                    wrapper.getContentType(),
+                    wrapper.getHeader(HttpHeaders.LOCATION),
+                    wrapper.getContentAsByteArray()
+            );
+            wrapper.copyBodyToResponse();
+            return stored;
+        } catch (IOException | ServletException e) {
+            throw new ChainException(e);
+        }
+    }
+
+    // Carries the chain's checked exceptions through the store, to be rethrown as they were.
+    private static final class ChainException extends RuntimeException {
+        ChainException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    // Keys are chosen by clients, so the same key from two callers or for two endpoints must not collide.
+    private static String scope(HttpServletRequest request) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String caller = authentication != null && authentication.isAuthenticated() ? authentication.getName() : "";
+        return request.getRequestURI() + '\n' + caller + '\n';
+    }
+
+    private static String fingerprint(byte[] body) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(HttpServletResponse response, StoredResponse stored) throws IOException {
+        response.setStatus(stored.status());
+        if (stored.contentType() != null) {
+            response.setContentType(stored.contentType());
+        }
+        if (stored.location() != null) {
+            response.setHeader(HttpHeaders.LOCATION, stored.location());
+        }
+        response.setContentLength(stored.body().length);
+        response.getOutputStream().write(stored.body());
+    }
+
+    private void writeError(HttpServletResponse response, CustomException e) throws IOException {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getOutputStream().write(objectMapper.writeValueAsBytes(new ErrorResponse(e)));
+    }
+
+    private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+        private final byte[] body;
+
+        CachedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream input = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public boolean isFinished() {
+                    return input.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    // The whole body is already in memory, so it is all available at once.
+                    try {
+                        readListener.onDataAvailable();
+                        readListener.onAllDataRead();
+                    } catch (IOException e) {
+                        readListener.onError(e);
+                    }
+                }
+
+                @Override
+                public int read() {
+                    return input.read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    return input.read(buffer, offset, length);
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            String encoding = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(),
+                    encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8));
+        }
+    }
+}
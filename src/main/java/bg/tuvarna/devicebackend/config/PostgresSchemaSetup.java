@@ -0,0 +1,242 @@
+package bg.tuvarna.devicebackend.config;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Installs the PostgreSQL-only schema objects that Hibernate's ddl-auto can't express.
+ * Every statement is idempotent, so it is safe to run on each startup.
+ * On other databases (H2 in tests) nothing is installed and the services use their
+ * application-level fallbacks instead.
+ */
+@Component
+@Order(0)
+@RequiredArgsConstructor
+public class PostgresSchemaSetup implements CommandLineRunner {
+    private static final Logger logger = LoggerFactory.getLogger(PostgresSchemaSetup.class);
+    private static final int BACKFILL_CHUNK_SIZE = 10_000;
+
+    /**
+     * The exclusion constraint rejecting overlapping passport ranges with the same prefix.
+     */
+    public static final String PASSPORT_RANGE_CONSTRAINT = "passports_serial_range_excl";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private boolean postgres;
+    private volatile boolean passportRangeConstraint;
+    private volatile boolean searchDocuments;
+
+    @PostConstruct
+    void detectDatabase() {
+        String product = jdbcTemplate.execute(
+                (ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName()
+        );
+        postgres = "PostgreSQL".equalsIgnoreCase(product);
+    }
+
+    @Override
+    public void run(String... args) {
+        if (!postgres) {
+            return;
+        }
+
+        passportRangeConstraint = installPassportRangeConstraint();
+        searchDocuments = installSearchDocuments();
+    }
+
+    public boolean isPostgres() {
+        return postgres;
+    }
+
+    /**
+     * Whether overlapping passport ranges are rejected by the database itself.
+     */
+    public boolean isPassportRangeConstraintEnforced() {
+        return passportRangeConstraint;
+    }
+
+    /**
+     * Whether devices and users have indexed search documents, kept current by the database itself.
+     */
+    public boolean isSearchIndexed() {
+        return searchDocuments;
+    }
+
+    private boolean installPassportRangeConstraint() {
+        try {
+            jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS btree_gist");
+            jdbcTemplate.execute("""
+                    ALTER TABLE public.passports ADD COLUMN IF NOT EXISTS serial_range int4range
+                        GENERATED ALWAYS AS (int4range(from_serial_number, to_serial_number, '[]')) STORED
+                    """);
+            jdbcTemplate.execute("""
+                    DO $$
+                    BEGIN
+                        IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = '%1$s') THEN
+                            ALTER TABLE public.passports ADD CONSTRAINT %1$s
+                                EXCLUDE USING gist (serial_prefix WITH =, serial_range WITH &&);
+                        END IF;
+                    END
+                    $$
+                    """.formatted(PASSPORT_RANGE_CONSTRAINT));
+            return true;
+        } catch (DataAccessException e) {
+            // Typically existing overlapping rows or missing privileges for the extension.
+            logger.warn("Passport range exclusion constraint not installed, using application checks: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds a lowercased search document to every device and user, holding the columns the listings search, and
+     * trigram indexes over them. Triggers write a user's document when the user is written. A device's also holds
+     * its owner's and passport's columns, so triggers rewrite it when the device is written and when its owner or
+     * passport changes. The columns are plain nullable ones, so adding them doesn't rewrite the tables; existing rows
+     * are filled in chunks of {@value #BACKFILL_CHUNK_SIZE} and the indexes built concurrently, so writes go on
+     * meanwhile. Until it is done the listings keep searching without the documents.
+     */
+    private boolean installSearchDocuments() {
+        try {
+            jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS pg_trgm");
+            jdbcTemplate.execute("ALTER TABLE public.users ADD COLUMN IF NOT EXISTS search_document text");
+            // Earlier versions made it a generated column; dropping the expression keeps the values without a rewrite.
+            jdbcTemplate.execute("ALTER TABLE public.users ALTER COLUMN search_document DROP EXPRESSION IF EXISTS");
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE FUNCTION public.user_search_document(full_name text, address text, email text, phone text)
+                    RETURNS text LANGUAGE sql IMMUTABLE AS $$
+                        SELECT lower(coalesce(full_name, '') || E'\\n' || coalesce(address, '') || E'\\n'
+                            || coalesce(email, '') || E'\\n' || coalesce(phone, ''))
+                    $$
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE FUNCTION public.users_search_document() RETURNS trigger LANGUAGE plpgsql AS $$
+                    BEGIN
+                        NEW.search_document := public.user_search_document(NEW.full_name, NEW.address, NEW.email, NEW.phone);
+                        RETURN NEW;
+                    END
+                    $$
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE TRIGGER users_own_search_document
+                        BEFORE INSERT OR UPDATE OF full_name, address, email, phone ON public.users
+                        FOR EACH ROW EXECUTE FUNCTION public.users_search_document()
+                    """);
+            jdbcTemplate.execute("ALTER TABLE public.devices ADD COLUMN IF NOT EXISTS search_document text");
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE FUNCTION public.device_search_document(serial text, owner bigint, passport bigint)
+                    RETURNS text LANGUAGE sql STABLE AS $$
+                        SELECT lower(concat_ws(E'\\n', serial,
+                            (SELECT concat_ws(E'\\n', full_name, address, email, phone) FROM public.users WHERE id = owner),
+                            (SELECT concat_ws(E'\\n', name, model) FROM public.passports WHERE id = passport)))
+                    $$
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE FUNCTION public.devices_search_document() RETURNS trigger LANGUAGE plpgsql AS $$
+                    BEGIN
+                        NEW.search_document := public.device_search_document(NEW.serial_number, NEW.user_id, NEW.passport_id);
+                        RETURN NEW;
+                    END
+                    $$
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE TRIGGER devices_search_document
+                        BEFORE INSERT OR UPDATE OF serial_number, user_id, passport_id ON public.devices
+                        FOR EACH ROW EXECUTE FUNCTION public.devices_search_document()
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE FUNCTION public.owner_search_document() RETURNS trigger LANGUAGE plpgsql AS $$
+                    BEGIN
+                        UPDATE public.devices
+                        SET search_document = public.device_search_document(serial_number, user_id, passport_id)
+                        WHERE user_id = NEW.id;
+                        RETURN NULL;
+                    END
+                    $$
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE TRIGGER users_search_document
+                        AFTER UPDATE OF full_name, address, email, phone ON public.users
+                        FOR EACH ROW WHEN (OLD.search_document IS DISTINCT FROM NEW.search_document)
+                        EXECUTE FUNCTION public.owner_search_document()
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE FUNCTION public.passport_search_document() RETURNS trigger LANGUAGE plpgsql AS $$
+                    BEGIN
+                        UPDATE public.devices
+                        SET search_document = public.device_search_document(serial_number, user_id, passport_id)
+                        WHERE passport_id = NEW.id;
+                        RETURN NULL;
+                    END
+                    $$
+                    """);
+            jdbcTemplate.execute("""
+                    CREATE OR REPLACE TRIGGER passports_search_document
+                        AFTER UPDATE OF name, model ON public.passports
+                        FOR EACH ROW WHEN (OLD.name IS DISTINCT FROM NEW.name OR OLD.model IS DISTINCT FROM NEW.model)
+                        EXECUTE FUNCTION public.passport_search_document()
+                    """);
+
+            long users = backfillSearchDocuments("public.users",
+                    "public.user_search_document(t.full_name, t.address, t.email, t.phone)");
+            long devices = backfillSearchDocuments("public.devices",
+                    "public.device_search_document(t.serial_number, t.user_id, t.passport_id)");
+            if (users + devices > 0) {
+                logger.info("Filled the search documents of {} users and {} devices", users, devices);
+            }
+            createTrigramIndex("devices_search_document_idx", "public.devices");
+            createTrigramIndex("users_search_document_idx", "public.users");
+            return true;
+        } catch (DataAccessException e) {
+            logger.warn("Search documents not installed, searching without them: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Sets the missing search documents of {@code table} to {@code document}, an expression over its row {@code t}.
+     */
+    private long backfillSearchDocuments(String table, String document) {
+        long filled = 0;
+        long afterId = 0;
+        while (true) {
+            // Each chunk commits on its own, so the backfill never holds many row locks for long.
+            List<Long> ids = jdbcTemplate.queryForList("""
+                    WITH chunk AS (
+                        SELECT id FROM %1$s WHERE id > ? AND search_document IS NULL ORDER BY id LIMIT ?
+                    )
+                    UPDATE %1$s t
+                    SET search_document = %2$s
+                    FROM chunk WHERE t.id = chunk.id
+                    RETURNING t.id
+                    """.formatted(table, document), Long.class, afterId, BACKFILL_CHUNK_SIZE);
+            if (ids.isEmpty()) {
+                return filled;
+            }
+            filled += ids.size();
+            afterId = Collections.max(ids);
+        }
+    }
+
+    private void createTrigramIndex(String name, String table) {
+        // A concurrent build that was interrupted leaves an invalid index behind, which IF NOT EXISTS would keep.
+        Boolean valid = jdbcTemplate.queryForObject(
+                "SELECT (SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?))", Boolean.class, "public." + name);
+        if (Boolean.FALSE.equals(valid)) {
+            jdbcTemplate.execute("DROP INDEX CONCURRENTLY public." + name);
+        }
+        jdbcTemplate.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name + " ON " + table
+                + " USING gin (search_document gin_trgm_ops)");
+    }
+}
@@ -45,6 +45,7 @@ public class SecurityConfig {
             auth.requestMatchers(
                     "/api/v1/users/login",
                     "/api/v1/users/registration",
+                    "/api/v1/registrations/*",
                     "/swagger-ui",
                     "/swagger",
                     "/swagger-ui/**",
@@ -56,9 +57,16 @@ public class SecurityConfig {
             auth.requestMatchers(
                     "/api/v1/devices/exists/**",
                     "/api/v1/devices/anonymousDevice",
-                    "/api/v1/passports/getBySerialId/*"
+                    "/api/v1/passports/getBySerialId/*",
+                    "/api/v1/passports/resolve"
             ).permitAll();
 
+            // --- Само ADMIN за метриките на actuator ---
+            auth.requestMatchers("/actuator/metrics", "/actuator/metrics/**").hasAuthority(UserRole.ADMIN.toString());
+
+            // --- Само ADMIN за масово изтриване на устройства ---
+            auth.requestMatchers("/api/v1/devices/bulk-delete").hasAuthority(UserRole.ADMIN.toString());
+
             // --- USER и ADMIN могат да достъпват user/device endpoints ---
             auth.requestMatchers(
                     "/api/v1/users/update",
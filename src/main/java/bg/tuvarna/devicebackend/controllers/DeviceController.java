@@ -1,14 +1,29 @@
 package bg.tuvarna.devicebackend.controllers;
 
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
 import bg.tuvarna.devicebackend.controllers.exceptions.ErrorResponse;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkDeleteResultVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkDeleteVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkResultVO;
 import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
 import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
 import bg.tuvarna.devicebackend.models.dtos.DeviceVO;
+import bg.tuvarna.devicebackend.models.dtos.ExpiringDevicesVO;
+import bg.tuvarna.devicebackend.models.dtos.RegistrationStatusVO;
 import bg.tuvarna.devicebackend.models.entities.Device;
 import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.services.AsyncRegistrationService;
+import bg.tuvarna.devicebackend.services.DeviceBulkDeletionService;
+import bg.tuvarna.devicebackend.services.DeviceBulkRegistrationService;
 import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.WarrantyExpiryService;
 import bg.tuvarna.devicebackend.utils.CustomPage;
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.ArraySchema;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
@@ -16,16 +31,28 @@ import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
 import jakarta.validation.Valid;
 import lombok.AllArgsConstructor;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 @RestController
 @RequestMapping("/api/v1/devices")
 @AllArgsConstructor
 public class DeviceController {
+    private static final Pattern EXPIRY_WINDOW = Pattern.compile("(\\d{1,4})d?");
+    private static final int MAX_EXPIRY_WINDOW_DAYS = 3650;
+
     private final DeviceService deviceService;
+    private final DeviceBulkRegistrationService deviceBulkRegistrationService;
+    private final DeviceBulkDeletionService deviceBulkDeletionService;
+    private final WarrantyExpiryService warrantyExpiryService;
+    private final AsyncRegistrationService asyncRegistrationService;
 
     @Operation(
             description = "Return device by id for logged in user.",
@@ -33,8 +60,34 @@ public class DeviceController {
     )
     @GetMapping("/{id}")
     @SecurityRequirement(name = "bearerAuth")
-    public DeviceVO findDevice(@PathVariable String id) {
-        return new DeviceVO(deviceService.findDevice(id));
+    public ResponseEntity<DeviceVO> findDevice(@PathVariable String id) {
+        return withETag(deviceService.findDevice(id));
+    }
+
+    @Operation(
+            description = "Returns devices whose warranty expires between today and the given number of days " +
+                    "from now, soonest first. Pass the returned nextCursor as after to get the next page.",
+            summary = "Returns devices with expiring warranties"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "A page of expiring devices."),
+            @ApiResponse(
+                    responseCode = "400",
+                    description = "Invalid window, cursor or page size.",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorResponse.class)
+                    )
+            )
+    })
+    @GetMapping("/expiring")
+    @SecurityRequirement(name = "bearerAuth")
+    public ResponseEntity<ExpiringDevicesVO> getExpiringDevices(
+            @RequestParam(defaultValue = "30d") String within,
+            @RequestParam(required = false) String after,
+            @RequestParam(defaultValue = "50") int size
+    ) {
+        return ResponseEntity.ok(warrantyExpiryService.getExpiring(parseExpiryWindow(within), after, size));
     }
 
     @Operation(
@@ -54,7 +107,7 @@ public class DeviceController {
     })
     @GetMapping("/exists/{id}")
     public ResponseEntity<DeviceVO> isDeviceExists(@PathVariable String id) {
-        return ResponseEntity.ok(new DeviceVO(deviceService.isDeviceExists(id)));
+        return ResponseEntity.ok(deviceService.isDeviceExists(id));
     }
 
     @Operation(
@@ -70,15 +123,36 @@ public class DeviceController {
                                     mediaType = "application/json",
                                     schema = @Schema(implementation = DeviceVO.class)
                             )
+                    ),
+                    @ApiResponse(
+                            responseCode = "202",
+                            description = "Queued, when asked for with Prefer: respond-async; poll the Location for its status.",
+                            content = @Content(
+                                    mediaType = "application/json",
+                                    schema = @Schema(implementation = RegistrationStatusVO.class)
+                            )
+                    ),
+                    @ApiResponse(
+                            responseCode = "429",
+                            description = "Too many queued registrations; retry later.",
+                            content = @Content(
+                                    mediaType = "application/json",
+                                    schema = @Schema(implementation = ErrorResponse.class)
+                            )
                     )
             }
     )
     @PostMapping()
     @SecurityRequirement(name = "bearerAuth")
-    public ResponseEntity<DeviceVO> addDevice(
+    public ResponseEntity<?> addDevice(
             @RequestBody @Valid DeviceCreateVO device,
-            @AuthenticationPrincipal User user
+            @AuthenticationPrincipal User user,
+            @RequestHeader(value = "Prefer", required = false) String prefer
     ) {
+        if (asyncRegistrationService.accepts(prefer)) {
+            return RegistrationController.accepted(asyncRegistrationService.submitDevice(device, user));
+        }
+
         Device saved = deviceService.registerNewDevice(device, user);
 
         return ResponseEntity.created(
@@ -93,16 +167,27 @@ public class DeviceController {
 
     @Operation(
             summary = "Returns devices.",
-            description = "Returns devices based on search."
+            description = "Returns devices based on search, best matches first where the database search index is available, by id with the in-process search index. Pages are either numbered (page) or, with after, " +
+                    "fetched by cursor: pass an empty after for the first page and the returned nextCursor for " +
+                    "the next one. Cursor pages are just as fast at any depth. count=exact|approx|none chooses " +
+                    "how totalItems is computed (by default exact for numbered pages and none for cursor pages); " +
+                    "approx estimates search results instead of counting them. The X-Total-Count-Mode " +
+                    "header tells which mode answered."
     )
     @GetMapping
     @SecurityRequirement(name = "bearerAuth")
-    public ResponseEntity<CustomPage<Device>> getDevices(
+    public ResponseEntity<CustomPage<DeviceListingVO>> getDevices(
             @RequestParam(required = false) String searchBy,
             @RequestParam(defaultValue = "1") int page,
-            @RequestParam(defaultValue = "10") int size
+            @RequestParam(defaultValue = "10") int size,
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) String count
     ) {
-        return ResponseEntity.ok(deviceService.getDevices(searchBy, page, size));
+        CountMode countMode = Listings.countMode(count, after);
+        if (after != null) {
+            return Listings.ok(deviceService.getDevices(searchBy, after, size, countMode));
+        }
+        return Listings.ok(deviceService.getDevices(searchBy, page, size, countMode));
     }
 
     @Operation(
@@ -144,12 +229,39 @@ public class DeviceController {
     }
 
     @Operation(
-            description = "Update device date by admin.",
+            description = "Register many anonymous devices at once. " +
+                    "The result has one entry per requested device, in request order; " +
+                    "invalid and already registered serials are reported without failing the rest.",
+            summary = "Register devices in bulk"
+    )
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Bulk registration finished; see the per-device results.",
+                            content = @Content(
+                                    mediaType = "application/json",
+                                    array = @ArraySchema(schema = @Schema(implementation = DeviceBulkResultVO.class))
+                            )
+                    )
+            }
+    )
+    @PostMapping("/bulk")
+    @SecurityRequirement(name = "bearerAuth")
+    public ResponseEntity<List<DeviceBulkResultVO>> addDevices(@RequestBody @Valid DeviceBulkCreateVO devices) {
+        return ResponseEntity.ok(deviceBulkRegistrationService.registerDevices(devices.devices()));
+    }
+
+    @Operation(
+            description = "Update device date by admin. " +
+                    "With an If-Match header holding the device's ETag the update only applies if nobody changed " +
+                    "the device since; add Prefer: return=minimal to get just the new ETag back.",
             summary = "Update device date by admin."
     )
     @ApiResponses(
             value = {
                     @ApiResponse(responseCode = "200", description = "Device is registered."),
+                    @ApiResponse(responseCode = "204", description = "Device is updated; only the ETag is returned."),
                     @ApiResponse(
                             responseCode = "400",
                             description = "Device not exist.",
@@ -157,6 +269,14 @@ public class DeviceController {
                                     mediaType = "application/json",
                                     schema = @Schema(implementation = ErrorResponse.class)
                             )
+                    ),
+                    @ApiResponse(
+                            responseCode = "412",
+                            description = "Device was changed since the version in If-Match.",
+                            content = @Content(
+                                    mediaType = "application/json",
+                                    schema = @Schema(implementation = ErrorResponse.class)
+                            )
                     )
             }
     )
@@ -164,9 +284,20 @@ public class DeviceController {
     @SecurityRequirement(name = "bearerAuth")
     public ResponseEntity<DeviceVO> updateDevice(
             @PathVariable String serialNumber,
-            @RequestBody @Valid DeviceUpdateVO device
+            @RequestBody @Valid DeviceUpdateVO device,
+            @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+            @RequestHeader(value = "Prefer", required = false) String prefer
     ) {
-        return ResponseEntity.ok(new DeviceVO(deviceService.updateDevice(serialNumber, device)));
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            return withETag(deviceService.updateDevice(serialNumber, device));
+        }
+
+        long version = deviceService.updateDevice(serialNumber, device, parseVersion(ifMatch));
+        if (prefer != null && prefer.contains("return=minimal")) {
+            return ResponseEntity.noContent().eTag(String.valueOf(version)).build();
+        }
+
+        return withETag(deviceService.findDevice(serialNumber));
     }
 
     @Operation(
@@ -192,4 +323,75 @@ public class DeviceController {
         deviceService.deleteDevice(serialNumber);
         return ResponseEntity.ok().build();
     }
-}
\ No newline at end of file
+
+    @Operation(
+            description = "Delete many devices and their renovations at once by admin: the listed serial numbers, " +
+                    "the serials with a prefix and a number from fromSerialNumber to toSerialNumber, or all devices " +
+                    "of a passport, which can be deleted afterwards with deletePassport. " +
+                    "Devices are deleted in chunks, each in its own transaction.",
+            summary = "Delete devices in bulk by admin."
+    )
+    @ApiResponses(
+            value = {
+                    @ApiResponse(
+                            responseCode = "200",
+                            description = "Number of deleted devices and renovations.",
+                            content = @Content(
+                                    mediaType = "application/json",
+                                    schema = @Schema(implementation = DeviceBulkDeleteResultVO.class)
+                            )
+                    ),
+                    @ApiResponse(
+                            responseCode = "400",
+                            description = "Not exactly one of serial numbers, serial range or passport id given.",
+                            content = @Content(
+                                    mediaType = "application/json",
+                                    schema = @Schema(implementation = ErrorResponse.class)
+                            )
+                    )
+            }
+    )
+    @PostMapping("/bulk-delete")
+    @SecurityRequirement(name = "bearerAuth")
+    public ResponseEntity<DeviceBulkDeleteResultVO> deleteDevices(@RequestBody @Valid DeviceBulkDeleteVO request) {
+        return ResponseEntity.ok(deviceBulkDeletionService.delete(request));
+    }
+
+    private static ResponseEntity<DeviceVO> withETag(Device device) {
+        DeviceVO body = new DeviceVO(device);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (device.getVersion() != null) {
+            response.eTag(String.valueOf(device.getVersion()));
+        }
+        return response.body(body);
+    }
+
+    /**
+     * Reads a window like {@code 30d} (or just {@code 30}) as a number of days.
+     */
+    private static int parseExpiryWindow(String within) {
+        Matcher matcher = EXPIRY_WINDOW.matcher(within.trim());
+        if (matcher.matches()) {
+            int days = Integer.parseInt(matcher.group(1));
+            if (days <= MAX_EXPIRY_WINDOW_DAYS) {
+                return days;
+            }
+        }
+        throw new CustomException("Window must be a number of days up to " + MAX_EXPIRY_WINDOW_DAYS + ", like 30d", ErrorCode.Validation);
+    }
+
+    /**
+     * Reads the version from a single strong ETag. Anything else can't match a device, so it fails the precondition.
+     */
+    private static long parseVersion(String ifMatch) {
+        String tag = ifMatch.trim();
+        if (tag.length() > 2 && tag.startsWith("\"") && tag.endsWith("\"")) {
+            try {
+                return Long.parseLong(tag.substring(1, tag.length() - 1));
+            } catch (NumberFormatException ignored) {
+                // Falls through to the mismatch below.
+            }
+        }
+        throw new CustomException("If-Match doesn't match the device", ErrorCode.VersionMismatch);
+    }
+}
@@ -0,0 +1,42 @@
+package bg.tuvarna.devicebackend.controllers;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.utils.CustomPage;
+import org.springframework.http.ResponseEntity;
+
+import java.util.Locale;
+
+/**
+ * Parameters and headers shared by the paged device and user listings.
+ */
+final class Listings {
+    static final String COUNT_MODE_HEADER = "X-Total-Count-Mode";
+
+    private Listings() {
+    }
+
+    /**
+     * Reads {@code count=exact|approx|none}. Without it numbered pages are counted exactly and cursor pages not at all.
+     */
+    static CountMode countMode(String count, String after) {
+        if (count == null) {
+            return after == null ? CountMode.EXACT : CountMode.NONE;
+        }
+        try {
+            return CountMode.valueOf(count.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new CustomException("Count must be exact, approx or none", ErrorCode.Validation);
+        }
+    }
+
+    /**
+     * 200 with the page, telling in {@value #COUNT_MODE_HEADER} how its total was computed.
+     */
+    static <T> ResponseEntity<CustomPage<T>> ok(CustomPage<T> page) {
+        return ResponseEntity.ok()
+                .header(COUNT_MODE_HEADER, page.getCountMode().name().toLowerCase(Locale.ROOT))
+                .body(page);
+    }
+}
@@ -2,25 +2,46 @@ package bg.tuvarna.devicebackend.controllers;
 
 import bg.tuvarna.devicebackend.models.dtos.*;
 import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.enums.PassportImportFormat;
+import bg.tuvarna.devicebackend.services.PassportImportService;
 import bg.tuvarna.devicebackend.services.PassportService;
+import bg.tuvarna.devicebackend.services.PassportUtilizationService;
+import bg.tuvarna.devicebackend.services.WarrantyRecomputationService;
 import bg.tuvarna.devicebackend.utils.CustomPage;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import lombok.AllArgsConstructor;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 @RestController
 @RequestMapping("api/v1/passports")
 @AllArgsConstructor
 public class PassportController {
     private final PassportService passportService;
+    private final PassportImportService passportImportService;
+    private final PassportUtilizationService passportUtilizationService;
+    private final WarrantyRecomputationService warrantyRecomputationService;
+    private final ObjectMapper objectMapper;
 
     @Operation(
             description = "Create passport",
@@ -89,6 +110,29 @@ public class PassportController {
         return ResponseEntity.ok(passportService.getPassports(page, size));
     }
 
+    @Operation(
+            description = "Registered, owned, anonymous and warranty-expired device counts per passport, " +
+                    "with the share of the serial range that is registered. " +
+                    "Counts are kept in memory and reconciled with the database every few minutes.",
+            summary = "Get passport range utilization"
+    )
+    @GetMapping("/utilization")
+    @SecurityRequirement(name = "bearerAuth")
+    public ResponseEntity<List<PassportUtilizationVO>> getUtilization() {
+        return ResponseEntity.ok(passportUtilizationService.getUtilization());
+    }
+
+    @Operation(
+            description = "Progress of recomputing device warranty dates after a passport's warranty length changed, " +
+                    "one entry per passport that had such a change.",
+            summary = "Get warranty recomputation progress"
+    )
+    @GetMapping("/warranty-recomputations")
+    @SecurityRequirement(name = "bearerAuth")
+    public ResponseEntity<List<WarrantyRecomputationVO>> getWarrantyRecomputations() {
+        return ResponseEntity.ok(warrantyRecomputationService.getRecomputations());
+    }
+
     @Operation(
             description = "delete passport",
             summary = "delete passport"
@@ -109,4 +153,50 @@ public class PassportController {
     public ResponseEntity<PassportForSerialNumberVO> getPassportForSerialId(@PathVariable String serialId) {
         return ResponseEntity.ok(new PassportForSerialNumberVO(passportService.findPassportBySerialId(serialId)));
     }
-}
\ No newline at end of file
+
+    @Operation(
+            description = "Resolve the passports of many serial numbers at once. " +
+                    "The result has one entry per requested serial, in request order.",
+            summary = "Resolve passports for serial numbers"
+    )
+    @PostMapping("/resolve")
+    public ResponseEntity<List<SerialResolutionVO>> resolveSerialNumbers(@RequestBody @Valid PassportResolveVO passportResolveVO) {
+        return ResponseEntity.ok(passportService.resolveSerialNumbers(passportResolveVO.serialNumbers()));
+    }
+
+    @Operation(
+            description = "Import passports from a CSV (with a header row) or NDJSON body. " +
+                    "The response is an NDJSON stream with one result per input row, written while the import runs.",
+            summary = "Import passports"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Import finished; see the per-row results",
+                    content = @Content(
+                            mediaType = "application/x-ndjson",
+                            schema = @Schema(implementation = PassportImportResultVO.class)
+                    )
+            ),
+            @ApiResponse(responseCode = "400", description = "Bad request - missing or invalid CSV header")
+    })
+    @PostMapping(value = "/import", consumes = {"text/csv", MediaType.APPLICATION_NDJSON_VALUE})
+    @SecurityRequirement(name = "bearerAuth")
+    public void importPassports(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        PassportImportFormat format = PassportImportFormat.fromContentType(request.getContentType());
+        Charset charset = request.getCharacterEncoding() != null ? Charset.forName(request.getCharacterEncoding()) : StandardCharsets.UTF_8;
+        BufferedReader input = new BufferedReader(new InputStreamReader(request.getInputStream(), charset));
+
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        ServletOutputStream output = response.getOutputStream();
+        passportImportService.importPassports(input, format, result -> {
+            try {
+                output.write(objectMapper.writeValueAsBytes(result));
+                output.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        output.flush();
+    }
+}
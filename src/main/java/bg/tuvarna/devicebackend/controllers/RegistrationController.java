@@ -0,0 +1,63 @@
+package bg.tuvarna.devicebackend.controllers;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorResponse;
+import bg.tuvarna.devicebackend.models.dtos.RegistrationStatusVO;
+import bg.tuvarna.devicebackend.services.AsyncRegistrationService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import lombok.AllArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+@RestController
+@RequestMapping("/api/v1/registrations")
+@AllArgsConstructor
+public class RegistrationController {
+    private final AsyncRegistrationService asyncRegistrationService;
+
+    @Operation(
+            description = "Returns the status of a registration that was accepted with Prefer: respond-async.",
+            summary = "Returns registration status"
+    )
+    @ApiResponses(value = {
+            @ApiResponse(
+                    responseCode = "200",
+                    description = "Registration status.",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = RegistrationStatusVO.class)
+                    )
+            ),
+            @ApiResponse(
+                    responseCode = "400",
+                    description = "Unknown registration.",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorResponse.class)
+                    )
+            )
+    })
+    @GetMapping("/{id}")
+    public ResponseEntity<RegistrationStatusVO> getStatus(@PathVariable String id) {
+        return ResponseEntity.ok(asyncRegistrationService.getStatus(id));
+    }
+
+    /**
+     * 202 pointing at the status of a queued registration.
+     */
+    static ResponseEntity<RegistrationStatusVO> accepted(RegistrationStatusVO status) {
+        return ResponseEntity.accepted()
+                .location(ServletUriComponentsBuilder.fromCurrentContextPath()
+                        .path("/api/v1/registrations/{id}")
+                        .buildAndExpand(status.id())
+                        .toUri())
+                .body(status);
+    }
+}
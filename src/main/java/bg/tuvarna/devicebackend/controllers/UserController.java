@@ -3,6 +3,8 @@ package bg.tuvarna.devicebackend.controllers;
 import bg.tuvarna.devicebackend.controllers.exceptions.ErrorResponse;
 import bg.tuvarna.devicebackend.models.dtos.*;
 import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.services.AsyncRegistrationService;
 import bg.tuvarna.devicebackend.services.UserService;
 import bg.tuvarna.devicebackend.utils.CustomPage;
 import io.swagger.v3.oas.annotations.Operation;
@@ -23,6 +25,7 @@ import org.springframework.web.bind.annotation.*;
 public class UserController {
 
     private final UserService userService;
+    private final AsyncRegistrationService asyncRegistrationService;
 
     @Operation(
             summary = "Register user.",
@@ -34,6 +37,14 @@ public class UserController {
                     responseCode = "200",
                     description = "Successfully, register the profile."
             ),
+            @ApiResponse(
+                    responseCode = "202",
+                    description = "Queued, when asked for with Prefer: respond-async; poll the Location for its status.",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = RegistrationStatusVO.class)
+                    )
+            ),
             @ApiResponse(
                     responseCode = "400",
                     description = "Email already registered or phone already registered.",
@@ -41,10 +52,25 @@ public class UserController {
                             mediaType = "application/json",
                             schema = @Schema(implementation = ErrorResponse.class)
                     )
+            ),
+            @ApiResponse(
+                    responseCode = "429",
+                    description = "Too many queued registrations; retry later.",
+                    content = @Content(
+                            mediaType = "application/json",
+                            schema = @Schema(implementation = ErrorResponse.class)
+                    )
             )
     })
     @PostMapping("/registration")
-    public ResponseEntity<Void> registration(@RequestBody @Valid UserCreateVO userRegistration) {
+    public ResponseEntity<?> registration(
+            @RequestBody @Valid UserCreateVO userRegistration,
+            @RequestHeader(value = "Prefer", required = false) String prefer
+    ) {
+        if (asyncRegistrationService.accepts(prefer)) {
+            return RegistrationController.accepted(asyncRegistrationService.submitUser(userRegistration));
+        }
+
         userService.register(userRegistration);
         return ResponseEntity.ok().build();
     }
@@ -74,16 +100,27 @@ public class UserController {
 
     @Operation(
             summary = "Returns users.",
-            description = "Returns users based on search."
+            description = "Returns users based on search, best matches first where the database search index is available, by id with the in-process search index. Pages are either numbered (page) or, with after, " +
+                    "fetched by cursor: pass an empty after for the first page and the returned nextCursor for " +
+                    "the next one. Cursor pages are just as fast at any depth. count=exact|approx|none chooses " +
+                    "how totalItems is computed (by default exact for numbered pages and none for cursor pages); " +
+                    "approx estimates search results instead of counting them. The X-Total-Count-Mode " +
+                    "header tells which mode answered."
     )
     @GetMapping
     @SecurityRequirement(name = "bearerAuth")
     public ResponseEntity<CustomPage<UserListing>> getUsers(
             @RequestParam(required = false) String searchBy,
             @RequestParam(defaultValue = "1") int page,
-            @RequestParam(defaultValue = "10") int size
+            @RequestParam(defaultValue = "10") int size,
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) String count
     ) {
-        return ResponseEntity.ok(userService.getUsers(searchBy, page, size));
+        CountMode countMode = Listings.countMode(count, after);
+        if (after != null) {
+            return Listings.ok(userService.getUsers(searchBy, after, size, countMode));
+        }
+        return Listings.ok(userService.getUsers(searchBy, page, size, countMode));
     }
 
     @Operation(
@@ -1,5 +1,7 @@
 package bg.tuvarna.devicebackend.controllers.exceptions;
 
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.ObjectError;
@@ -21,9 +23,23 @@ public class CustomExceptionHandler {
 
     @ExceptionHandler(CustomException.class)
     public ResponseEntity<ErrorResponse> handleCustomExceptions(CustomException ex) {
+        return switch (ex.getErrorCode()) {
+            case VersionMismatch -> new ResponseEntity<>(new ErrorResponse(ex), HttpStatus.PRECONDITION_FAILED);
+            case QueueFull -> ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, "1")
+                    .body(new ErrorResponse(ex));
+            default -> new ResponseEntity<>(new ErrorResponse(ex), HttpStatus.BAD_REQUEST);
+        };
+    }
+
+    /**
+     * A write that lost a race with another one, without the client having asked for a specific version.
+     */
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    public ResponseEntity<ErrorResponse> handleOptimisticLockingFailure(OptimisticLockingFailureException ex) {
         return new ResponseEntity<>(
-                new ErrorResponse(ex),
-                HttpStatus.BAD_REQUEST
+                new ErrorResponse(new CustomException("Modified by another request", ErrorCode.VersionMismatch)),
+                HttpStatus.CONFLICT
         );
     }
 
@@ -0,0 +1,13 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+
+public record DeviceBulkCreateVO(
+        @NotNull(message = "Devices are required")
+        @Size(max = 100000, message = "At most 100000 devices can be registered at once")
+        List<DeviceCreateVO> devices
+) {
+}
@@ -0,0 +1,11 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+/**
+ * {@code passportDeleted} is only set when the passport was asked to be deleted as well.
+ */
+public record DeviceBulkDeleteResultVO(
+        long deletedDevices,
+        long deletedRenovations,
+        Boolean passportDeleted
+) {
+}
@@ -0,0 +1,20 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+
+/**
+ * Selects the devices to delete: listed serial numbers, a serial range (a prefix with the numbers after it,
+ * as in a passport), or all devices of a passport. Exactly one of them has to be given.
+ */
+public record DeviceBulkDeleteVO(
+        @Size(max = 100000, message = "At most 100000 devices can be deleted by serial number at once")
+        List<String> serialNumbers,
+        String serialPrefix,
+        Integer fromSerialNumber,
+        Integer toSerialNumber,
+        Long passportId,
+        boolean deletePassport
+) {
+}
@@ -0,0 +1,15 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+public record DeviceBulkResultVO(
+        String serialNumber,
+        boolean registered,
+        String error
+) {
+    public static DeviceBulkResultVO registered(String serialNumber) {
+        return new DeviceBulkResultVO(serialNumber, true, null);
+    }
+
+    public static DeviceBulkResultVO rejected(String serialNumber, String error) {
+        return new DeviceBulkResultVO(serialNumber, false, error);
+    }
+}
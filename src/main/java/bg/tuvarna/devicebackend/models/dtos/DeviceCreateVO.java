@@ -1,11 +1,13 @@
 package bg.tuvarna.devicebackend.models.dtos;
 
+import bg.tuvarna.devicebackend.annotations.ValidSerialNumber;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 
 import java.time.LocalDate;
 
 public record DeviceCreateVO(
+        @ValidSerialNumber
         @NotBlank(message = "Device serial number is required")
         String deviceSerialNumber,
         @NotNull(message = "Device purchase date is required")
@@ -0,0 +1,57 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * A device as the device and user listings show it, read by a projection query rather than as an entity.
+ * Renovations are fetched for a whole page at once and added with {@link #withRenovations}.
+ */
+public record DeviceListingVO(
+        @JsonIgnore Long id,
+        @JsonIgnore Long userId,
+        String serialNumber,
+        LocalDate purchaseDate,
+        LocalDate warrantyExpirationDate,
+        String comment,
+        PassportVO passport,
+        List<RenovationListingVO> renovations
+) {
+    /**
+     * The row of a listing query, with the passport's columns flattened.
+     */
+    public DeviceListingVO(
+            Long id,
+            Long userId,
+            String serialNumber,
+            LocalDate purchaseDate,
+            LocalDate warrantyExpirationDate,
+            String comment,
+            Long passportId,
+            String passportName,
+            String passportModel,
+            String serialPrefix,
+            Integer fromSerialNumber,
+            Integer toSerialNumber,
+            Integer warrantyMonths
+    ) {
+        this(
+                id,
+                userId,
+                serialNumber,
+                purchaseDate,
+                warrantyExpirationDate,
+                comment,
+                passportId != null
+                        ? new PassportVO(passportId, passportName, passportModel, serialPrefix, fromSerialNumber, toSerialNumber, warrantyMonths)
+                        : null,
+                List.of()
+        );
+    }
+
+    public DeviceListingVO withRenovations(List<RenovationListingVO> renovations) {
+        return new DeviceListingVO(id, userId, serialNumber, purchaseDate, warrantyExpirationDate, comment, passport, renovations);
+    }
+}
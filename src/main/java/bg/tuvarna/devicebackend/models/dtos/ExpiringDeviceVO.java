@@ -0,0 +1,19 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.LocalDate;
+
+public record ExpiringDeviceVO(
+        @JsonIgnore
+        Long id,
+        String serialNumber,
+        LocalDate purchaseDate,
+        LocalDate warrantyExpirationDate,
+        String comment,
+        Long passportId,
+        String passportName,
+        String passportModel,
+        boolean owned
+) {
+}
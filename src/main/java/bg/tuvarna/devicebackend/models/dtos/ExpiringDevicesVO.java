@@ -0,0 +1,14 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import java.util.List;
+
+/**
+ * One page of devices whose warranty expires soon, ordered by expiration date.
+ * Pass {@code nextCursor} back as {@code after} for the next page; it is null on the last one.
+ */
+public record ExpiringDevicesVO(
+        long totalItems,
+        String nextCursor,
+        List<ExpiringDeviceVO> items
+) {
+}
@@ -0,0 +1,16 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+public record PassportImportResultVO(
+        long line,
+        boolean imported,
+        Long id,
+        String error
+) {
+    public static PassportImportResultVO imported(long line, long id) {
+        return new PassportImportResultVO(line, true, id, null);
+    }
+
+    public static PassportImportResultVO rejected(long line, String error) {
+        return new PassportImportResultVO(line, false, null, error);
+    }
+}
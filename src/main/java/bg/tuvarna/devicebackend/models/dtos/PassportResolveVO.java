@@ -0,0 +1,13 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
+
+import java.util.List;
+
+public record PassportResolveVO(
+        @NotNull(message = "Serial numbers are required")
+        @Size(max = 50000, message = "At most 50000 serial numbers can be resolved at once")
+        List<String> serialNumbers
+) {
+}
@@ -0,0 +1,39 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import bg.tuvarna.devicebackend.models.entities.Passport;
+
+public record PassportUtilizationVO(
+        Long passportId,
+        String name,
+        String model,
+        String serialPrefix,
+        int fromSerialNumber,
+        int toSerialNumber,
+        long capacity,
+        long registered,
+        long owned,
+        long anonymous,
+        long warrantyExpired,
+        double utilization
+) {
+    public PassportUtilizationVO(Passport passport, long registered, long owned, long warrantyExpired) {
+        this(
+                passport.getId(),
+                passport.getName(),
+                passport.getModel(),
+                passport.getSerialPrefix(),
+                passport.getFromSerialNumber(),
+                passport.getToSerialNumber(),
+                capacity(passport),
+                registered,
+                owned,
+                registered - owned,
+                warrantyExpired,
+                capacity(passport) > 0 ? (double) registered / capacity(passport) : 0
+        );
+    }
+
+    private static long capacity(Passport passport) {
+        return Math.max(0, (long) passport.getToSerialNumber() - passport.getFromSerialNumber() + 1);
+    }
+}
@@ -0,0 +1,13 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import bg.tuvarna.devicebackend.models.enums.RegistrationStatus;
+
+/**
+ * Progress of a registration accepted for asynchronous processing. {@code error} is set when it failed.
+ */
+public record RegistrationStatusVO(
+        String id,
+        RegistrationStatus status,
+        String error
+) {
+}
@@ -0,0 +1,16 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.time.LocalDate;
+
+/**
+ * A renovation as the listings show it under its device.
+ */
+public record RenovationListingVO(
+        @JsonIgnore Long deviceId,
+        Long id,
+        String description,
+        LocalDate renovationDate
+) {
+}
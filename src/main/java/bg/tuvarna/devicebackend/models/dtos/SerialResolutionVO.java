@@ -0,0 +1,13 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import bg.tuvarna.devicebackend.models.entities.Passport;
+
+public record SerialResolutionVO(
+        String serialNumber,
+        boolean found,
+        PassportForSerialNumberVO passport
+) {
+    public SerialResolutionVO(String serialNumber, Passport passport) {
+        this(serialNumber, passport != null, passport != null ? new PassportForSerialNumberVO(passport) : null);
+    }
+}
@@ -0,0 +1,32 @@
+package bg.tuvarna.devicebackend.models.dtos;
+
+import bg.tuvarna.devicebackend.models.entities.WarrantyRecomputation;
+import bg.tuvarna.devicebackend.models.enums.RecomputationStatus;
+
+import java.time.LocalDateTime;
+
+public record WarrantyRecomputationVO(
+        Long passportId,
+        int warrantyMonths,
+        RecomputationStatus status,
+        long updatedDevices,
+        long totalDevices,
+        double progress,
+        LocalDateTime startedAt,
+        LocalDateTime finishedAt
+) {
+    public WarrantyRecomputationVO(WarrantyRecomputation recomputation) {
+        this(
+                recomputation.getPassportId(),
+                recomputation.getWarrantyMonths(),
+                recomputation.getStatus(),
+                recomputation.getUpdatedDevices(),
+                recomputation.getTotalDevices(),
+                recomputation.getStatus() == RecomputationStatus.COMPLETED || recomputation.getTotalDevices() == 0
+                        ? 1
+                        : Math.min(1, (double) recomputation.getUpdatedDevices() / recomputation.getTotalDevices()),
+                recomputation.getStartedAt(),
+                recomputation.getFinishedAt()
+        );
+    }
+}
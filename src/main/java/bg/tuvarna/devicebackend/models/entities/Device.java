@@ -1,26 +1,47 @@
 package bg.tuvarna.devicebackend.models.entities;
 
+import bg.tuvarna.devicebackend.services.SearchIndexListener;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 import lombok.Getter;
 import lombok.Setter;
+import org.hibernate.annotations.ColumnDefault;
 
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
 
 @Entity
-@Table(name = "devices", schema = "public")
+@EntityListeners(SearchIndexListener.class)
+@Table(name = "devices", schema = "public",
+        uniqueConstraints = @UniqueConstraint(name = Device.SERIAL_NUMBER_CONSTRAINT, columnNames = "serialNumber"),
+        indexes = {
+                @Index(name = "devices_passport_id_idx", columnList = "passport_id, id"),
+                @Index(name = "devices_user_id_idx", columnList = "user_id")
+        })
 @Getter
 @Setter
 public class Device {
+    public static final String SERIAL_NUMBER_CONSTRAINT = "devices_serial_number_key";
+
     @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id", nullable = false)
+    @JsonIgnore
+    private Long id;
+
     @Column(name = "serialNumber", nullable = false)
     private String serialNumber;
     private LocalDate purchaseDate;
     private LocalDate warrantyExpirationDate;
     private String comment;
 
+    @Version
+    @ColumnDefault("0")
+    @Column(nullable = false)
+    @JsonIgnore
+    private Long version;
+
     @ManyToOne
     @JoinColumn(name = "user_id")
     @JsonIgnore
@@ -1,9 +1,17 @@
 package bg.tuvarna.devicebackend.models.entities;
 
+import bg.tuvarna.devicebackend.services.SearchIndexListener;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import jakarta.persistence.*;
 import lombok.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.ColumnDefault;
 
 @Entity
+@EntityListeners(SearchIndexListener.class)
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Table(name = "passports", schema = "public")
 @Getter
 @Setter
@@ -21,4 +29,10 @@ public class Passport {
     private int fromSerialNumber;
     private int toSerialNumber;
     private int warrantyMonths;
+
+    @Version
+    @ColumnDefault("0")
+    @Column(nullable = false)
+    @JsonIgnore
+    private Long version;
 }
\ No newline at end of file
@@ -8,7 +8,8 @@ import lombok.Setter;
 import java.time.LocalDate;
 
 @Entity
-@Table(name = "renovations", schema = "public")
+@Table(name = "renovations", schema = "public",
+        indexes = @Index(name = "renovations_device_id_idx", columnList = "device_id"))
 @Getter
 @Setter
 public class Renovation {
@@ -21,7 +22,7 @@ public class Renovation {
     private LocalDate renovationDate;
 
     @ManyToOne
-    @JoinColumn(name = "device_serial_number")
+    @JoinColumn(name = "device_id")
     @JsonIgnore
     private Device device;
 }
@@ -0,0 +1,38 @@
+package bg.tuvarna.devicebackend.models.entities;
+
+import bg.tuvarna.devicebackend.models.enums.RecomputationStatus;
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Progress of recomputing one passport's device warranties. Devices are processed in id order and
+ * {@code lastDeviceId} is the checkpoint: every device of the passport up to it is done.
+ */
+@Entity
+@Table(name = "warranty_recomputations", schema = "public")
+@Getter
+@Setter
+public class WarrantyRecomputation {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "id", nullable = false)
+    private Long id;
+
+    @Column(nullable = false, unique = true)
+    private Long passportId;
+    private int warrantyMonths;
+
+    @Enumerated(EnumType.STRING)
+    private RecomputationStatus status;
+    private long lastDeviceId;
+    private long updatedDevices;
+    private long totalDevices;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+
+    @Version
+    private Long version;
+}
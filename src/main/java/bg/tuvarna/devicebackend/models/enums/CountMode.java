@@ -0,0 +1,19 @@
+package bg.tuvarna.devicebackend.models.enums;
+
+/**
+ * How a listing computes its total.
+ */
+public enum CountMode {
+    /**
+     * Unfiltered totals come from maintained counters, filtered ones from a count query.
+     */
+    EXACT,
+    /**
+     * Unfiltered totals come from maintained counters, filtered ones from the PostgreSQL planner's row estimate.
+     */
+    APPROX,
+    /**
+     * No total; {@code totalItems} and {@code totalPages} are -1.
+     */
+    NONE
+}
@@ -0,0 +1,31 @@
+package bg.tuvarna.devicebackend.models.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.http.MediaType;
+
+@Getter
+@AllArgsConstructor
+public enum PassportImportFormat {
+    CSV(MediaType.parseMediaType("text/csv")),
+    NDJSON(MediaType.APPLICATION_NDJSON);
+
+    private final MediaType mediaType;
+
+    /**
+     * @return the format matching {@code contentType}, or null if it isn't supported
+     */
+    public static PassportImportFormat fromContentType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        MediaType type = MediaType.parseMediaType(contentType);
+        for (PassportImportFormat format : values()) {
+            if (format.mediaType.isCompatibleWith(type)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
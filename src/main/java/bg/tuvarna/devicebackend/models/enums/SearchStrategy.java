@@ -0,0 +1,15 @@
+package bg.tuvarna.devicebackend.models.enums;
+
+/**
+ * What answers the device and user listings' searches.
+ */
+public enum SearchStrategy {
+    /**
+     * The database: ranked over the search documents where they are installed, otherwise a LIKE search.
+     */
+    DATABASE,
+    /**
+     * The in-process search index, once it is loaded; the database until then. Matches come back by id.
+     */
+    INDEX
+}
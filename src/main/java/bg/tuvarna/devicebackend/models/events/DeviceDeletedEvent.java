@@ -0,0 +1,26 @@
+package bg.tuvarna.devicebackend.models.events;
+
+import bg.tuvarna.devicebackend.models.entities.Device;
+
+import java.time.LocalDate;
+
+/**
+ * Published after the device with {@code id} and {@code serialNumber} has been deleted.
+ */
+public record DeviceDeletedEvent(
+        Long id,
+        String serialNumber,
+        Long passportId,
+        boolean owned,
+        LocalDate warrantyExpirationDate
+) {
+    public DeviceDeletedEvent(Device device) {
+        this(
+                device.getId(),
+                device.getSerialNumber(),
+                device.getPassport() != null ? device.getPassport().getId() : null,
+                device.getUser() != null,
+                device.getWarrantyExpirationDate()
+        );
+    }
+}
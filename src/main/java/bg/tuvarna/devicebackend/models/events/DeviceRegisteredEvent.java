@@ -0,0 +1,24 @@
+package bg.tuvarna.devicebackend.models.events;
+
+import bg.tuvarna.devicebackend.models.entities.Device;
+
+import java.time.LocalDate;
+
+/**
+ * Published after a device has been saved under {@code serialNumber}.
+ */
+public record DeviceRegisteredEvent(
+        String serialNumber,
+        Long passportId,
+        boolean owned,
+        LocalDate warrantyExpirationDate
+) {
+    public DeviceRegisteredEvent(Device device) {
+        this(
+                device.getSerialNumber(),
+                device.getPassport() != null ? device.getPassport().getId() : null,
+                device.getUser() != null,
+                device.getWarrantyExpirationDate()
+        );
+    }
+}
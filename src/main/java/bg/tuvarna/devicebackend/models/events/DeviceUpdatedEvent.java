@@ -0,0 +1,14 @@
+package bg.tuvarna.devicebackend.models.events;
+
+import java.time.LocalDate;
+
+/**
+ * Published after a device's warranty expiration date may have changed.
+ */
+public record DeviceUpdatedEvent(
+        String serialNumber,
+        Long passportId,
+        LocalDate previousWarrantyExpirationDate,
+        LocalDate warrantyExpirationDate
+) {
+}
@@ -0,0 +1,7 @@
+package bg.tuvarna.devicebackend.models.events;
+
+/**
+ * Published when a passport's warranty length changed, so its devices' warranty dates are stale.
+ */
+public record PassportWarrantyChangedEvent(Long passportId, int warrantyMonths) {
+}
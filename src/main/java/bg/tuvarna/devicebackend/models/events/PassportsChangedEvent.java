@@ -0,0 +1,8 @@
+package bg.tuvarna.devicebackend.models.events;
+
+/**
+ * Published whenever passports are created, updated or deleted.
+ * Listeners run after the surrounding transaction commits.
+ */
+public record PassportsChangedEvent() {
+}
@@ -0,0 +1,7 @@
+package bg.tuvarna.devicebackend.models.events;
+
+/**
+ * Published after a user has been registered with {@code email}.
+ */
+public record UserRegisteredEvent(String email) {
+}
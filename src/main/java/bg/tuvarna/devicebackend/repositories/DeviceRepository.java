@@ -1,16 +1,50 @@
 package bg.tuvarna.devicebackend.repositories;
 
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
+import bg.tuvarna.devicebackend.models.dtos.ExpiringDeviceVO;
 import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 @Repository
-public interface DeviceRepository extends JpaRepository<Device, String> {
+public interface DeviceRepository extends JpaRepository<Device, Long>, DeviceRepositoryCustom {
+    /**
+     * Selects the listing columns of {@code d} and its passport {@code p}.
+     */
+    String LISTING = "select new bg.tuvarna.devicebackend.models.dtos.DeviceListingVO(d.id, d.user.id, d.serialNumber, " +
+            "d.purchaseDate, d.warrantyExpirationDate, d.comment, p.id, p.name, p.model, p.serialPrefix, " +
+            "p.fromSerialNumber, p.toSerialNumber, p.warrantyMonths) ";
+
+    String SEARCH_JOINS = "left join d.user u left join d.passport p ";
+
+    /**
+     * Devices whose serial, owner or passport contains {@code ?1}, ignoring case.
+     */
+    String SEARCH = "(lower(d.serialNumber) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(u.fullName) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(u.address) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(u.email) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(u.phone) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(p.name) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(p.model) LIKE concat('%',lower(?1),'%'))";
+
+    Optional<Device> findBySerialNumber(String serialNumber);
+
+    boolean existsBySerialNumber(String serialNumber);
+
     @Transactional
     @Modifying
     @Query("delete from Device d where d.serialNumber = ?1")
@@ -32,4 +66,86 @@ public interface DeviceRepository extends JpaRepository<Device, String> {
             "left join d.user u " +
             "left join d.passport p ")
     Page<Device> getAllDevices(Pageable pageable);
-}
\ No newline at end of file
+
+    /**
+     * Keyset page of {@link #findAll(String, Pageable)}: the matching devices after {@code afterId}, by id.
+     */
+    @Query(LISTING + "from Device d " + SEARCH_JOINS + "where d.id > ?2 AND " + SEARCH + " order by d.id")
+    List<DeviceListingVO> findAllAfter(String searchBy, long afterId, Pageable pageable);
+
+    @Query("select count(d) from Device d " + SEARCH_JOINS + "where " + SEARCH)
+    long countMatching(String searchBy);
+
+    @Query(LISTING + "from Device d left join d.passport p where d.id > ?1 order by d.id")
+    List<DeviceListingVO> getAllDevicesAfter(long afterId, Pageable pageable);
+
+    @Query(LISTING + "from Device d left join d.passport p where d.id in ?1")
+    List<DeviceListingVO> findListingsByIds(Collection<Long> ids);
+
+    @Query(LISTING + "from Device d left join d.passport p where d.user.id in ?1 order by d.id")
+    List<DeviceListingVO> findListingsByUserIds(Collection<Long> userIds);
+
+    @Query("select d.serialNumber from Device d where d.serialNumber in ?1")
+    List<String> findExistingSerialNumbers(Collection<String> serialNumbers);
+
+    long countByPassportId(Long passportId);
+
+    @Query("select d.id from Device d where d.passport.id = ?1 and d.id > ?2 order by d.id")
+    List<Long> findIdsByPassportAfter(Long passportId, long afterId, Pageable pageable);
+
+    /**
+     * Recomputes the warranty of the passport's devices with ids in ({@code fromId}, {@code toId}] in one statement.
+     */
+    @Modifying
+    @Query("update Device d set d.warrantyExpirationDate = case when d.user is null " +
+            "then d.purchaseDate + ?4 month else d.purchaseDate + ?5 month end, d.version = d.version + 1 " +
+            "where d.passport.id = ?1 and d.id > ?2 and d.id <= ?3")
+    int recomputeWarranty(Long passportId, long fromId, long toId, int anonymousMonths, int ownedMonths);
+
+    /**
+     * Devices whose warranty expires in [{@code from}, {@code to}], after the ({@code afterDate}, {@code afterId})
+     * keyset position, in (warranty expiration date, id) order.
+     */
+    @Query("select new bg.tuvarna.devicebackend.models.dtos.ExpiringDeviceVO(d.id, d.serialNumber, d.purchaseDate, " +
+            "d.warrantyExpirationDate, d.comment, p.id, p.name, p.model, case when d.user is null then false else true end) " +
+            "from Device d left join d.passport p " +
+            "where d.warrantyExpirationDate between ?1 and ?2 " +
+            "and (d.warrantyExpirationDate, d.id) > (?3, ?4) " +
+            "order by d.warrantyExpirationDate, d.id")
+    List<ExpiringDeviceVO> findExpiring(LocalDate from, LocalDate to, LocalDate afterDate, long afterId, Pageable pageable);
+
+    @Query("select count(d) from Device d where d.warrantyExpirationDate between ?1 and ?2")
+    long countExpiring(LocalDate from, LocalDate to);
+
+    @Query("select d.id from Device d where d.serialNumber in ?1")
+    List<Long> findIdsBySerialNumbers(Collection<String> serialNumbers);
+
+    /**
+     * Serial numbers of the given {@code length} from {@code from} to {@code to} and after {@code after}, in order.
+     */
+    @Query("select d.serialNumber from Device d where d.serialNumber between ?1 and ?2 and d.serialNumber > ?3 " +
+            "and length(d.serialNumber) = ?4 order by d.serialNumber")
+    List<String> findSerialNumbersBetweenAfter(String from, String to, String after, int length, Pageable pageable);
+
+    /**
+     * Locks the devices about to be deleted and reads what their deletion events need, without loading the entities.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select new bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent(d.id, d.serialNumber, d.passport.id, " +
+            "case when d.user is null then false else true end, d.warrantyExpirationDate) " +
+            "from Device d where d.id in ?1")
+    List<DeviceDeletedEvent> lockForDeletion(Collection<Long> ids);
+
+    /**
+     * {@link #lockForDeletion} for the device with {@code serialNumber}.
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select new bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent(d.id, d.serialNumber, d.passport.id, " +
+            "case when d.user is null then false else true end, d.warrantyExpirationDate) " +
+            "from Device d where d.serialNumber = ?1")
+    Optional<DeviceDeletedEvent> lockForDeletion(String serialNumber);
+
+    @Modifying
+    @Query("delete from Device d where d.id in ?1")
+    int deleteByIds(Collection<Long> ids);
+}
@@ -0,0 +1,41 @@
+package bg.tuvarna.devicebackend.repositories;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+public interface DeviceRepositoryCustom {
+    /**
+     * The parts of a device row an update needs to report, as they were before it.
+     */
+    record PreviousState(LocalDate warrantyExpirationDate, boolean owned) {
+    }
+
+    /**
+     * Inserts a new device with a single INSERT, flushed right away so a duplicate fails here
+     * rather than at some later commit. Never selects first and never overwrites an existing row.
+     *
+     * @throws org.springframework.dao.DataIntegrityViolationException if the row breaks a constraint; a violation of
+     *                                                                 {@link Device#SERIAL_NUMBER_CONSTRAINT} means the serial
+     *                                                                 number is already registered
+     */
+    Device insert(Device device);
+
+    /**
+     * Applies {@code update} with a single UPDATE, without loading the device, if it is still at
+     * {@code version} and belongs to {@code passportId}, and bumps its version. The warranty becomes
+     * {@code ownedWarranty} for a device with an owner and {@code anonymousWarranty} otherwise.
+     *
+     * @return the device's state before the update, or empty if no row matched
+     */
+    Optional<PreviousState> updateIfVersion(
+            String serialNumber,
+            long version,
+            Long passportId,
+            DeviceUpdateVO update,
+            LocalDate anonymousWarranty,
+            LocalDate ownedWarranty
+    );
+}
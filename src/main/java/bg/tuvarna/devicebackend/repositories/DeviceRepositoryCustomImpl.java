@@ -0,0 +1,73 @@
+package bg.tuvarna.devicebackend.repositories;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.query.NativeQuery;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+public class DeviceRepositoryCustomImpl implements DeviceRepositoryCustom {
+    private static final String UPDATE_SET = "purchase_date = :purchaseDate, comment = :comment, " +
+            "warranty_expiration_date = case when d.user_id is null then cast(:anonymousWarranty as date) else cast(:ownedWarranty as date) end, " +
+            "version = d.version + 1 ";
+    private static final String UPDATE_WHERE = "d.serial_number = :serialNumber and d.version = :version and d.passport_id = :passportId";
+
+    // The self-join reads the row from the statement's snapshot, so it returns the values before the update.
+    private static final String POSTGRES_UPDATE = "update devices d set " + UPDATE_SET +
+            "from devices prev where prev.id = d.id and " + UPDATE_WHERE +
+            " returning prev.warranty_expiration_date as warranty, prev.user_id is not null as owned";
+
+    private static final String H2_UPDATE = "select warranty_expiration_date as warranty, user_id is not null as owned " +
+            "from old table (update devices d set " + UPDATE_SET + "where " + UPDATE_WHERE + ")";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    @Transactional
+    public Device insert(Device device) {
+        entityManager.persist(device);
+        // Flush here so a duplicate key surfaces from this call rather than at some later commit.
+        entityManager.flush();
+        return device;
+    }
+
+    @Override
+    @Transactional
+    @SuppressWarnings("unchecked")
+    public Optional<PreviousState> updateIfVersion(
+            String serialNumber,
+            long version,
+            Long passportId,
+            DeviceUpdateVO update,
+            LocalDate anonymousWarranty,
+            LocalDate ownedWarranty
+    ) {
+        List<Object[]> rows = entityManager.createNativeQuery(isPostgres() ? POSTGRES_UPDATE : H2_UPDATE)
+                .setParameter("purchaseDate", update.purchaseDate())
+                .setParameter("comment", update.comment())
+                .setParameter("anonymousWarranty", anonymousWarranty)
+                .setParameter("ownedWarranty", ownedWarranty)
+                .setParameter("serialNumber", serialNumber)
+                .setParameter("version", version)
+                .setParameter("passportId", passportId)
+                .unwrap(NativeQuery.class)
+                .addScalar("warranty", LocalDate.class)
+                .addScalar("owned", Boolean.class)
+                .getResultList();
+
+        return rows.stream().findFirst().map(row -> new PreviousState((LocalDate) row[0], (Boolean) row[1]));
+    }
+
+    private boolean isPostgres() {
+        return entityManager.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class)
+                .getJdbcServices().getDialect() instanceof PostgreSQLDialect;
+    }
+}
@@ -1,18 +1,40 @@
 package bg.tuvarna.devicebackend.repositories;
 
 import bg.tuvarna.devicebackend.models.entities.Passport;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface PassportRepository extends JpaRepository<Passport, Long> {
-    @Query("select p from Passport p where p.serialPrefix like :serialPrefix and p.fromSerialNumber between :fromSerialNumberStart and :toSerialNumber" +
-            " or p.serialPrefix like :serialPrefix and p.toSerialNumber between :fromSerialNumberStart and :toSerialNumber")
+    /**
+     * Returns the passports of the given prefix whose range overlaps
+     * {@code [fromSerialNumberStart, toSerialNumber]}, including ranges that fully enclose it.
+     */
+    @Query("select p from Passport p where p.serialPrefix = :serialPrefix" +
+            " and p.fromSerialNumber <= :toSerialNumber and p.toSerialNumber >= :fromSerialNumberStart")
     List<Passport> findByFromSerialNumberBetween(String serialPrefix, int fromSerialNumberStart, int toSerialNumber);
 
-    @Query("select p from Passport p where :serialId LIKE CONCAT(p.serialPrefix, '%')")
-    List<Passport> findByFromSerial(String serialId);
-}
\ No newline at end of file
+    /**
+     * The passport listing's page and count queries, cached until the next passport change.
+     */
+    @Override
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "true"))
+    Page<Passport> findAll(Pageable pageable);
+
+    /**
+     * Deletes the passports among {@code ids} that no device references, in one statement.
+     */
+    @Modifying
+    @Query("delete from Passport p where p.id in ?1 and not exists (select d.id from Device d where d.passport = p)")
+    int deleteUnreferencedByIds(Collection<Long> ids);
+}
@@ -1,9 +1,22 @@
 package bg.tuvarna.devicebackend.repositories;
 
+import bg.tuvarna.devicebackend.models.dtos.RenovationListingVO;
 import bg.tuvarna.devicebackend.models.entities.Renovation;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+
 @Repository
 public interface RenovationRepository extends JpaRepository<Renovation, Long> {
-}
\ No newline at end of file
+    @Query("select new bg.tuvarna.devicebackend.models.dtos.RenovationListingVO(r.device.id, r.id, r.description, " +
+            "r.renovationDate) from Renovation r where r.device.id in ?1 order by r.id")
+    List<RenovationListingVO> findListingsByDeviceIds(Collection<Long> deviceIds);
+
+    @Modifying
+    @Query("delete from Renovation r where r.device.id in ?1")
+    int deleteByDeviceIds(Collection<Long> deviceIds);
+}
@@ -1,5 +1,6 @@
 package bg.tuvarna.devicebackend.repositories;
 
+import bg.tuvarna.devicebackend.models.dtos.UserListing;
 import bg.tuvarna.devicebackend.models.entities.User;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
@@ -7,10 +8,27 @@ import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
+    String LISTING = "new bg.tuvarna.devicebackend.models.dtos.UserListing(u.id, u.fullName, u.address, u.phone, u.email) ";
+
+    String SEARCH_JOINS = "left join u.devices d left join d.passport p ";
+
+    /**
+     * Users whose details, or one of whose devices or their passports, contain {@code ?1}, ignoring case.
+     */
+    String SEARCH = "(lower(u.fullName) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(u.address) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(u.email) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(u.phone) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(p.name) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(p.model) LIKE concat('%',lower(?1),'%') OR " +
+            "lower(d.serialNumber) LIKE concat('%',lower(?1),'%'))";
+
     User getByEmail(String email);
 
     @Query("select u from User u where u.email = ?1 OR u.phone = ?1")
@@ -35,4 +53,20 @@ public interface UserRepository extends JpaRepository<User, Long> {
             "left join d.passport p " +
             "where u.role!='ADMIN'")
     Page<User> getAllUsers(Pageable pageable);
-}
\ No newline at end of file
+
+    /**
+     * Keyset page of {@link #searchBy(String, Pageable)}: the matching users after {@code afterId}, by id.
+     */
+    @Query("select distinct " + LISTING + "from User u " + SEARCH_JOINS + "where u.role!='ADMIN' AND u.id > ?2 AND " +
+            SEARCH + " order by u.id")
+    List<UserListing> searchByAfter(String searchBy, long afterId, Pageable pageable);
+
+    @Query("select count(distinct u) from User u " + SEARCH_JOINS + "where u.role!='ADMIN' AND " + SEARCH)
+    long countMatching(String searchBy);
+
+    @Query("select " + LISTING + "from User u where u.role!='ADMIN' AND u.id > ?1 order by u.id")
+    List<UserListing> getAllUsersAfter(long afterId, Pageable pageable);
+
+    @Query("select " + LISTING + "from User u where u.id in ?1")
+    List<UserListing> findListingsByIds(Collection<Long> ids);
+}
@@ -0,0 +1,16 @@
+package bg.tuvarna.devicebackend.repositories;
+
+import bg.tuvarna.devicebackend.models.entities.WarrantyRecomputation;
+import bg.tuvarna.devicebackend.models.enums.RecomputationStatus;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface WarrantyRecomputationRepository extends JpaRepository<WarrantyRecomputation, Long> {
+    Optional<WarrantyRecomputation> findByPassportId(Long passportId);
+
+    List<WarrantyRecomputation> findByStatusOrderById(RecomputationStatus status);
+}
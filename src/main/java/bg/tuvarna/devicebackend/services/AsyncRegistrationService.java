@@ -0,0 +1,311 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.RegistrationStatusVO;
+import bg.tuvarna.devicebackend.models.dtos.UserCreateVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.RegistrationStatus;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.utils.Constraints;
+import bg.tuvarna.devicebackend.utils.MappedJournal;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Optional asynchronous mode for the registration endpoints, for traffic peaks that would otherwise
+ * hold a pooled connection per request. When enabled, a request asking for it with
+ * {@code Prefer: respond-async} only gets the checks that need no database, is appended to a
+ * {@link MappedJournal} and a bounded queue, and is answered with its id; the caller polls its status.
+ * Once {@code queue-capacity} registrations are unacknowledged, queued or being written, or the journal is
+ * full, requests are rejected with {@link ErrorCode#QueueFull}.
+ * <p>
+ * A single writer thread drains the queue and commits up to {@code max-group-size} registrations in
+ * one transaction. If any of them fails, the group is rolled back and its registrations are redone one
+ * at a time, exactly like the synchronous endpoints, to tell which failed. Registrations are
+ * acknowledged in the journal once done, so after a crash the unfinished ones are replayed on startup;
+ * one that committed just before the crash then fails as already registered. A database outage is
+ * retried rather than failing the registrations.
+ * <p>
+ * Passwords are journaled already encoded. Statuses are kept in memory only, for the most recent
+ * {@code max-statuses} registrations.
+ */
+@Service
+public class AsyncRegistrationService {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncRegistrationService.class);
+
+    /**
+     * A journaled registration: a device for {@code userId}, or a user, whose password field holds the encoded password.
+     */
+    private record QueuedRegistration(String id, Long userId, DeviceCreateVO device, UserCreateVO user) {
+    }
+
+    private record Pending(QueuedRegistration registration, long endOffset) {
+    }
+
+    private final DeviceService deviceService;
+    private final UserService userService;
+    private final UserRepository userRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path journalPath;
+    private final int journalSize;
+    private final int queueCapacity;
+    private final int maxGroupSize;
+    private final Duration retryDelay;
+    private final int maxStatuses;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    // Queued plus taken by the writer and not yet acknowledged; changed under the queue's lock when added.
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final LinkedHashMap<String, RegistrationStatusVO> statuses;
+    private final Counter rejected;
+    private MappedJournal journal;
+    private Thread writer;
+    private volatile boolean running;
+
+    public AsyncRegistrationService(
+            DeviceService deviceService,
+            UserService userService,
+            UserRepository userRepository,
+            PlatformTransactionManager transactionManager,
+            ObjectMapper objectMapper,
+            MeterRegistry meterRegistry,
+            @Value("${registration.async.enabled:false}") boolean enabled,
+            @Value("${registration.async.journal-path:data/registrations.journal}") String journalPath,
+            @Value("${registration.async.journal-size:64MB}") DataSize journalSize,
+            @Value("${registration.async.queue-capacity:10000}") int queueCapacity,
+            @Value("${registration.async.max-group-size:100}") int maxGroupSize,
+            @Value("${registration.async.retry-delay:1s}") Duration retryDelay,
+            @Value("${registration.async.max-statuses:100000}") int maxStatuses
+    ) {
+        this.deviceService = deviceService;
+        this.userService = userService;
+        this.userRepository = userRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.journalPath = Path.of(journalPath);
+        this.journalSize = Math.toIntExact(journalSize.toBytes());
+        this.queueCapacity = queueCapacity;
+        this.maxGroupSize = maxGroupSize;
+        this.retryDelay = retryDelay;
+        this.maxStatuses = maxStatuses;
+        this.statuses = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RegistrationStatusVO> eldest) {
+                return size() > AsyncRegistrationService.this.maxStatuses;
+            }
+        };
+        this.rejected = meterRegistry.counter("registration.async.rejected");
+        Gauge.builder("registration.async.queue.size", backlog, AtomicInteger::get).register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        journal = new MappedJournal(journalPath, journalSize);
+        for (MappedJournal.Entry entry : journal.unacknowledged()) {
+            QueuedRegistration registration = objectMapper.readValue(entry.payload(), QueuedRegistration.class);
+            queue.add(new Pending(registration, entry.endOffset()));
+            backlog.incrementAndGet();
+            setStatus(registration.id(), RegistrationStatus.QUEUED, null);
+        }
+        if (!queue.isEmpty()) {
+            logger.info("Replaying {} queued registrations from {}", queue.size(), journalPath);
+        }
+
+        running = true;
+        writer = new Thread(this::drain, "registration-writer");
+        writer.start();
+    }
+
+    @PreDestroy
+    void stop() throws IOException, InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        // Whatever is still queued stays in the journal for the next start.
+        running = false;
+        writer.join();
+        journal.close();
+    }
+
+    /**
+     * Whether a request with this {@code Prefer} header should be queued rather than registered right away.
+     */
+    public boolean accepts(String prefer) {
+        return enabled && prefer != null && prefer.contains("respond-async");
+    }
+
+    public RegistrationStatusVO submitDevice(DeviceCreateVO device, User user) {
+        deviceService.validateRegistration(device, user);
+        return submit(new QueuedRegistration(UUID.randomUUID().toString(), user.getId(), device, null));
+    }
+
+    public RegistrationStatusVO submitUser(UserCreateVO user) {
+        userService.validateRegistration(user);
+        UserCreateVO encoded = new UserCreateVO(
+                user.fullName(), userService.encodePassword(user.password()), user.email(), user.phone(),
+                user.address(), user.purchaseDate(), user.deviceSerialNumber()
+        );
+        return submit(new QueuedRegistration(UUID.randomUUID().toString(), null, null, encoded));
+    }
+
+    public RegistrationStatusVO getStatus(String id) {
+        synchronized (statuses) {
+            RegistrationStatusVO status = statuses.get(id);
+            if (status == null) {
+                throw new CustomException("Registration not found", ErrorCode.EntityNotFound);
+            }
+            return status;
+        }
+    }
+
+    private RegistrationStatusVO submit(QueuedRegistration registration) {
+        byte[] payload;
+        try {
+            payload = objectMapper.writeValueAsBytes(registration);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // Journal order has to match queue order, since the writer acknowledges in queue order.
+        synchronized (queue) {
+            long endOffset = backlog.get() < queueCapacity ? journal.append(payload) : -1;
+            if (endOffset < 0) {
+                rejected.increment();
+                throw new CustomException("Too many registrations in progress, try again later", ErrorCode.QueueFull);
+            }
+            setStatus(registration.id(), RegistrationStatus.QUEUED, null);
+            queue.add(new Pending(registration, endOffset));
+            backlog.incrementAndGet();
+        }
+        return new RegistrationStatusVO(registration.id(), RegistrationStatus.QUEUED, null);
+    }
+
+    private void drain() {
+        List<Pending> group = new ArrayList<>(maxGroupSize);
+        while (running || !group.isEmpty()) {
+            try {
+                if (group.isEmpty()) {
+                    Pending first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    group.add(first);
+                    queue.drainTo(group, maxGroupSize - 1);
+                }
+                writeGroup(group);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                if (!running) {
+                    // Left in the journal; replayed on the next start.
+                    return;
+                }
+                logger.warn("Writing {} queued registrations failed, retrying: {}", group.size(), e.getMessage());
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits the group in one transaction, or one by one if that fails. Done registrations are removed from
+     * {@code group} and acknowledged; only a registration being rejected counts as done when it fails. Any other
+     * exception, such as the database being unreachable, leaves the failing registration and the rest in
+     * {@code group} and the journal, to be retried.
+     */
+    private void writeGroup(List<Pending> group) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> group.forEach(pending -> write(pending.registration())));
+            for (Pending pending : group) {
+                setStatus(pending.registration().id(), RegistrationStatus.REGISTERED, null);
+            }
+            journal.acknowledge(group.get(group.size() - 1).endOffset());
+            backlog.addAndGet(-group.size());
+            group.clear();
+            return;
+        } catch (RuntimeException e) {
+            // Rolled back; find out which registration is to blame.
+        }
+
+        for (Iterator<Pending> iterator = group.iterator(); iterator.hasNext(); ) {
+            Pending pending = iterator.next();
+            try {
+                // Its own transaction, so a user is not left behind without the device that failed.
+                transactionTemplate.executeWithoutResult(status -> write(pending.registration()));
+                setStatus(pending.registration().id(), RegistrationStatus.REGISTERED, null);
+            } catch (CustomException e) {
+                setStatus(pending.registration().id(), RegistrationStatus.FAILED, e.getMessage());
+            } catch (DataIntegrityViolationException e) {
+                setStatus(pending.registration().id(), RegistrationStatus.FAILED, integrityFailure(e));
+            }
+            journal.acknowledge(pending.endOffset());
+            backlog.decrementAndGet();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Losing a race with a concurrent registration of the same serial, email or phone means it is already
+     * registered; any other violation, such as the user having been deleted meanwhile, is reported as it is.
+     */
+    private static String integrityFailure(DataIntegrityViolationException e) {
+        if (Constraints.isViolated(e, Device.SERIAL_NUMBER_CONSTRAINT)
+                || Constraints.isViolated(e, User.EMAIL_CONSTRAINT)
+                || Constraints.isViolated(e, User.PHONE_CONSTRAINT)) {
+            return "Already registered";
+        }
+        return e.getMostSpecificCause().getMessage();
+    }
+
+    private void write(QueuedRegistration registration) {
+        if (registration.user() != null) {
+            userService.register(registration.user(), registration.user().password());
+            return;
+        }
+
+        // A reference is all the insert needs; loading the user would also load all of their devices.
+        User user = userRepository.getReferenceById(registration.userId());
+        DeviceCreateVO device = registration.device();
+        deviceService.registerDevice(device.deviceSerialNumber(), device.purchaseDate(), user);
+    }
+
+    private void setStatus(String id, RegistrationStatus status, String error) {
+        synchronized (statuses) {
+            statuses.put(id, new RegistrationStatusVO(id, status, error));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkDeleteResultVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkDeleteVO;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.RenovationRepository;
+import bg.tuvarna.devicebackend.utils.SerialNumber;
+import lombok.AllArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Deletes devices in bulk, in chunks of {@value #CHUNK_SIZE}, without loading them as entities.
+ * Each chunk is resolved to device ids, which are then locked while reading what their
+ * {@link DeviceDeletedEvent}s need, and deleted together with their renovations by two set-based
+ * statements in the chunk's own transaction. A large deletion therefore never holds one long transaction,
+ * and a failure only rolls back the chunk it happened in.
+ * <p>
+ * A passport is deleted after its devices by one statement that leaves it alone if a device still
+ * references it. A request covers one passport; deleting several means a request for each.
+ */
+@Service
+@AllArgsConstructor
+public class DeviceBulkDeletionService {
+    static final int CHUNK_SIZE = 1000;
+
+    private final DeviceRepository deviceRepository;
+    private final RenovationRepository renovationRepository;
+    private final PassportService passportService;
+    private final TransactionTemplate transactionTemplate;
+    private final ApplicationEventPublisher eventPublisher;
+
+    public DeviceBulkDeleteResultVO delete(DeviceBulkDeleteVO request) {
+        boolean bySerialNumbers = request.serialNumbers() != null;
+        boolean byRange = request.serialPrefix() != null
+                || request.fromSerialNumber() != null
+                || request.toSerialNumber() != null;
+        boolean byPassport = request.passportId() != null;
+        if ((bySerialNumbers ? 1 : 0) + (byRange ? 1 : 0) + (byPassport ? 1 : 0) != 1) {
+            throw new CustomException("Give either serial numbers, a serial range or a passport id", ErrorCode.Validation);
+        }
+        if (request.deletePassport() && !byPassport) {
+            throw new CustomException("Only a passport id can delete the passport as well", ErrorCode.Validation);
+        }
+
+        if (bySerialNumbers) {
+            return deleteBySerialNumbers(request.serialNumbers());
+        }
+        if (byRange) {
+            return deleteBySerialRange(request.serialPrefix(), request.fromSerialNumber(), request.toSerialNumber());
+        }
+        return deleteByPassport(request.passportId(), request.deletePassport());
+    }
+
+    public DeviceBulkDeleteResultVO deleteBySerialNumbers(List<String> serialNumbers) {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(serialNumbers));
+        Counts counts = new Counts();
+        for (int from = 0; from < distinct.size(); from += CHUNK_SIZE) {
+            List<String> chunk = distinct.subList(from, Math.min(from + CHUNK_SIZE, distinct.size()));
+            counts.add(deleteChunk(deviceRepository.findIdsBySerialNumbers(chunk)));
+        }
+        return counts.result(null);
+    }
+
+    /**
+     * Deletes the devices whose serial is {@code prefix} followed by a number in [{@code from}, {@code to}],
+     * the same way a passport's serial range is matched. Digits of the same length compare like their numbers,
+     * so for each length the number may be written with, leading zeros included, only the serials between the
+     * lowest and highest number of that length are read.
+     */
+    public DeviceBulkDeleteResultVO deleteBySerialRange(String prefix, Integer from, Integer to) {
+        if (prefix == null || prefix.isBlank() || from == null || to == null || from < 0 || from > to) {
+            throw new CustomException("A serial range needs a prefix and from <= to", ErrorCode.Validation);
+        }
+
+        Counts counts = new Counts();
+        for (int digits = String.valueOf(from).length(); prefix.length() + digits <= SerialNumber.MAX_LENGTH; digits++) {
+            String lowest = prefix + padded(from, digits);
+            String highest = prefix + (String.valueOf(to).length() <= digits ? padded(to, digits) : "9".repeat(digits));
+            String after = "";
+            while (true) {
+                List<String> serialNumbers = deviceRepository.findSerialNumbersBetweenAfter(
+                        lowest, highest, after, lowest.length(), PageRequest.of(0, CHUNK_SIZE));
+                if (serialNumbers.isEmpty()) {
+                    break;
+                }
+
+                // Other characters can sort between digits too.
+                List<String> inRange = new ArrayList<>();
+                for (String serialNumber : serialNumbers) {
+                    int number = SerialNumber.parseNumber(serialNumber, prefix.length());
+                    if (number >= from && number <= to) {
+                        inRange.add(serialNumber);
+                    }
+                }
+                if (!inRange.isEmpty()) {
+                    counts.add(deleteChunk(deviceRepository.findIdsBySerialNumbers(inRange)));
+                }
+                after = serialNumbers.get(serialNumbers.size() - 1);
+            }
+        }
+        return counts.result(null);
+    }
+
+    public DeviceBulkDeleteResultVO deleteByPassport(Long passportId, boolean deletePassport) {
+        Counts counts = new Counts();
+        long afterId = 0;
+        while (true) {
+            List<Long> ids = deviceRepository.findIdsByPassportAfter(passportId, afterId, PageRequest.of(0, CHUNK_SIZE));
+            if (ids.isEmpty()) {
+                break;
+            }
+            counts.add(deleteChunk(ids));
+            afterId = ids.get(ids.size() - 1);
+        }
+
+        if (!deletePassport) {
+            return counts.result(null);
+        }
+        try {
+            // Not deleted if devices were registered to it while the deletion ran.
+            return counts.result(passportService.deleteUnused(List.of(passportId)) > 0);
+        } catch (DataIntegrityViolationException e) {
+            // One was registered while the passport was being deleted.
+            return counts.result(false);
+        }
+    }
+
+    /**
+     * @return the deleted devices and renovations
+     */
+    private long[] deleteChunk(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return new long[2];
+        }
+
+        return transactionTemplate.execute(status -> {
+            List<DeviceDeletedEvent> events = deviceRepository.lockForDeletion(ids);
+            int renovations = renovationRepository.deleteByDeviceIds(ids);
+            int devices = deviceRepository.deleteByIds(ids);
+            // Delivered after the commit, like the events of a single deletion.
+            events.forEach(eventPublisher::publishEvent);
+            return new long[]{devices, renovations};
+        });
+    }
+
+    private static String padded(int number, int digits) {
+        String value = String.valueOf(number);
+        return "0".repeat(digits - value.length()) + value;
+    }
+
+    private static final class Counts {
+        private long devices;
+        private long renovations;
+
+        void add(long[] deleted) {
+            devices += deleted[0];
+            renovations += deleted[1];
+        }
+
+        DeviceBulkDeleteResultVO result(Boolean passportDeleted) {
+            return new DeviceBulkDeleteResultVO(devices, renovations, passportDeleted);
+        }
+    }
+}
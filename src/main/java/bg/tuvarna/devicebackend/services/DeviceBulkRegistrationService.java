@@ -0,0 +1,179 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkResultVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.utils.Constraints;
+import bg.tuvarna.devicebackend.utils.SerialNumber;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.AllArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Registers anonymous devices in bulk, in chunks of {@value #CHUNK_SIZE}.
+ * Passports are resolved from the in-memory serial index, serials that may already be registered are
+ * checked with one {@code IN} query per chunk and the rest are inserted with one JDBC batch in the
+ * chunk's own transaction.
+ */
+@Service
+@AllArgsConstructor
+public class DeviceBulkRegistrationService {
+    static final int CHUNK_SIZE = 1000;
+
+    private static final String INSERT_SQL = "insert into devices " +
+            "(serial_number, purchase_date, warranty_expiration_date, passport_id) values (?, ?, ?, ?)";
+
+    private final PassportSerialIndex passportSerialIndex;
+    private final DeviceRegistrationIndex deviceRegistrationIndex;
+    private final DeviceRepository deviceRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Validator validator;
+    private final ApplicationEventPublisher eventPublisher;
+
+    /**
+     * @return one result per requested device, in request order
+     */
+    public List<DeviceBulkResultVO> registerDevices(List<DeviceCreateVO> devices) {
+        List<DeviceBulkResultVO> results = new ArrayList<>(devices.size());
+        Set<String> seen = new HashSet<>();
+        for (int from = 0; from < devices.size(); from += CHUNK_SIZE) {
+            registerChunk(devices.subList(from, Math.min(from + CHUNK_SIZE, devices.size())), seen, results);
+        }
+        return results;
+    }
+
+    private void registerChunk(List<DeviceCreateVO> devices, Set<String> seen, List<DeviceBulkResultVO> results) {
+        String[] errors = new String[devices.size()];
+        List<String> serialNumbers = new ArrayList<>(devices.size());
+        for (DeviceCreateVO device : devices) {
+            serialNumbers.add(device != null ? device.deviceSerialNumber() : null);
+        }
+        Passport[] passports = passportSerialIndex.snapshot().findAll(serialNumbers);
+
+        List<String> unknown = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++) {
+            errors[i] = validate(devices.get(i), passports[i], seen);
+            if (errors[i] == null) {
+                DeviceRegistrationIndex.Status status = deviceRegistrationIndex.status(serialNumbers.get(i));
+                if (status == DeviceRegistrationIndex.Status.REGISTERED) {
+                    errors[i] = "Device already registered";
+                } else if (status == DeviceRegistrationIndex.Status.UNKNOWN) {
+                    unknown.add(serialNumbers.get(i));
+                }
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            Set<String> existing = new HashSet<>(deviceRepository.findExistingSerialNumbers(unknown));
+            for (String serialNumber : unknown) {
+                if (!existing.contains(serialNumber)) {
+                    deviceRegistrationIndex.recordAbsent(serialNumber);
+                }
+            }
+            for (int i = 0; i < devices.size(); i++) {
+                if (errors[i] == null && existing.contains(serialNumbers.get(i))) {
+                    errors[i] = "Device already registered";
+                }
+            }
+        }
+
+        List<Integer> accepted = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++) {
+            if (errors[i] == null) {
+                accepted.add(i);
+            }
+        }
+
+        try {
+            transactionTemplate.executeWithoutResult(status -> insertBatch(accepted, devices, passports));
+        } catch (DataIntegrityViolationException e) {
+            // A concurrent registration took one of the serials; find out which.
+            insertOneByOne(accepted, devices, passports, errors);
+        }
+
+        for (int i = 0; i < devices.size(); i++) {
+            if (errors[i] == null) {
+                eventPublisher.publishEvent(new DeviceRegisteredEvent(
+                        serialNumbers.get(i), passports[i].getId(), false, warrantyExpirationDate(devices.get(i), passports[i])));
+                results.add(DeviceBulkResultVO.registered(serialNumbers.get(i)));
+            } else {
+                results.add(DeviceBulkResultVO.rejected(serialNumbers.get(i), errors[i]));
+            }
+        }
+    }
+
+    private String validate(DeviceCreateVO device, Passport passport, Set<String> seen) {
+        if (device == null) {
+            return "Device is required";
+        }
+
+        Set<ConstraintViolation<DeviceCreateVO>> violations = validator.validate(device);
+        if (!violations.isEmpty()) {
+            return violations.iterator().next().getMessage();
+        }
+        if (!SerialNumber.isValid(device.deviceSerialNumber()) || passport == null) {
+            return "Invalid serial number";
+        }
+        if (!seen.add(device.deviceSerialNumber())) {
+            return "Duplicate serial number in request";
+        }
+        return null;
+    }
+
+    private void insertBatch(List<Integer> positions, List<DeviceCreateVO> devices, Passport[] passports) {
+        if (positions.isEmpty()) {
+            return;
+        }
+
+        jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement statement, int i) throws SQLException {
+                int position = positions.get(i);
+                DeviceCreateVO device = devices.get(position);
+                statement.setString(1, device.deviceSerialNumber());
+                statement.setDate(2, Date.valueOf(device.purchaseDate()));
+                statement.setDate(3, Date.valueOf(warrantyExpirationDate(device, passports[position])));
+                statement.setLong(4, passports[position].getId());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return positions.size();
+            }
+        });
+    }
+
+    private void insertOneByOne(List<Integer> positions, List<DeviceCreateVO> devices, Passport[] passports, String[] errors) {
+        for (int i : positions) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> insertBatch(List.of(i), devices, passports));
+            } catch (DataIntegrityViolationException e) {
+                if (!Constraints.isViolated(e, Device.SERIAL_NUMBER_CONSTRAINT)) {
+                    throw e;
+                }
+                errors[i] = "Device already registered";
+            }
+        }
+    }
+
+    // Same rule as DeviceService.addAnonymousDevice: anonymous devices get no extra year.
+    private static LocalDate warrantyExpirationDate(DeviceCreateVO device, Passport passport) {
+        return device.purchaseDate().plusMonths(passport.getWarrantyMonths());
+    }
+}
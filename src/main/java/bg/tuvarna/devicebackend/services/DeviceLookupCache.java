@@ -0,0 +1,78 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceVO;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.utils.NegativeCache;
+import bg.tuvarna.devicebackend.utils.RequestCoalescer;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+
+/**
+ * Serves the public device lookups, which are hit with many unknown and repeated serials.
+ * Recently missed serials are answered from a bounded {@link NegativeCache} without a query,
+ * and concurrent lookups of the same serial share one query. Because their result is shared across
+ * threads, it is an immutable {@link DeviceVO} rather than an entity managed by the loading thread.
+ * Found devices are never cached.
+ */
+@Service
+public class DeviceLookupCache {
+    private final DeviceRepository deviceRepository;
+    private final NegativeCache<String> negativeCache;
+    private final RequestCoalescer<String, DeviceVO> coalescer;
+    private final Counter hits;
+    private final Counter misses;
+
+    public DeviceLookupCache(
+            DeviceRepository deviceRepository,
+            MeterRegistry meterRegistry,
+            @Value("${devices.lookup.negative-cache.max-size:100000}") int maxSize,
+            @Value("${devices.lookup.negative-cache.ttl:30s}") Duration ttl
+    ) {
+        this.deviceRepository = deviceRepository;
+        this.negativeCache = new NegativeCache<>(maxSize, ttl.toNanos());
+
+        this.hits = meterRegistry.counter("devices.lookup.negative.cache", "result", "hit");
+        this.misses = meterRegistry.counter("devices.lookup.negative.cache", "result", "miss");
+        Counter coalesced = meterRegistry.counter("devices.lookup.coalesced");
+        this.coalescer = new RequestCoalescer<>(coalesced::increment);
+        Gauge.builder("devices.lookup.negative.cache.size", negativeCache, NegativeCache::size).register(meterRegistry);
+    }
+
+    /**
+     * @return the device, or null if no device is registered under {@code serialNumber}
+     */
+    public DeviceVO find(String serialNumber) {
+        if (negativeCache.contains(serialNumber)) {
+            hits.increment();
+            return null;
+        }
+
+        misses.increment();
+        return coalescer.load(serialNumber, key -> {
+            long generation = negativeCache.generation();
+            DeviceVO device = deviceRepository.findBySerialNumber(key).map(DeviceVO::new).orElse(null);
+            if (device == null) {
+                negativeCache.put(key, generation);
+            }
+            return device;
+        });
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceRegistered(DeviceRegisteredEvent event) {
+        negativeCache.invalidate(event.serialNumber());
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPassportsChanged(PassportsChangedEvent event) {
+        negativeCache.clear();
+    }
+}
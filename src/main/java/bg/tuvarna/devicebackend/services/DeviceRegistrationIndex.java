@@ -0,0 +1,339 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.utils.ScalableBloomFilter;
+import bg.tuvarna.devicebackend.utils.SerialBitmap;
+import bg.tuvarna.devicebackend.utils.SerialNumber;
+import bg.tuvarna.devicebackend.utils.SerialRangeIndex;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps one {@link SerialBitmap} per passport with the offsets ({@code serial - fromSerialNumber})
+ * of its registered devices, so existence checks don't need a query.
+ * <p>
+ * Serials are assigned to passports with a {@link SerialRangeIndex} built together with the
+ * bitmaps, so lookups and updates always agree on which bitmap a serial belongs to. A serial
+ * that index can't place (no passport, a passport newer than the bitmaps, or outside its passport's
+ * range after the range changed) goes into a {@link ScalableBloomFilter} instead, seeded by the same
+ * key-only scan and sized for {@code devices.registry.filter.false-positive-rate}. It is reported as
+ * {@link Status#NOT_REGISTERED} when the filter has definitely not seen it, and otherwise as
+ * {@link Status#UNKNOWN}, in which case callers fall back to the database and report what they found
+ * with {@link #recordAbsent} so the filter's observed false-positive rate can be tracked.
+ * <p>
+ * Bitmaps are built at startup and updated after commit on device registration and deletion.
+ * Changes arriving while a rebuild scans the table are replayed onto the new bitmaps before they
+ * replace the old ones. A passport change makes the bitmaps stale and starts a rebuild in the
+ * background; changes arriving while it runs are coalesced into one more rebuild. Until the bitmaps
+ * have caught up with the last passport change every serial is {@link Status#UNKNOWN}.
+ * <p>
+ * Only changes made through this instance are seen, like {@link PassportSerialIndex}, so unless a
+ * deployment runs a single instance and opts in with {@code devices.registry.single-instance=true},
+ * the index is never built and every serial is {@link Status#UNKNOWN}.
+ */
+@Service
+public class DeviceRegistrationIndex {
+    private static final Logger logger = LoggerFactory.getLogger(DeviceRegistrationIndex.class);
+    private static final int FETCH_SIZE = 10_000;
+
+    public enum Status {
+        REGISTERED, NOT_REGISTERED, UNKNOWN
+    }
+
+    /**
+     * @param generation the number of passport changes the state reflects
+     */
+    private record State(SerialRangeIndex passports, Map<Long, SerialBitmap> bitmaps, ScalableBloomFilter unplaced,
+                         long generation) {
+    }
+
+    private record Change(String serialNumber, boolean registered) {
+    }
+
+    private final PassportRepository passportRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    private final int filterInitialCapacity;
+    private final double filterFalsePositiveRate;
+    private final boolean singleInstance;
+    private final AtomicLong passportChanges = new AtomicLong();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final LongAdder filterNegatives = new LongAdder();
+    private final LongAdder filterFalsePositives = new LongAdder();
+    private final Object lock = new Object();
+    private volatile State state;
+    private List<Change> pending;
+
+    public DeviceRegistrationIndex(
+            PassportRepository passportRepository,
+            JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${devices.registry.filter.initial-capacity:10000}") int filterInitialCapacity,
+            @Value("${devices.registry.filter.false-positive-rate:0.01}") double filterFalsePositiveRate,
+            @Value("${devices.registry.single-instance:false}") boolean singleInstance
+    ) {
+        this.passportRepository = passportRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.filterInitialCapacity = filterInitialCapacity;
+        this.filterFalsePositiveRate = filterFalsePositiveRate;
+        this.singleInstance = singleInstance;
+        if (singleInstance) {
+            logger.warn("Device registry answers from memory; registrations through other instances sharing " +
+                    "the database are not seen. Set devices.registry.single-instance=false if there are any.");
+        }
+
+        Gauge.builder("devices.registry.devices", this, DeviceRegistrationIndex::registeredDevices).register(meterRegistry);
+        Gauge.builder("devices.registry.bytes", this, DeviceRegistrationIndex::sizeInBytes).register(meterRegistry);
+        Gauge.builder("devices.registry.bytes.per.million", this, DeviceRegistrationIndex::bytesPerMillion).register(meterRegistry);
+        Gauge.builder("devices.registry.filter.keys", this, DeviceRegistrationIndex::filterKeys).register(meterRegistry);
+        Gauge.builder("devices.registry.filter.bytes", this, DeviceRegistrationIndex::filterSizeInBytes).register(meterRegistry);
+        Gauge.builder("devices.registry.filter.false.positive.rate", this, DeviceRegistrationIndex::observedFalsePositiveRate)
+                .description("Share of absent serials the Bloom filter could not rule out")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void rebuild() {
+        if (!singleInstance) {
+            return;
+        }
+        synchronized (this) {
+            synchronized (lock) {
+                pending = new ArrayList<>();
+            }
+
+            long start = System.nanoTime();
+            State built;
+            try {
+                built = scan();
+            } catch (RuntimeException e) {
+                synchronized (lock) {
+                    pending = null;
+                }
+                throw e;
+            }
+
+            synchronized (lock) {
+                for (Change change : pending) {
+                    apply(built, change.serialNumber(), change.registered());
+                }
+                pending = null;
+                state = built;
+            }
+
+            logger.info("Indexed {} registered devices in {} passport bitmaps ({} bytes, {} bytes per million) " +
+                            "and {} unplaced serials in a Bloom filter ({} bytes) in {} ms",
+                    registeredDevices(), built.bitmaps().size(), sizeInBytes(), Math.round(bytesPerMillion()),
+                    built.unplaced().size(), built.unplaced().sizeInBytes(), (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    private State scan() {
+        // Read before the passports, so a change that comes in during the scan leaves the result stale.
+        long generation = passportChanges.get();
+        State built = new State(SerialRangeIndex.of(passportRepository.findAll()), new ConcurrentHashMap<>(),
+                new ScalableBloomFilter(filterInitialCapacity, filterFalsePositiveRate), generation);
+
+        // A read-only transaction lets the driver stream the rows with a cursor instead of buffering them all.
+        readOnlyTransaction.executeWithoutResult(status -> jdbcTemplate.query(
+                connection -> {
+                    PreparedStatement statement = connection.prepareStatement("select serial_number from devices");
+                    statement.setFetchSize(FETCH_SIZE);
+                    return statement;
+                },
+                resultSet -> {
+                    apply(built, resultSet.getString(1), true);
+                }
+        ));
+        return built;
+    }
+
+    public Status status(String serialNumber) {
+        State current = state;
+        if (!isCurrent(current) || serialNumber == null) {
+            return Status.UNKNOWN;
+        }
+
+        Passport passport = current.passports().find(serialNumber);
+        if (passport == null) {
+            // Current implies a single instance, so the filter has seen every registration.
+            if (current.unplaced().mightContain(serialNumber)) {
+                return Status.UNKNOWN;
+            }
+            filterNegatives.increment();
+            return Status.NOT_REGISTERED;
+        }
+
+        SerialBitmap bitmap = current.bitmaps().get(passport.getId());
+        return bitmap != null && bitmap.contains(offset(passport, serialNumber)) ? Status.REGISTERED : Status.NOT_REGISTERED;
+    }
+
+    /**
+     * Reports that a serial answered with {@link Status#UNKNOWN} turned out not to be registered.
+     */
+    public void recordAbsent(String serialNumber) {
+        State current = state;
+        if (isCurrent(current) && serialNumber != null && current.passports().find(serialNumber) == null) {
+            filterFalsePositives.increment();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceRegistered(DeviceRegisteredEvent event) {
+        record(event.serialNumber(), true);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceDeleted(DeviceDeletedEvent event) {
+        record(event.serialNumber(), false);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPassportsChanged(PassportsChangedEvent event) {
+        passportChanges.incrementAndGet();
+        if (singleInstance) {
+            startRebuild();
+        }
+    }
+
+    /**
+     * Whether the bitmaps reflect every passport change, and every device change can have reached them.
+     */
+    public boolean isCurrent() {
+        return isCurrent(state);
+    }
+
+    private boolean isCurrent(State current) {
+        return singleInstance && caughtUp(current);
+    }
+
+    private boolean caughtUp(State current) {
+        return current != null && current.generation() == passportChanges.get();
+    }
+
+    /**
+     * Rebuilds on a thread of its own until the bitmaps have caught up with the passport changes,
+     * unless such a thread is already running, which then picks up the latest change too.
+     */
+    private void startRebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(this::rebuildUntilCurrent, "device-registry-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void rebuildUntilCurrent() {
+        try {
+            while (!caughtUp(state)) {
+                rebuild();
+            }
+        } catch (RuntimeException e) {
+            // Left stale, so serials stay database lookups until the next passport change retries.
+            logger.error("Rebuilding the device registry failed", e);
+            return;
+        } finally {
+            rebuilding.set(false);
+        }
+        // A change that came in after the last check but before the flag was cleared started no thread.
+        if (!caughtUp(state)) {
+            startRebuild();
+        }
+    }
+
+    private void record(String serialNumber, boolean registered) {
+        synchronized (lock) {
+            if (pending != null) {
+                pending.add(new Change(serialNumber, registered));
+            }
+            if (state != null) {
+                apply(state, serialNumber, registered);
+            }
+        }
+    }
+
+    private static void apply(State state, String serialNumber, boolean registered) {
+        Passport passport = state.passports().find(serialNumber);
+        if (passport == null) {
+            // A Bloom filter can't forget a key; a deleted serial just stays a database lookup.
+            if (registered) {
+                state.unplaced().add(serialNumber);
+            }
+            return;
+        }
+
+        int offset = offset(passport, serialNumber);
+        if (registered) {
+            state.bitmaps().computeIfAbsent(passport.getId(), id -> new SerialBitmap()).add(offset);
+        } else {
+            SerialBitmap bitmap = state.bitmaps().get(passport.getId());
+            if (bitmap != null) {
+                bitmap.remove(offset);
+            }
+        }
+    }
+
+    private static int offset(Passport passport, String serialNumber) {
+        return SerialNumber.parseNumber(serialNumber, passport.getSerialPrefix().length()) - passport.getFromSerialNumber();
+    }
+
+    public long registeredDevices() {
+        State current = state;
+        return current == null ? 0 : current.bitmaps().values().stream().mapToLong(SerialBitmap::cardinality).sum();
+    }
+
+    public long sizeInBytes() {
+        State current = state;
+        return current == null ? 0 : current.bitmaps().values().stream().mapToLong(SerialBitmap::sizeInBytes).sum();
+    }
+
+    /**
+     * False positives over all absent serials the filter was asked about, or 0 before any were.
+     */
+    public double observedFalsePositiveRate() {
+        long falsePositives = filterFalsePositives.sum();
+        long negatives = falsePositives + filterNegatives.sum();
+        return negatives == 0 ? 0 : (double) falsePositives / negatives;
+    }
+
+    public long filterKeys() {
+        State current = state;
+        return current == null ? 0 : current.unplaced().size();
+    }
+
+    public long filterSizeInBytes() {
+        State current = state;
+        return current == null ? 0 : current.unplaced().sizeInBytes();
+    }
+
+    public double bytesPerMillion() {
+        long devices = registeredDevices();
+        return devices == 0 ? 0 : sizeInBytes() * 1_000_000.0 / devices;
+    }
+}
@@ -3,25 +3,62 @@ package bg.tuvarna.devicebackend.services;
 import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
 import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
 import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
 import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceVO;
+import bg.tuvarna.devicebackend.models.dtos.RenovationListingVO;
 import bg.tuvarna.devicebackend.models.entities.Device;
 import bg.tuvarna.devicebackend.models.entities.Passport;
 import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceUpdatedEvent;
 import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.DeviceRepositoryCustom;
+import bg.tuvarna.devicebackend.repositories.RenovationRepository;
+import bg.tuvarna.devicebackend.utils.Constraints;
+import bg.tuvarna.devicebackend.utils.Cursors;
 import bg.tuvarna.devicebackend.utils.CustomPage;
+import bg.tuvarna.devicebackend.utils.SerialNumber;
 import jakarta.transaction.Transactional;
 import lombok.AllArgsConstructor;
-import org.springframework.data.domain.Page;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
 @Service
 @AllArgsConstructor
 public class DeviceService {
+    /**
+     * Devices whose renovations are fetched by one query; a user's devices can exceed what one statement can bind.
+     */
+    private static final int RENOVATION_BATCH_SIZE = 1000;
+
     private final DeviceRepository deviceRepository;
+    private final RenovationRepository renovationRepository;
     private final PassportService passportService;
+    private final PassportSerialIndex passportSerialIndex;
+    private final DeviceLookupCache deviceLookupCache;
+    private final DeviceRegistrationIndex deviceRegistrationIndex;
+    private final ListingCountService listingCountService;
+    private final ListingSearchService listingSearchService;
+    private final SearchIndexService searchIndexService;
+    private final ApplicationEventPublisher eventPublisher;
 
     public Device registerDevice(String serialId, LocalDate purchaseDate, User user) {
         try {
@@ -34,40 +71,147 @@ public class DeviceService {
             device.setPurchaseDate(purchaseDate);
             device.setWarrantyExpirationDate(purchaseDate.plusMonths(passport.getWarrantyMonths()).plusMonths(12));
 
-            return deviceRepository.save(device);
+            Device saved = deviceRepository.insert(device);
+            eventPublisher.publishEvent(new DeviceRegisteredEvent(saved));
+            return saved;
+        } catch (DataIntegrityViolationException e) {
+            throw alreadyRegisteredOr(e);
+        } catch (DataAccessException e) {
+            // The database failing is not the serial number's fault; callers may retry.
+            throw e;
         } catch (RuntimeException e) {
             throw new CustomException("Invalid serial number", ErrorCode.Failed);
         }
     }
 
+    /**
+     * A duplicate serial becomes {@link ErrorCode#AlreadyExists}; any other violation is returned as it is.
+     */
+    private static RuntimeException alreadyRegisteredOr(DataIntegrityViolationException e) {
+        if (Constraints.isViolated(e, Device.SERIAL_NUMBER_CONSTRAINT)) {
+            return new CustomException("Device already registered", ErrorCode.AlreadyExists);
+        }
+        return e;
+    }
+
     public Device findDevice(String id) {
-        return deviceRepository.findById(id).orElse(null);
+        return deviceRepository.findBySerialNumber(id).orElse(null);
     }
 
-    public Device isDeviceExists(String id) {
-        if (!deviceRepository.existsById(id))
+    public DeviceVO isDeviceExists(String id) {
+        if (deviceRegistrationIndex.status(id) == DeviceRegistrationIndex.Status.NOT_REGISTERED)
             throw new CustomException("Device not registered", ErrorCode.NotRegistered);
-        return findDevice(id);
+
+        DeviceVO device = deviceLookupCache.find(id);
+        if (device == null) {
+            deviceRegistrationIndex.recordAbsent(id);
+            throw new CustomException("Device not registered", ErrorCode.NotRegistered);
+        }
+        return device;
+    }
+
+    /**
+     * The registered device as an entity of the caller's own persistence context, for callers that change it.
+     * Unlike {@link #isDeviceExists} it doesn't share its query with concurrent lookups.
+     */
+    public Device getRegisteredDevice(String id) {
+        if (deviceRegistrationIndex.status(id) == DeviceRegistrationIndex.Status.NOT_REGISTERED)
+            throw new CustomException("Device not registered", ErrorCode.NotRegistered);
+
+        return deviceRepository.findBySerialNumber(id)
+                .orElseThrow(() -> new CustomException("Device not registered", ErrorCode.NotRegistered));
     }
 
     public Device registerNewDevice(DeviceCreateVO deviceCreateVO, User user) {
-        alreadyExist(deviceCreateVO.deviceSerialNumber());
+        validateRegistration(deviceCreateVO, user);
+
+        return registerDevice(deviceCreateVO.deviceSerialNumber(), deviceCreateVO.purchaseDate(), user);
+    }
+
+    /**
+     * The checks {@link #registerNewDevice} makes before touching the database.
+     */
+    public void validateRegistration(DeviceCreateVO deviceCreateVO, User user) {
+        validateSerialNumber(deviceCreateVO.deviceSerialNumber());
+        rejectKnownRegistered(deviceCreateVO.deviceSerialNumber());
 
         if (user == null) {
             throw new CustomException("User not found", ErrorCode.EntityNotFound);
         }
+    }
 
-        return registerDevice(deviceCreateVO.deviceSerialNumber(), deviceCreateVO.purchaseDate(), user);
+    /**
+     * Rejects malformed serials and serials that match no passport prefix before any database work is done.
+     */
+    public void validateSerialNumber(String serialNumber) {
+        if (!SerialNumber.isValid(serialNumber)) {
+            throw new CustomException("Invalid serial number", ErrorCode.Failed);
+        }
+        passportService.validateSerialPrefix(serialNumber);
     }
 
     public void alreadyExist(String serialNumber) {
-        if (findDevice(serialNumber) != null)
+        DeviceRegistrationIndex.Status status = deviceRegistrationIndex.status(serialNumber);
+        boolean exists = status == DeviceRegistrationIndex.Status.UNKNOWN
+                ? deviceRepository.existsBySerialNumber(serialNumber)
+                : status == DeviceRegistrationIndex.Status.REGISTERED;
+        if (status == DeviceRegistrationIndex.Status.UNKNOWN && !exists)
+            deviceRegistrationIndex.recordAbsent(serialNumber);
+        if (exists)
+            throw new CustomException("Device already registered", ErrorCode.AlreadyExists);
+    }
+
+    /**
+     * Cheap in-memory duplicate check for the registration paths. Serials the index cannot answer for are
+     * not looked up; the insert itself rejects them, so a registration costs a single statement.
+     */
+    private void rejectKnownRegistered(String serialNumber) {
+        if (deviceRegistrationIndex.status(serialNumber) == DeviceRegistrationIndex.Status.REGISTERED)
             throw new CustomException("Device already registered", ErrorCode.AlreadyExists);
     }
 
     public Device updateDevice(String serialNumber, DeviceUpdateVO device) {
-        Device deviceToUpdate = deviceRepository.findById(serialNumber).orElseThrow(() -> new CustomException("Device not found", ErrorCode.EntityNotFound));
+        Device deviceToUpdate = deviceRepository.findBySerialNumber(serialNumber).orElseThrow(() -> new CustomException("Device not found", ErrorCode.EntityNotFound));
+        return applyUpdate(deviceToUpdate, device);
+    }
+
+    /**
+     * Updates a device only if it is still at {@code version}. In the common case this is one conditional
+     * UPDATE without reading the device first; the device is only loaded to tell a missing device from a
+     * stale version, or when it belongs to another passport than its serial now resolves to.
+     *
+     * @return the device's new version
+     * @throws CustomException with {@link ErrorCode#VersionMismatch} if the device has another version
+     */
+    public long updateDevice(String serialNumber, DeviceUpdateVO device, long version) {
+        Passport passport = passportSerialIndex.find(serialNumber);
+        if (passport != null) {
+            LocalDate anonymousWarranty = device.purchaseDate().plusMonths(passport.getWarrantyMonths());
+            LocalDate ownedWarranty = anonymousWarranty.plusMonths(12);
+
+            Optional<DeviceRepositoryCustom.PreviousState> previous = deviceRepository.updateIfVersion(
+                    serialNumber, version, passport.getId(), device, anonymousWarranty, ownedWarranty
+            );
+            if (previous.isPresent()) {
+                LocalDate warrantyDate = previous.get().owned() ? ownedWarranty : anonymousWarranty;
+                eventPublisher.publishEvent(new DeviceUpdatedEvent(serialNumber, passport.getId(), previous.get().warrantyExpirationDate(), warrantyDate));
+                return version + 1;
+            }
+        }
+
+        Device deviceToUpdate = deviceRepository.findBySerialNumber(serialNumber).orElseThrow(() -> new CustomException("Device not found", ErrorCode.EntityNotFound));
+        if (deviceToUpdate.getVersion() != version) {
+            throw new CustomException("Device was modified by another request", ErrorCode.VersionMismatch);
+        }
+        try {
+            return applyUpdate(deviceToUpdate, device).getVersion();
+        } catch (OptimisticLockingFailureException e) {
+            throw new CustomException("Device was modified by another request", ErrorCode.VersionMismatch);
+        }
+    }
 
+    private Device applyUpdate(Device deviceToUpdate, DeviceUpdateVO device) {
+        LocalDate previousWarrantyDate = deviceToUpdate.getWarrantyExpirationDate();
         deviceToUpdate.setPurchaseDate(device.purchaseDate());
 
         LocalDate warrantyDate = device.purchaseDate().plusMonths(deviceToUpdate.getPassport().getWarrantyMonths());
@@ -80,20 +224,27 @@ public class DeviceService {
         deviceToUpdate.setWarrantyExpirationDate(warrantyDate);
         deviceToUpdate.setComment(device.comment());
 
-        return deviceRepository.save(deviceToUpdate);
+        Device saved = deviceRepository.save(deviceToUpdate);
+        eventPublisher.publishEvent(new DeviceUpdatedEvent(saved.getSerialNumber(), saved.getPassport().getId(), previousWarrantyDate, warrantyDate));
+        return saved;
     }
 
     @Transactional
     public void deleteDevice(String serialNumber) {
         try {
+            DeviceDeletedEvent deleted = deviceRepository.lockForDeletion(serialNumber).orElse(null);
             deviceRepository.deleteBySerialNumber(serialNumber);
+            if (deleted != null) {
+                eventPublisher.publishEvent(deleted);
+            }
         } catch (RuntimeException e) {
             throw new CustomException("Cannot delete device: renovations exist", ErrorCode.Failed);
         }
     }
 
     public Device addAnonymousDevice(DeviceCreateVO device) {
-        alreadyExist(device.deviceSerialNumber());
+        validateSerialNumber(device.deviceSerialNumber());
+        rejectKnownRegistered(device.deviceSerialNumber());
         try {
             Passport passport = passportService.findPassportBySerialId(device.deviceSerialNumber());
 
@@ -103,27 +254,158 @@ public class DeviceService {
             deviceToAdd.setPassport(passport);
             deviceToAdd.setWarrantyExpirationDate(device.purchaseDate().plusMonths(passport.getWarrantyMonths()));
 
-            return deviceRepository.save(deviceToAdd);
+            Device saved = deviceRepository.insert(deviceToAdd);
+            eventPublisher.publishEvent(new DeviceRegisteredEvent(saved));
+            return saved;
+        } catch (DataIntegrityViolationException e) {
+            throw alreadyRegisteredOr(e);
+        } catch (DataAccessException e) {
+            // The database failing is not the serial number's fault; callers may retry.
+            throw e;
         } catch (RuntimeException e) {
             throw new CustomException("Invalid serial number", ErrorCode.Failed);
         }
     }
 
-    public CustomPage<Device> getDevices(String searchBy, int page, int size) {
-        Page<Device> devicePage;
-        if (searchBy == null) {
-            devicePage = deviceRepository.getAllDevices(PageRequest.of(page - 1, size));
+    /**
+     * A numbered page of the devices matching {@code searchBy}, by id when {@link SearchIndexService} answers
+     * the search, ranked by relevance where {@link ListingSearchService} is available, otherwise by id.
+     */
+    public CustomPage<DeviceListingVO> getDevices(String searchBy, int page, int size, CountMode countMode) {
+        List<DeviceListingVO> devices;
+        String lastCursor = null;
+        if (isIndexed(searchBy)) {
+            devices = findDevices(searchIndexService.searchDevices(searchBy, 0, (long) (page - 1) * size, size));
+            if (!devices.isEmpty()) {
+                lastCursor = Cursors.encode(devices.get(devices.size() - 1).id());
+            }
+        } else if (isRanked(searchBy)) {
+            List<ListingSearchService.Hit> hits = listingSearchService.searchDevices(searchBy, null, (long) (page - 1) * size, size);
+            devices = findDevices(hits.stream().map(ListingSearchService.Hit::id).toList());
+            if (!hits.isEmpty()) {
+                lastCursor = hits.get(hits.size() - 1).cursor();
+            }
         } else {
-            devicePage = deviceRepository.findAll(searchBy, PageRequest.of(page - 1, size));
+            // Ordered by id so that pages don't overlap or skip devices.
+            devices = findDevicesAfter(searchBy, 0, PageRequest.of(page - 1, size));
+            if (!devices.isEmpty()) {
+                lastCursor = Cursors.encode(devices.get(devices.size() - 1).id());
+            }
         }
 
-        CustomPage<Device> customPage = new CustomPage<>();
-        customPage.setItems(devicePage.getContent());
-        customPage.setTotalItems(devicePage.getTotalElements());
-        customPage.setTotalPages(devicePage.getTotalPages());
+        CustomPage<DeviceListingVO> customPage = new CustomPage<>();
+        customPage.setItems(withRenovations(devices));
         customPage.setCurrentPage(page);
         customPage.setSize(size);
+        ListingCountService.Count count = listingCountService.countDevices(searchBy, countMode);
+        customPage.setTotal(count.total(), count.mode());
+        boolean hasNext = count.mode() == CountMode.EXACT ? (long) page * size < count.total() : devices.size() == size;
+        if (hasNext) {
+            customPage.setNextCursor(lastCursor);
+        }
 
         return customPage;
     }
-}
\ No newline at end of file
+
+    /**
+     * Keyset pagination over the same devices as {@link #getDevices(String, int, int, CountMode)}: the page
+     * after the device {@code after} points at, or the first page for an empty cursor. Each page is an index
+     * range scan by id, however deep it is, or for a ranked search a seek past the cursor's relevance.
+     */
+    public CustomPage<DeviceListingVO> getDevices(String searchBy, String after, int size, CountMode countMode) {
+        if (size < 1) {
+            throw new CustomException("Page size must be positive", ErrorCode.Validation);
+        }
+
+        CustomPage<DeviceListingVO> customPage = new CustomPage<>();
+        customPage.setCurrentPage(-1);
+        customPage.setSize(size);
+        ListingCountService.Count count = listingCountService.countDevices(searchBy, countMode);
+        customPage.setTotal(count.total(), count.mode());
+
+        List<DeviceListingVO> devices;
+        if (isIndexed(searchBy)) {
+            long afterId = after.isEmpty() ? 0 : Cursors.decodeId(after);
+            List<Long> ids = searchIndexService.searchDevices(searchBy, afterId, 0, size + 1);
+            if (ids.size() > size) {
+                ids = ids.subList(0, size);
+                customPage.setNextCursor(Cursors.encode(ids.get(size - 1)));
+            }
+            devices = findDevices(ids);
+        } else if (isRanked(searchBy)) {
+            ListingSearchService.Hit afterHit = after.isEmpty() ? null : ListingSearchService.Hit.fromCursor(after);
+            List<ListingSearchService.Hit> hits = listingSearchService.searchDevices(searchBy, afterHit, 0, size + 1);
+            if (hits.size() > size) {
+                hits = hits.subList(0, size);
+                customPage.setNextCursor(hits.get(size - 1).cursor());
+            }
+            devices = findDevices(hits.stream().map(ListingSearchService.Hit::id).toList());
+        } else {
+            long afterId = after.isEmpty() ? 0 : Cursors.decodeId(after);
+            devices = findDevicesAfter(searchBy, afterId, PageRequest.of(0, size + 1));
+            if (devices.size() > size) {
+                devices = devices.subList(0, size);
+                customPage.setNextCursor(Cursors.encode(devices.get(size - 1).id()));
+            }
+        }
+        customPage.setItems(withRenovations(devices));
+
+        return customPage;
+    }
+
+    /**
+     * The listings of the devices owned by {@code userIds}, by owner, in two queries however many there are.
+     */
+    public Map<Long, List<DeviceListingVO>> findListingsByOwners(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Map.of();
+        }
+        return withRenovations(deviceRepository.findListingsByUserIds(userIds)).stream()
+                .collect(Collectors.groupingBy(DeviceListingVO::userId));
+    }
+
+    private boolean isIndexed(String searchBy) {
+        return searchBy != null && searchIndexService.isActive();
+    }
+
+    private boolean isRanked(String searchBy) {
+        return searchBy != null && listingSearchService.isAvailable();
+    }
+
+    /**
+     * The listings of the devices with {@code ids}, in their order.
+     */
+    private List<DeviceListingVO> findDevices(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        Map<Long, DeviceListingVO> devices = deviceRepository.findListingsByIds(ids).stream()
+                .collect(Collectors.toMap(DeviceListingVO::id, device -> device));
+        // A device deleted since the search is left out.
+        return ids.stream().map(devices::get).filter(Objects::nonNull).toList();
+    }
+
+    private List<DeviceListingVO> findDevicesAfter(String searchBy, long afterId, Pageable pageable) {
+        return searchBy == null
+                ? deviceRepository.getAllDevicesAfter(afterId, pageable)
+                : deviceRepository.findAllAfter(searchBy, afterId, pageable);
+    }
+
+    /**
+     * Adds their renovations to {@code devices} with one query per {@value #RENOVATION_BATCH_SIZE} of them.
+     */
+    private List<DeviceListingVO> withRenovations(List<DeviceListingVO> devices) {
+        Map<Long, List<RenovationListingVO>> renovations = new HashMap<>();
+        for (int from = 0; from < devices.size(); from += RENOVATION_BATCH_SIZE) {
+            List<Long> ids = devices.subList(from, Math.min(from + RENOVATION_BATCH_SIZE, devices.size()))
+                    .stream().map(DeviceListingVO::id).toList();
+            for (RenovationListingVO renovation : renovationRepository.findListingsByDeviceIds(ids)) {
+                renovations.computeIfAbsent(renovation.deviceId(), id -> new ArrayList<>()).add(renovation);
+            }
+        }
+        return devices.stream()
+                .map(device -> device.withRenovations(renovations.getOrDefault(device.id(), List.of())))
+                .toList();
+    }
+}
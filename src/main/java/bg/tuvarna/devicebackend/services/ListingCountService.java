@@ -0,0 +1,207 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.config.PostgresSchemaSetup;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.UserRegisteredEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import lombok.AllArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.Collections;
+import java.util.OptionalLong;
+
+/**
+ * Totals for the device and user listings without a count query per page.
+ * Unfiltered totals are counters updated from the registration and deletion events and periodically
+ * replaced by a {@code count(*)}; like the passport utilization counters, a change that commits while
+ * that count runs may be counted twice until the next reconcile. Filtered totals can be estimated from
+ * the PostgreSQL planner's row estimate for the search, which costs no scan but may be well off for
+ * rare or very common search terms. Searches answered by {@link ListingSearchService} are counted and
+ * estimated with its query, so totals match its results; those answered by {@link SearchIndexService} are
+ * counted exactly by the index, which costs no query at all.
+ */
+@Service
+@AllArgsConstructor
+public class ListingCountService {
+    private static final Logger logger = LoggerFactory.getLogger(ListingCountService.class);
+
+    private static final String DEVICE_SEARCH_SQL = "select d.id from devices d " +
+            "left join users u on u.id = d.user_id " +
+            "left join passports p on p.id = d.passport_id " +
+            "where lower(d.serial_number) like ? or lower(u.full_name) like ? or lower(u.address) like ? " +
+            "or lower(u.email) like ? or lower(u.phone) like ? or lower(p.name) like ? or lower(p.model) like ?";
+
+    private static final String USER_SEARCH_SQL = "select distinct u.id from users u " +
+            "left join devices d on d.user_id = u.id " +
+            "left join passports p on p.id = d.passport_id " +
+            "where u.role <> 'ADMIN' and (lower(u.full_name) like ? or lower(u.address) like ? " +
+            "or lower(u.email) like ? or lower(u.phone) like ? or lower(p.name) like ? or lower(p.model) like ? " +
+            "or lower(d.serial_number) like ?)";
+
+    /**
+     * A listing total and the mode that produced it, which may be more exact than the one asked for.
+     */
+    public record Count(long total, CountMode mode) {
+        public static final Count NONE = new Count(-1, CountMode.NONE);
+    }
+
+    private static final class Total {
+        private long value;
+        // Changes since the running reconcile started, or null when none is running.
+        private Long pending;
+
+        synchronized void add(long delta) {
+            value += delta;
+            if (pending != null) {
+                pending += delta;
+            }
+        }
+
+        synchronized void startReconcile() {
+            pending = 0L;
+        }
+
+        synchronized void finishReconcile(Long counted) {
+            if (counted != null) {
+                value = counted + pending;
+            }
+            pending = null;
+        }
+
+        synchronized long get() {
+            return value;
+        }
+    }
+
+    private final DeviceRepository deviceRepository;
+    private final UserRepository userRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final PostgresSchemaSetup schemaSetup;
+    private final ListingSearchService listingSearchService;
+    private final SearchIndexService searchIndexService;
+    private final ObjectMapper objectMapper;
+    private final Total devices = new Total();
+    private final Total users = new Total();
+
+    @PostConstruct
+    @Scheduled(
+            fixedDelayString = "${listings.count.reconcile-interval:PT5M}",
+            initialDelayString = "${listings.count.reconcile-interval:PT5M}"
+    )
+    public synchronized void reconcile() {
+        reconcile(devices, "select count(*) from devices");
+        reconcile(users, "select count(*) from users where role <> 'ADMIN'");
+    }
+
+    private void reconcile(Total total, String sql) {
+        total.startReconcile();
+        Long counted = null;
+        try {
+            counted = jdbcTemplate.queryForObject(sql, Long.class);
+        } finally {
+            total.finishReconcile(counted);
+        }
+    }
+
+    /**
+     * Counts the devices matching {@code searchBy}, or all devices if it is null.
+     */
+    public Count countDevices(String searchBy, CountMode mode) {
+        if (mode == CountMode.NONE) {
+            return Count.NONE;
+        }
+        if (searchBy == null) {
+            return new Count(devices.get(), CountMode.EXACT);
+        }
+        if (searchIndexService.isActive()) {
+            return new Count(searchIndexService.countDevices(searchBy), CountMode.EXACT);
+        }
+        boolean ranked = listingSearchService.isAvailable();
+        if (mode == CountMode.APPROX) {
+            OptionalLong estimate = ranked
+                    ? estimate(ListingSearchService.DEVICE_MATCHES, ListingSearchService.deviceArguments(searchBy))
+                    : estimate(DEVICE_SEARCH_SQL, likePatterns(searchBy));
+            if (estimate.isPresent()) {
+                return new Count(estimate.getAsLong(), CountMode.APPROX);
+            }
+        }
+        long total = ranked ? listingSearchService.countDevices(searchBy) : deviceRepository.countMatching(searchBy);
+        return new Count(total, CountMode.EXACT);
+    }
+
+    /**
+     * Counts the users other than administrators matching {@code searchBy}, or all of them if it is null.
+     */
+    public Count countUsers(String searchBy, CountMode mode) {
+        if (mode == CountMode.NONE) {
+            return Count.NONE;
+        }
+        if (searchBy == null) {
+            return new Count(users.get(), CountMode.EXACT);
+        }
+        if (searchIndexService.isActive()) {
+            return new Count(searchIndexService.countUsers(searchBy), CountMode.EXACT);
+        }
+        boolean ranked = listingSearchService.isAvailable();
+        if (mode == CountMode.APPROX) {
+            OptionalLong estimate = ranked
+                    ? estimate(ListingSearchService.USER_MATCHES, ListingSearchService.userArguments(searchBy))
+                    : estimate(USER_SEARCH_SQL, likePatterns(searchBy));
+            if (estimate.isPresent()) {
+                return new Count(estimate.getAsLong(), CountMode.APPROX);
+            }
+        }
+        long total = ranked ? listingSearchService.countUsers(searchBy) : userRepository.countMatching(searchBy);
+        return new Count(total, CountMode.EXACT);
+    }
+
+    private static Object[] likePatterns(String searchBy) {
+        return Collections.nCopies(7, "%" + searchBy.toLowerCase() + "%").toArray();
+    }
+
+    /**
+     * @return the planner's estimate of the rows {@code sql} returns for {@code arguments}, or empty when there is none
+     */
+    private OptionalLong estimate(String sql, Object[] arguments) {
+        if (!schemaSetup.isPostgres()) {
+            return OptionalLong.empty();
+        }
+
+        try {
+            String plan = jdbcTemplate.queryForObject("explain (format json) " + sql, String.class, arguments);
+            JsonNode rows = objectMapper.readTree(plan).path(0).path("Plan").path("Plan Rows");
+            return rows.isNumber() ? OptionalLong.of(rows.asLong()) : OptionalLong.empty();
+        } catch (DataAccessException | JsonProcessingException e) {
+            logger.warn("Row estimate failed, counting exactly: {}", e.getMessage());
+            return OptionalLong.empty();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceRegistered(DeviceRegisteredEvent event) {
+        devices.add(1);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceDeleted(DeviceDeletedEvent event) {
+        devices.add(-1);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onUserRegistered(UserRegisteredEvent event) {
+        users.add(1);
+    }
+}
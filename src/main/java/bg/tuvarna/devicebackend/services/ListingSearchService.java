@@ -0,0 +1,169 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.config.PostgresSchemaSetup;
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.utils.Cursors;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Relevance-ranked search for the device and user listings over the search documents
+ * {@link PostgresSchemaSetup} maintains on PostgreSQL. A device or user matches when its document contains
+ * the search term, as the listings' LIKE search does, or when the term is similar enough to a part of it,
+ * which lets misspelt terms match. Matches containing the term rank first, then by pg_trgm's word similarity,
+ * then by id.
+ * <p>
+ * Both conditions are answered from the documents' trigram indexes. The similarity threshold is
+ * {@code listings.search.similarity-threshold}; a higher one matches fewer misspellings.
+ * Where the documents aren't installed, {@link #isAvailable()} is false and the listings search as before.
+ */
+@Service
+public class ListingSearchService {
+    /**
+     * Scores a match of the term on {@code %1$s}: 1 if it contains the term, since word similarity alone can't tell
+     * it from one with the same trigrams, plus the word similarity. Parameters are the LIKE pattern and the term.
+     */
+    private static final String SCORE = "(case when %1$s like ? then 1 else 0 end + word_similarity(?, %1$s))";
+
+    /**
+     * Matches the term on {@code %1$s}. Parameters are the LIKE pattern and the term.
+     */
+    private static final String MATCH = "(%1$s like ? or ? <%% %1$s)";
+
+    /**
+     * Devices matching the term, with their score. Parameters are {@link #deviceArguments}.
+     */
+    static final String DEVICE_MATCHES = "select d.id, " + SCORE.formatted("d.search_document") + " as score " +
+            "from devices d where " + MATCH.formatted("d.search_document");
+
+    /**
+     * Users other than administrators matching the term themselves or through one of their devices' documents,
+     * with their best score. Parameters are {@link #userArguments}.
+     */
+    static final String USER_MATCHES = "select h.id, max(h.score) as score from (" +
+            "select u.id, " + SCORE.formatted("u.search_document") + " as score " +
+            "from users u where " + MATCH.formatted("u.search_document") +
+            " union all " +
+            "select d.user_id, " + SCORE.formatted("d.search_document") + " " +
+            "from devices d where d.user_id is not null and " + MATCH.formatted("d.search_document") +
+            ") h join users u on u.id = h.id where u.role <> 'ADMIN' group by h.id";
+
+    /**
+     * A match and its relevance, which together are its position in the ranked listing.
+     */
+    public record Hit(long id, float score) {
+        public String cursor() {
+            return Cursors.encode(score, id);
+        }
+
+        /**
+         * @throws CustomException if {@code cursor} isn't the cursor of a hit
+         */
+        public static Hit fromCursor(String cursor) {
+            String[] keys = Cursors.decode(cursor, 2);
+            try {
+                return new Hit(Long.parseLong(keys[1]), Float.parseFloat(keys[0]));
+            } catch (NumberFormatException e) {
+                throw Cursors.invalid();
+            }
+        }
+    }
+
+    private static final RowMapper<Hit> HIT = (rs, rowNum) -> new Hit(rs.getLong("id"), rs.getFloat("score"));
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final PostgresSchemaSetup schemaSetup;
+    private final String similarityThreshold;
+
+    public ListingSearchService(
+            JdbcTemplate jdbcTemplate,
+            TransactionTemplate transactionTemplate,
+            PostgresSchemaSetup schemaSetup,
+            @Value("${listings.search.similarity-threshold:0.6}") double similarityThreshold
+    ) {
+        if (similarityThreshold < 0 || similarityThreshold > 1) {
+            throw new IllegalArgumentException("listings.search.similarity-threshold must be between 0 and 1");
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = transactionTemplate;
+        this.schemaSetup = schemaSetup;
+        this.similarityThreshold = Double.toString(similarityThreshold);
+    }
+
+    public boolean isAvailable() {
+        return schemaSetup.isSearchIndexed();
+    }
+
+    /**
+     * The devices matching {@code searchBy}, ranked, after {@code after} when it isn't null, skipping {@code offset}.
+     */
+    public List<Hit> searchDevices(String searchBy, Hit after, long offset, int limit) {
+        return search(DEVICE_MATCHES, deviceArguments(searchBy), after, offset, limit);
+    }
+
+    /**
+     * The users other than administrators matching {@code searchBy}, ranked, after {@code after} when it isn't null,
+     * skipping {@code offset}.
+     */
+    public List<Hit> searchUsers(String searchBy, Hit after, long offset, int limit) {
+        return search(USER_MATCHES, userArguments(searchBy), after, offset, limit);
+    }
+
+    public long countDevices(String searchBy) {
+        return count(DEVICE_MATCHES, deviceArguments(searchBy));
+    }
+
+    public long countUsers(String searchBy) {
+        return count(USER_MATCHES, userArguments(searchBy));
+    }
+
+    static Object[] deviceArguments(String searchBy) {
+        String term = searchBy.toLowerCase();
+        String pattern = "%" + term + "%";
+        return new Object[]{pattern, term, pattern, term};
+    }
+
+    static Object[] userArguments(String searchBy) {
+        String term = searchBy.toLowerCase();
+        String pattern = "%" + term + "%";
+        return new Object[]{pattern, term, pattern, term, pattern, term, pattern, term};
+    }
+
+    private List<Hit> search(String matches, Object[] arguments, Hit after, long offset, int limit) {
+        List<Object> parameters = new ArrayList<>(List.of(arguments));
+        String sql = "select m.id, m.score from (" + matches + ") m ";
+        if (after != null) {
+            sql += "where m.score < ? or (m.score = ? and m.id > ?) ";
+            parameters.addAll(List.of(after.score(), after.score(), after.id()));
+        }
+        sql += "order by m.score desc, m.id offset ? limit ?";
+        parameters.add(offset);
+        parameters.add(limit);
+
+        String query = sql;
+        return withThreshold(() -> jdbcTemplate.query(query, HIT, parameters.toArray()));
+    }
+
+    private long count(String matches, Object[] arguments) {
+        return withThreshold(() -> jdbcTemplate.queryForObject("select count(*) from (" + matches + ") m", Long.class, arguments));
+    }
+
+    /**
+     * Runs {@code query} in a transaction that sets the similarity threshold the {@code <%} operator uses.
+     */
+    private <T> T withThreshold(Supplier<T> query) {
+        return transactionTemplate.execute(status -> {
+            jdbcTemplate.queryForObject("select set_config('pg_trgm.word_similarity_threshold', ?, true)",
+                    String.class, similarityThreshold);
+            return query.get();
+        });
+    }
+}
@@ -0,0 +1,268 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.config.PostgresSchemaSetup;
+import bg.tuvarna.devicebackend.models.dtos.PassportCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.PassportImportResultVO;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.enums.PassportImportFormat;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.utils.Constraints;
+import bg.tuvarna.devicebackend.utils.PassportImportReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.AllArgsConstructor;
+import org.hibernate.Cache;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedReader;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Imports passports from a CSV or NDJSON stream in chunks of {@value #CHUNK_SIZE} rows.
+ * Each chunk is validated, checked for overlaps with a sort-and-sweep pass and inserted with one
+ * JDBC batch in its own transaction, so memory use doesn't grow with the size of the input.
+ * Earlier chunks are already committed when a later one is checked, which is how overlaps
+ * between chunks are found, and each committed chunk is announced with a {@link PassportsChangedEvent}
+ * before the next one is read.
+ */
+@Service
+@AllArgsConstructor
+public class PassportImportService {
+    static final int CHUNK_SIZE = 1000;
+
+    private static final String INSERT_SQL = "insert into passports " +
+            "(name, model, serial_prefix, warranty_months, from_serial_number, to_serial_number) " +
+            "values (?, ?, ?, ?, ?, ?)";
+
+    private final PassportService passportService;
+    private final PassportRepository passportRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Validator validator;
+    private final ObjectMapper objectMapper;
+    private final ApplicationEventPublisher eventPublisher;
+    private final EntityManagerFactory entityManagerFactory;
+
+    /**
+     * Imports every row of {@code input}, reporting each one to {@code report} in input order
+     * once its chunk has been processed.
+     *
+     * @return the number of imported passports
+     */
+    public long importPassports(BufferedReader input, PassportImportFormat format, Consumer<PassportImportResultVO> report) {
+        PassportImportReader reader = new PassportImportReader(input, format, objectMapper);
+        List<PassportImportReader.Row> chunk = new ArrayList<>(CHUNK_SIZE);
+        long imported = 0;
+
+        PassportImportReader.Row row;
+        while ((row = reader.next()) != null) {
+            chunk.add(row);
+            if (chunk.size() == CHUNK_SIZE) {
+                imported += importChunk(chunk, report);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            imported += importChunk(chunk, report);
+        }
+        return imported;
+    }
+
+    private int importChunk(List<PassportImportReader.Row> rows, Consumer<PassportImportResultVO> report) {
+        String[] errors = new String[rows.size()];
+        long[] ids = new long[rows.size()];
+
+        Map<String, List<Integer>> byPrefix = new HashMap<>();
+        for (int i = 0; i < rows.size(); i++) {
+            errors[i] = validate(rows.get(i));
+            if (errors[i] == null) {
+                byPrefix.computeIfAbsent(rows.get(i).passport().serialPrefix(), prefix -> new ArrayList<>()).add(i);
+            }
+        }
+
+        if (!byPrefix.isEmpty()) {
+            List<Integer> accepted = new ArrayList<>();
+            try {
+                passportService.underRangeLock(() -> transactionTemplate.execute(status -> {
+                    byPrefix.forEach((prefix, positions) -> sweep(prefix, positions, rows, errors, accepted));
+                    insertBatch(accepted, rows, ids);
+                    return null;
+                }));
+            } catch (DataIntegrityViolationException e) {
+                if (!Constraints.isViolated(e, PostgresSchemaSetup.PASSPORT_RANGE_CONSTRAINT)) {
+                    throw e;
+                }
+                // A concurrent change won the race for one of the ranges; find out which rows are affected.
+                insertOneByOne(accepted, rows, errors, ids);
+            }
+        }
+
+        int imported = 0;
+        for (String error : errors) {
+            if (error == null) {
+                imported++;
+            }
+        }
+        if (imported > 0) {
+            passportsCommitted();
+        }
+
+        for (int i = 0; i < rows.size(); i++) {
+            long line = rows.get(i).line();
+            if (errors[i] == null) {
+                report.accept(PassportImportResultVO.imported(line, ids[i]));
+            } else {
+                report.accept(PassportImportResultVO.rejected(line, errors[i]));
+            }
+        }
+        return imported;
+    }
+
+    /**
+     * Makes a committed chunk visible as soon as it is committed, rather than once the whole import is done.
+     */
+    private void passportsCommitted() {
+        // The JDBC inserts bypass Hibernate, so cached passport queries wouldn't see the new rows.
+        entityManagerFactory.getCache().unwrap(Cache.class).evictQueryRegions();
+        eventPublisher.publishEvent(new PassportsChangedEvent());
+    }
+
+    private String validate(PassportImportReader.Row row) {
+        if (row.error() != null) {
+            return row.error();
+        }
+
+        PassportCreateVO passport = row.passport();
+        Set<ConstraintViolation<PassportCreateVO>> violations = validator.validate(passport);
+        if (!violations.isEmpty()) {
+            ConstraintViolation<PassportCreateVO> violation = violations.iterator().next();
+            return violation.getPropertyPath() + ": " + violation.getMessage();
+        }
+        if (passport.fromSerialNumber() > passport.toSerialNumber()) {
+            return "From serial number must not be greater than to serial number";
+        }
+        return null;
+    }
+
+    /**
+     * Sorts the rows of one prefix by their first serial and walks them once, rejecting every row
+     * that overlaps an existing passport or a row accepted before it.
+     * Existing passports are loaded with a single query covering the span of the chunk.
+     */
+    private void sweep(String prefix, List<Integer> positions, List<PassportImportReader.Row> rows,
+                       String[] errors, List<Integer> accepted) {
+        positions.sort(Comparator.comparingInt(i -> rows.get(i).passport().fromSerialNumber()));
+
+        int minFrom = Integer.MAX_VALUE;
+        int maxTo = Integer.MIN_VALUE;
+        for (int i : positions) {
+            minFrom = Math.min(minFrom, rows.get(i).passport().fromSerialNumber());
+            maxTo = Math.max(maxTo, rows.get(i).passport().toSerialNumber());
+        }
+
+        List<Passport> existing = new ArrayList<>(passportRepository.findByFromSerialNumberBetween(prefix, minFrom, maxTo));
+        existing.sort(Comparator.comparingInt(Passport::getFromSerialNumber));
+        int[] existingFrom = new int[existing.size()];
+        int[] existingMaxTo = new int[existing.size()];
+        for (int i = 0; i < existing.size(); i++) {
+            existingFrom[i] = existing.get(i).getFromSerialNumber();
+            existingMaxTo[i] = Math.max(existing.get(i).getToSerialNumber(), i > 0 ? existingMaxTo[i - 1] : Integer.MIN_VALUE);
+        }
+
+        long acceptedTo = Long.MIN_VALUE;
+        long acceptedLine = 0;
+        for (int i : positions) {
+            PassportCreateVO passport = rows.get(i).passport();
+
+            // Last existing range starting at or before our end; it or an earlier one overlaps iff their max end reaches our start.
+            int last = lastAtOrBefore(existingFrom, passport.toSerialNumber());
+            if (last >= 0 && existingMaxTo[last] >= passport.fromSerialNumber()) {
+                errors[i] = "Serial range overlaps an existing passport";
+            } else if (passport.fromSerialNumber() <= acceptedTo) {
+                errors[i] = "Serial range overlaps line " + acceptedLine;
+            } else {
+                accepted.add(i);
+                if (passport.toSerialNumber() > acceptedTo) {
+                    acceptedTo = passport.toSerialNumber();
+                    acceptedLine = rows.get(i).line();
+                }
+            }
+        }
+    }
+
+    private static int lastAtOrBefore(int[] sorted, int value) {
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private void insertBatch(List<Integer> positions, List<PassportImportReader.Row> rows, long[] ids) {
+        if (positions.isEmpty()) {
+            return;
+        }
+
+        GeneratedKeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.batchUpdate(
+                connection -> connection.prepareStatement(INSERT_SQL, new String[]{"id"}),
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement statement, int i) throws SQLException {
+                        bind(statement, rows.get(positions.get(i)).passport());
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return positions.size();
+                    }
+                },
+                keyHolder
+        );
+
+        List<Map<String, Object>> keys = keyHolder.getKeyList();
+        for (int i = 0; i < positions.size(); i++) {
+            ids[positions.get(i)] = ((Number) keys.get(i).values().iterator().next()).longValue();
+        }
+    }
+
+    private void insertOneByOne(List<Integer> positions, List<PassportImportReader.Row> rows, String[] errors, long[] ids) {
+        for (int i : positions) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> insertBatch(List.of(i), rows, ids));
+            } catch (DataIntegrityViolationException e) {
+                if (!Constraints.isViolated(e, PostgresSchemaSetup.PASSPORT_RANGE_CONSTRAINT)) {
+                    throw e;
+                }
+                errors[i] = "Serial range overlaps an existing passport";
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement statement, PassportCreateVO passport) throws SQLException {
+        statement.setString(1, passport.name());
+        statement.setString(2, passport.model());
+        statement.setString(3, passport.serialPrefix());
+        statement.setInt(4, passport.warrantyMonths());
+        statement.setInt(5, passport.fromSerialNumber());
+        statement.setInt(6, passport.toSerialNumber());
+    }
+}
@@ -0,0 +1,54 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.utils.SerialRangeIndex;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.List;
+
+/**
+ * Keeps an in-memory {@link SerialRangeIndex} of all passports so serial numbers can be
+ * resolved without a database round trip. The index is replaced as a whole (copy-on-write)
+ * after every committed passport change.
+ */
+@Service
+@RequiredArgsConstructor
+public class PassportSerialIndex {
+    private final PassportRepository passportRepository;
+
+    private volatile SerialRangeIndex snapshot = SerialRangeIndex.empty();
+    private volatile List<Passport> passports = List.of();
+
+    @PostConstruct
+    public synchronized void rebuild() {
+        List<Passport> all = passportRepository.findAll();
+        snapshot = SerialRangeIndex.of(all);
+        passports = List.copyOf(all);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPassportsChanged(PassportsChangedEvent event) {
+        rebuild();
+    }
+
+    public Passport find(String serialId) {
+        return snapshot.find(serialId);
+    }
+
+    public boolean hasKnownPrefix(String serialId) {
+        return snapshot.hasKnownPrefix(serialId);
+    }
+
+    public SerialRangeIndex snapshot() {
+        return snapshot;
+    }
+
+    public List<Passport> passports() {
+        return passports;
+    }
+}
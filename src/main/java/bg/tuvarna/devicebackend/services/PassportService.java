@@ -1,35 +1,54 @@
 package bg.tuvarna.devicebackend.services;
 
+import bg.tuvarna.devicebackend.config.PostgresSchemaSetup;
 import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
 import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
 import bg.tuvarna.devicebackend.models.dtos.PassportCreateVO;
 import bg.tuvarna.devicebackend.models.dtos.PassportUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.SerialResolutionVO;
 import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.events.PassportWarrantyChangedEvent;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
 import bg.tuvarna.devicebackend.models.mappers.PassportMapper;
 import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.utils.Constraints;
 import bg.tuvarna.devicebackend.utils.CustomPage;
+import bg.tuvarna.devicebackend.utils.SerialNumber;
+import jakarta.transaction.Transactional;
 import lombok.AllArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 @Service
 @AllArgsConstructor
 public class PassportService {
     private final PassportRepository passportRepository;
+    private final PassportSerialIndex passportSerialIndex;
+    private final ApplicationEventPublisher eventPublisher;
+    private final PostgresSchemaSetup schemaSetup;
+    private final Object rangeLock = new Object();
 
     public Passport create(PassportCreateVO passportCreateVO) {
-        List<Passport> passports = passportRepository.findByFromSerialNumberBetween(passportCreateVO.serialPrefix(), passportCreateVO.fromSerialNumber(), passportCreateVO.toSerialNumber());
-        if (!passports.isEmpty()) {
-            throw new CustomException("Serial number already exists", ErrorCode.AlreadyExists);
-        }
+        validateRange(passportCreateVO.fromSerialNumber(), passportCreateVO.toSerialNumber());
 
         Passport passport = PassportMapper.toEntity(passportCreateVO);
 
-        return passportRepository.save(passport);
+        Passport saved = saveRange(passport, () -> {
+            List<Passport> passports = passportRepository.findByFromSerialNumberBetween(passportCreateVO.serialPrefix(), passportCreateVO.fromSerialNumber(), passportCreateVO.toSerialNumber());
+            return !passports.isEmpty();
+        });
+        eventPublisher.publishEvent(new PassportsChangedEvent());
+        return saved;
     }
 
     public Passport update(Long id, PassportUpdateVO passportUpdateVO) {
@@ -42,15 +61,68 @@ public class PassportService {
         String serialPrefix = passportUpdateVO.serialPrefix() != null ? passportUpdateVO.serialPrefix() : passport.getSerialPrefix();
         int fromSerialNumber = passportUpdateVO.fromSerialNumber() != null ? passportUpdateVO.fromSerialNumber() : passport.getFromSerialNumber();
         int toSerialNumber = passportUpdateVO.toSerialNumber() != null ? passportUpdateVO.toSerialNumber() : passport.getToSerialNumber();
+        validateRange(fromSerialNumber, toSerialNumber);
+        int previousWarrantyMonths = passport.getWarrantyMonths();
+
+        PassportMapper.updateEntity(passport, passportUpdateVO);
 
-        List<Passport> passports = passportRepository.findByFromSerialNumberBetween(serialPrefix, fromSerialNumber, toSerialNumber);
-        if (!passports.isEmpty() && passports.stream().anyMatch(p -> !Objects.equals(p.getId(), passport.getId()))) {
-            throw new CustomException("Serial number already exists", ErrorCode.AlreadyExists);
+        Passport saved = saveRange(passport, () -> {
+            List<Passport> passports = passportRepository.findByFromSerialNumberBetween(serialPrefix, fromSerialNumber, toSerialNumber);
+            return passports.stream().anyMatch(p -> !Objects.equals(p.getId(), passport.getId()));
+        });
+        eventPublisher.publishEvent(new PassportsChangedEvent());
+        if (saved.getWarrantyMonths() != previousWarrantyMonths) {
+            eventPublisher.publishEvent(new PassportWarrantyChangedEvent(saved.getId(), saved.getWarrantyMonths()));
         }
+        return saved;
+    }
 
-        PassportMapper.updateEntity(passport, passportUpdateVO);
+    private void validateRange(int fromSerialNumber, int toSerialNumber) {
+        if (fromSerialNumber > toSerialNumber) {
+            throw new CustomException("From serial number must not be greater than to serial number", ErrorCode.Validation);
+        }
+    }
+
+    /**
+     * Saves a passport whose range must not overlap another passport with the same prefix.
+     * On PostgreSQL the exclusion constraint rejects the insert/update itself, so no check query is needed;
+     * only its violation is reported as an overlap, any other constraint violation propagates as it is.
+     * Otherwise {@code overlaps} is evaluated and the row saved under a lock, so the two steps can't interleave.
+     * That lock is this JVM's only: without the constraint, instances saving overlapping ranges at the same
+     * time can both succeed.
+     */
+    private Passport saveRange(Passport passport, BooleanSupplier overlaps) {
+        try {
+            if (schemaSetup.isPassportRangeConstraintEnforced()) {
+                return passportRepository.save(passport);
+            }
+
+            synchronized (rangeLock) {
+                if (overlaps.getAsBoolean()) {
+                    throw new CustomException("Serial number already exists", ErrorCode.AlreadyExists);
+                }
+                return passportRepository.save(passport);
+            }
+        } catch (DataIntegrityViolationException e) {
+            if (Constraints.isViolated(e, PostgresSchemaSetup.PASSPORT_RANGE_CONSTRAINT)) {
+                throw new CustomException("Serial number already exists", ErrorCode.AlreadyExists);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs {@code action} so its own overlap checks and inserts can't interleave with {@link #saveRange}.
+     * Not needed, and skipped, when the database enforces the constraint.
+     */
+    <T> T underRangeLock(Supplier<T> action) {
+        if (schemaSetup.isPassportRangeConstraintEnforced()) {
+            return action.get();
+        }
 
-        return passportRepository.save(passport);
+        synchronized (rangeLock) {
+            return action.get();
+        }
     }
 
     public Passport findPassportById(Long id) {
@@ -58,23 +130,34 @@ public class PassportService {
     }
 
     public Passport findPassportBySerialId(String serialId) {
-        List<Passport> passports = getPassportsBySerialPrefix(serialId);
-        
-        for (Passport passport : passports) {
-            int serialNumber;
-            try {
-                serialNumber = Integer.parseInt(serialId.split(passport.getSerialPrefix())[1]);
-            } catch (NumberFormatException e) {
-                continue;
-            }
-            if (serialNumber >= passport.getFromSerialNumber() && serialNumber <= passport.getToSerialNumber()) {
-                return passport;
-            }
+        if (!SerialNumber.isValid(serialId) || !passportSerialIndex.hasKnownPrefix(serialId)) {
+            throw new CustomException("Passport not found for serial number: " + serialId, ErrorCode.Failed);
+        }
+
+        Passport passport = passportSerialIndex.find(serialId);
+        if (passport != null) {
+            return passport;
         }
 
         throw new CustomException("Passport not found for serial number: " + serialId, ErrorCode.Failed);
     }
 
+    public List<SerialResolutionVO> resolveSerialNumbers(List<String> serialIds) {
+        Passport[] passports = passportSerialIndex.snapshot().findAll(serialIds);
+
+        List<SerialResolutionVO> resolutions = new ArrayList<>(passports.length);
+        for (int i = 0; i < passports.length; i++) {
+            resolutions.add(new SerialResolutionVO(serialIds.get(i), passports[i]));
+        }
+        return resolutions;
+    }
+
+    public void validateSerialPrefix(String serialId) {
+        if (!SerialNumber.isValid(serialId) || !passportSerialIndex.hasKnownPrefix(serialId)) {
+            throw new CustomException("Invalid serial number", ErrorCode.Failed);
+        }
+    }
+
     public CustomPage<Passport> getPassports(int page, int size) {
         Page<Passport> passports = passportRepository.findAll(PageRequest.of(page - 1, size));
 
@@ -88,15 +171,26 @@ public class PassportService {
         return customPage;
     }
 
-    public List<Passport> getPassportsBySerialPrefix(String serialId) {
-        return passportRepository.findByFromSerial(serialId);
-    }
-
     public void delete(Long id) {
         try {
             passportRepository.deleteById(id);
         } catch (RuntimeException e) {
             throw new CustomException("Can't delete passport", ErrorCode.Failed);
         }
+        eventPublisher.publishEvent(new PassportsChangedEvent());
+    }
+
+    /**
+     * Deletes the given passports that no device references, without loading them.
+     *
+     * @return how many were deleted
+     */
+    @Transactional
+    public int deleteUnused(Collection<Long> ids) {
+        int deleted = passportRepository.deleteUnreferencedByIds(ids);
+        if (deleted > 0) {
+            eventPublisher.publishEvent(new PassportsChangedEvent());
+        }
+        return deleted;
     }
 }
\ No newline at end of file
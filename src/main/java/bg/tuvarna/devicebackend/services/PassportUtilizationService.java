@@ -0,0 +1,198 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.models.dtos.PassportUtilizationVO;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceUpdatedEvent;
+import jakarta.annotation.PostConstruct;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Per-passport device counters, kept in memory so the utilization report costs no query.
+ * Device write paths update them through events; {@link #reconcile()} periodically replaces
+ * them with the result of one GROUP BY, which also catches warranties that expired since.
+ * <p>
+ * Changes that commit while a reconcile is running are replayed onto its result, so none are
+ * lost. Every change gets a sequence number when it is recorded, and the reconcile notes the last
+ * one, its high-water mark, with its connection in hand right before the query runs. Changes at or
+ * below the mark committed before the query, so they are in its result and aren't replayed.
+ */
+@Service
+public class PassportUtilizationService {
+    private static final String COUNT_SQL = "select passport_id, count(*), count(user_id), " +
+            "sum(case when warranty_expiration_date < ? then 1 else 0 end) " +
+            "from devices where passport_id is not null group by passport_id";
+
+    private record Change(long sequence, Consumer<Map<Long, Counters>> apply) {
+    }
+
+    private static final class Counters {
+        private final LongAdder registered = new LongAdder();
+        private final LongAdder owned = new LongAdder();
+        private final LongAdder warrantyExpired = new LongAdder();
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PassportSerialIndex passportSerialIndex;
+    // Writers share the read lock; only reconcile's start and swap take the write lock.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong sequence = new AtomicLong();
+    private Map<Long, Counters> counters = new ConcurrentHashMap<>();
+    private Queue<Change> pending;
+
+    public PassportUtilizationService(JdbcTemplate jdbcTemplate, PassportSerialIndex passportSerialIndex) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.passportSerialIndex = passportSerialIndex;
+    }
+
+    @PostConstruct
+    @Scheduled(
+            fixedDelayString = "${passports.utilization.reconcile-interval:PT5M}",
+            initialDelayString = "${passports.utilization.reconcile-interval:PT5M}"
+    )
+    public synchronized void reconcile() {
+        lock.writeLock().lock();
+        try {
+            pending = new ConcurrentLinkedQueue<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Map<Long, Counters> reconciled = new ConcurrentHashMap<>();
+        long highWaterMark = 0;
+        boolean completed = false;
+        try {
+            highWaterMark = jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(COUNT_SQL)) {
+                    statement.setObject(1, LocalDate.now());
+                    long mark = sequence.get();
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            Counters counts = new Counters();
+                            counts.registered.add(resultSet.getLong(2));
+                            counts.owned.add(resultSet.getLong(3));
+                            counts.warrantyExpired.add(resultSet.getLong(4));
+                            reconciled.put(resultSet.getLong(1), counts);
+                        }
+                    }
+                    return mark;
+                }
+            });
+            completed = true;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                if (completed) {
+                    for (Change change : pending) {
+                        if (change.sequence() > highWaterMark) {
+                            change.apply().accept(reconciled);
+                        }
+                    }
+                    counters = reconciled;
+                }
+                pending = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return one entry per passport, computed from the counters in O(passports)
+     */
+    public List<PassportUtilizationVO> getUtilization() {
+        Map<Long, Counters> current;
+        lock.readLock().lock();
+        try {
+            current = counters;
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Passport> passports = passportSerialIndex.passports();
+
+        List<PassportUtilizationVO> utilization = new ArrayList<>(passports.size());
+        for (Passport passport : passports) {
+            Counters counts = current.get(passport.getId());
+            utilization.add(counts == null
+                    ? new PassportUtilizationVO(passport, 0, 0, 0)
+                    : new PassportUtilizationVO(passport, counts.registered.sum(), counts.owned.sum(), counts.warrantyExpired.sum()));
+        }
+        return utilization;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceRegistered(DeviceRegisteredEvent event) {
+        if (event.passportId() == null) {
+            return;
+        }
+        boolean expired = isExpired(event.warrantyExpirationDate());
+        record(map -> add(map, event.passportId(), 1, event.owned(), expired));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceDeleted(DeviceDeletedEvent event) {
+        if (event.passportId() == null) {
+            return;
+        }
+        boolean expired = isExpired(event.warrantyExpirationDate());
+        record(map -> add(map, event.passportId(), -1, event.owned(), expired));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceUpdated(DeviceUpdatedEvent event) {
+        boolean wasExpired = isExpired(event.previousWarrantyExpirationDate());
+        boolean expired = isExpired(event.warrantyExpirationDate());
+        if (event.passportId() == null || wasExpired == expired) {
+            return;
+        }
+        record(map -> map.computeIfAbsent(event.passportId(), id -> new Counters()).warrantyExpired.add(expired ? 1 : -1));
+    }
+
+    private void record(Consumer<Map<Long, Counters>> change) {
+        lock.readLock().lock();
+        try {
+            long number = sequence.incrementAndGet();
+            if (pending != null) {
+                pending.add(new Change(number, change));
+            }
+            change.accept(counters);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void add(Map<Long, Counters> map, Long passportId, int delta, boolean owned, boolean expired) {
+        Counters counts = map.computeIfAbsent(passportId, id -> new Counters());
+        counts.registered.add(delta);
+        if (owned) {
+            counts.owned.add(delta);
+        }
+        if (expired) {
+            counts.warrantyExpired.add(delta);
+        }
+    }
+
+    private static boolean isExpired(LocalDate warrantyExpirationDate) {
+        return warrantyExpirationDate != null && warrantyExpirationDate.isBefore(LocalDate.now());
+    }
+}
@@ -14,7 +14,7 @@ public class RenovationService {
     private final DeviceService deviceService;
 
     public Renovation save(RenovationCreateVO vo) {
-        Device device = deviceService.isDeviceExists(vo.deviceSerialNumber());
+        Device device = deviceService.getRegisteredDevice(vo.deviceSerialNumber());
 
         Renovation renovation = new Renovation();
         renovation.setDevice(device);
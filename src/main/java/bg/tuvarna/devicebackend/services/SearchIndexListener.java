@@ -0,0 +1,30 @@
+package bg.tuvarna.devicebackend.services;
+
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import lombok.AllArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+/**
+ * Entity listener passing devices, users and passports written through JPA on to {@link SearchIndexService}.
+ * Hibernate gets it from the Spring context, so it can be injected; where the context has no
+ * {@link SearchIndexService}, as in JPA test slices, it does nothing.
+ */
+@Component
+@AllArgsConstructor
+public class SearchIndexListener {
+    private final ObjectProvider<SearchIndexService> searchIndexService;
+
+    @PostPersist
+    @PostUpdate
+    void saved(Object entity) {
+        searchIndexService.ifAvailable(service -> service.onSaved(entity));
+    }
+
+    @PostRemove
+    void removed(Object entity) {
+        searchIndexService.ifAvailable(service -> service.onRemoved(entity));
+    }
+}
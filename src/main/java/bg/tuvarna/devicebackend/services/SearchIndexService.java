@@ -0,0 +1,864 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.SearchStrategy;
+import bg.tuvarna.devicebackend.models.enums.UserRole;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
+import bg.tuvarna.devicebackend.utils.MappedJournal;
+import bg.tuvarna.devicebackend.utils.TrigramIndex;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.unit.DataSize;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Optional in-process search index for the device and user listings, used instead of the database when
+ * {@code listings.search.strategy} is {@code index}. It holds a {@link TrigramIndex} each of the devices'
+ * serials, the users' details and the passports' names and models, plus which devices belong to which user
+ * and passport, so a search matches exactly what the listings' LIKE search matches, in id order, without
+ * touching the database. Only the ids of a page come from the index; the listings themselves are still read
+ * by id. Everything is held in memory, roughly 250 bytes per device.
+ * <p>
+ * Devices, users and passports saved or removed through JPA are picked up by {@link SearchIndexListener}
+ * after their transaction commits. Those written with plain JDBC are picked up from their events: devices
+ * registered in bulk are read back by serial and indexed by the id they were given, devices deleted with a
+ * statement are removed by the id their event carries and imported passports are read back by id. Changes are queued and applied every
+ * {@code listings.search.index.refresh-interval}, so a search sees them within about that long.
+ * <p>
+ * Applied changes are appended to a {@link MappedJournal}, and every {@code snapshot-interval} and on shutdown
+ * the whole index is written to a snapshot, which acknowledges them. On startup the snapshot is loaded and the
+ * journal replayed; only without a readable snapshot is the index rebuilt from the database, in the background,
+ * with the database answering searches meanwhile. {@link #reindex()} rebuilds it from the database while changes
+ * keep being applied, streaming each table by id range; {@code reindex-cron}, hourly by default, runs it on a
+ * schedule, which repairs whatever the index missed, such as rows changed with plain SQL or by another instance.
+ * With several instances, each one's index therefore only sees the others' changes after its next reindex.
+ */
+@Service
+public class SearchIndexService {
+    private static final Logger logger = LoggerFactory.getLogger(SearchIndexService.class);
+
+    private static final String SNAPSHOT_FILE = "index.snapshot";
+    private static final String JOURNAL_FILE = "changes.journal";
+    private static final int SNAPSHOT_MAGIC = 0x53494458;
+    private static final int SNAPSHOT_VERSION = 2;
+
+    /**
+     * Rows read per query while rebuilding.
+     */
+    private static final int CHUNK_SIZE = 10_000;
+
+    /**
+     * Serials read back per query after a bulk registration.
+     */
+    private static final int SERIAL_BATCH_SIZE = 1000;
+
+    private static final String PASSPORTS_SQL = "select id, name, model from passports where id > ? order by id limit ?";
+    private static final String USERS_SQL = "select id, full_name, address, email, phone, role from users " +
+            "where id > ? order by id limit ?";
+    private static final String DEVICES_SQL = "select id, serial_number, user_id, passport_id from devices " +
+            "where id > ? order by id limit ?";
+    private static final String DEVICES_BY_SERIAL_SQL = "select id, serial_number, user_id, passport_id from devices " +
+            "where serial_number in (%s)";
+
+    enum Kind {
+        PASSPORT, PASSPORT_REMOVED, USER, USER_REMOVED, DEVICE, DEVICE_REMOVED,
+        /**
+         * A device registered by serial, to be read back; {@code text} is the serial. Never journaled.
+         */
+        SERIAL_REGISTERED,
+        /**
+         * Passports were created, so those above the highest indexed id are read back. Never journaled.
+         */
+        PASSPORTS_ADDED
+    }
+
+    /**
+     * A change to the index, as journaled. {@code text} is the lowercased document, {@code userId} and
+     * {@code passportId} are a device's owner and passport, 0 for none.
+     */
+    record Change(Kind kind, long id, String text, long userId, long passportId, boolean admin) {
+        static Change passport(long id, String name, String model) {
+            return new Change(Kind.PASSPORT, id, document(name, model), 0, 0, false);
+        }
+
+        static Change user(long id, String fullName, String address, String email, String phone, boolean admin) {
+            return new Change(Kind.USER, id, document(fullName, address, email, phone), 0, 0, admin);
+        }
+
+        static Change device(long id, String serialNumber, long userId, long passportId) {
+            return new Change(Kind.DEVICE, id, document(serialNumber), userId, passportId, false);
+        }
+
+        static Change of(Kind kind, long id) {
+            return new Change(kind, id, null, 0, 0, false);
+        }
+
+        static Change of(Kind kind, String serialNumber) {
+            return new Change(kind, 0, serialNumber, 0, 0, false);
+        }
+    }
+
+    /**
+     * A device's owner and passport, 0 for none.
+     */
+    private record Links(long userId, long passportId) {
+    }
+
+    /**
+     * The index itself. Not thread-safe.
+     */
+    static final class Index {
+        private final TrigramIndex passports = new TrigramIndex();
+        private final TrigramIndex users = new TrigramIndex();
+        private final Set<Long> admins = new HashSet<>();
+        private final TrigramIndex devices = new TrigramIndex();
+        private final Map<Long, Links> links = new HashMap<>();
+        private final Map<Long, TrigramIndex.Ids> devicesByUser = new HashMap<>();
+        private final Map<Long, TrigramIndex.Ids> devicesByPassport = new HashMap<>();
+        private long maxPassportId;
+
+        void apply(Change change) {
+            switch (change.kind()) {
+                case PASSPORT -> {
+                    passports.put(change.id(), change.text());
+                    maxPassportId = Math.max(maxPassportId, change.id());
+                }
+                case PASSPORT_REMOVED -> passports.remove(change.id());
+                case USER -> {
+                    users.put(change.id(), change.text());
+                    if (change.admin()) {
+                        admins.add(change.id());
+                    } else {
+                        admins.remove(change.id());
+                    }
+                }
+                case USER_REMOVED -> {
+                    users.remove(change.id());
+                    admins.remove(change.id());
+                }
+                case DEVICE -> putDevice(change.id(), change.text(), new Links(change.userId(), change.passportId()));
+                case DEVICE_REMOVED -> removeDevice(change.id());
+                default -> throw new IllegalArgumentException("Unresolved change " + change.kind());
+            }
+        }
+
+        private void putDevice(long id, String serialNumber, Links deviceLinks) {
+            Links previous = links.put(id, deviceLinks);
+            if (previous != null && !previous.equals(deviceLinks)) {
+                unlink(id, previous);
+            }
+            devices.put(id, serialNumber);
+            link(devicesByUser, deviceLinks.userId(), id);
+            link(devicesByPassport, deviceLinks.passportId(), id);
+        }
+
+        private void removeDevice(long id) {
+            Links previous = links.remove(id);
+            if (previous != null) {
+                unlink(id, previous);
+            }
+            devices.remove(id);
+        }
+
+        private void unlink(long id, Links previous) {
+            unlink(devicesByUser, previous.userId(), id);
+            unlink(devicesByPassport, previous.passportId(), id);
+        }
+
+        private static void link(Map<Long, TrigramIndex.Ids> devicesBy, long key, long id) {
+            if (key != 0) {
+                devicesBy.computeIfAbsent(key, k -> new TrigramIndex.Ids()).add(id);
+            }
+        }
+
+        private static void unlink(Map<Long, TrigramIndex.Ids> devicesBy, long key, long id) {
+            TrigramIndex.Ids ids = devicesBy.get(key);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.size() == 0) {
+                    devicesBy.remove(key);
+                }
+            }
+        }
+
+        /**
+         * Whether {@code device}, a {@link Kind#DEVICE} change, is indexed as it is.
+         */
+        boolean holds(Change device) {
+            return device.text().equals(devices.get(device.id()))
+                    && new Links(device.userId(), device.passportId()).equals(links.get(device.id()));
+        }
+
+        /**
+         * The devices whose serial, owner or passport contains {@code term}, by id, after {@code afterId}.
+         */
+        PrimitiveIterator.OfLong searchDevices(String term, long afterId) {
+            List<PrimitiveIterator.OfLong> sources = new ArrayList<>();
+            sources.add(devices.matches(term, afterId));
+            addDevicesOf(sources, devicesByUser, users.allMatches(term), afterId);
+            addDevicesOf(sources, devicesByPassport, passports.allMatches(term), afterId);
+            return TrigramIndex.union(sources);
+        }
+
+        private static void addDevicesOf(List<PrimitiveIterator.OfLong> sources, Map<Long, TrigramIndex.Ids> devicesBy,
+                                         List<Long> keys, long afterId) {
+            for (long key : keys) {
+                TrigramIndex.Ids ids = devicesBy.get(key);
+                if (ids != null) {
+                    sources.add(ids.iterator(afterId));
+                }
+            }
+        }
+
+        /**
+         * The users other than administrators whose details, or one of whose devices' serial or passport,
+         * contain {@code term}.
+         */
+        NavigableSet<Long> searchUsers(String term) {
+            NavigableSet<Long> matches = new TreeSet<>(users.allMatches(term));
+            devices.matches(term, Long.MIN_VALUE).forEachRemaining((long id) -> addOwner(matches, id));
+            for (long passportId : passports.allMatches(term)) {
+                TrigramIndex.Ids ids = devicesByPassport.get(passportId);
+                if (ids != null) {
+                    ids.iterator(Long.MIN_VALUE).forEachRemaining((long id) -> addOwner(matches, id));
+                }
+            }
+            matches.removeIf(admins::contains);
+            return matches;
+        }
+
+        private void addOwner(Set<Long> owners, long deviceId) {
+            long userId = links.get(deviceId).userId();
+            if (userId != 0) {
+                owners.add(userId);
+            }
+        }
+
+        int deviceCount() {
+            return devices.size();
+        }
+
+        int userCount() {
+            return users.size();
+        }
+
+        int passportCount() {
+            return passports.size();
+        }
+
+        /**
+         * Writes the index in id order, so that reading it back only ever appends to its id lists.
+         */
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(passports.size());
+            for (long id : sortedIds(passports)) {
+                out.writeLong(id);
+                writeString(out, passports.get(id));
+            }
+            out.writeInt(users.size());
+            for (long id : sortedIds(users)) {
+                out.writeLong(id);
+                out.writeBoolean(admins.contains(id));
+                writeString(out, users.get(id));
+            }
+            out.writeInt(devices.size());
+            for (long id : sortedIds(devices)) {
+                Links deviceLinks = links.get(id);
+                out.writeLong(id);
+                writeString(out, devices.get(id));
+                out.writeLong(deviceLinks.userId());
+                out.writeLong(deviceLinks.passportId());
+            }
+        }
+
+        static Index read(DataInputStream in) throws IOException {
+            Index index = new Index();
+            for (int i = in.readInt(); i > 0; i--) {
+                long id = in.readLong();
+                index.apply(new Change(Kind.PASSPORT, id, readString(in), 0, 0, false));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                long id = in.readLong();
+                boolean admin = in.readBoolean();
+                index.apply(new Change(Kind.USER, id, readString(in), 0, 0, admin));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                long id = in.readLong();
+                String serialNumber = readString(in);
+                index.apply(new Change(Kind.DEVICE, id, serialNumber, in.readLong(), in.readLong(), false));
+            }
+            return index;
+        }
+
+        private static long[] sortedIds(TrigramIndex texts) {
+            return texts.texts().keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path directory;
+    private final int journalSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Deque<Change> pending = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    // Null until loaded or first built.
+    private volatile Index index;
+    // The changes applied while a rebuild runs, to apply to the rebuilt index too; null when none runs.
+    private List<Change> rebuildLog;
+    private MappedJournal journal;
+    private long journalEnd = -1;
+    private volatile boolean dirty;
+
+    public SearchIndexService(
+            JdbcTemplate jdbcTemplate,
+            ObjectMapper objectMapper,
+            @Value("${listings.search.strategy:database}") SearchStrategy strategy,
+            @Value("${listings.search.index.path:data/search-index}") String path,
+            @Value("${listings.search.index.journal-size:64MB}") DataSize journalSize
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.enabled = strategy == SearchStrategy.INDEX;
+        this.directory = Path.of(path);
+        this.journalSize = Math.toIntExact(journalSize.toBytes());
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        journal = new MappedJournal(directory.resolve(JOURNAL_FILE), journalSize);
+        List<MappedJournal.Entry> entries = journal.unacknowledged();
+        if (!entries.isEmpty()) {
+            journalEnd = entries.get(entries.size() - 1).endOffset();
+        }
+
+        Index loaded = readSnapshot();
+        if (loaded == null) {
+            // Built once the application is ready; its snapshot acknowledges whatever the journal holds.
+            return;
+        }
+        for (MappedJournal.Entry entry : entries) {
+            loaded.apply(objectMapper.readValue(entry.payload(), Change.class));
+        }
+        index = loaded;
+        logger.info("Loaded the search index from {}: {} devices, {} users, {} passports, {} changes replayed",
+                directory, loaded.deviceCount(), loaded.userCount(), loaded.passportCount(), entries.size());
+    }
+
+    /**
+     * Builds the index if there was no snapshot to load, once the schema is sure to be in place.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (enabled && index == null) {
+            startReindex();
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            logger.warn("Applying the last search index changes failed: {}", e.getMessage());
+        }
+        snapshot();
+        journal.close();
+    }
+
+    /**
+     * Whether searches can be answered from the index: it is enabled and loaded.
+     */
+    public boolean isActive() {
+        return index != null;
+    }
+
+    /**
+     * The ids of the devices matching {@code searchBy}, ascending, after {@code afterId}, skipping {@code offset}.
+     */
+    public List<Long> searchDevices(String searchBy, long afterId, long offset, int limit) {
+        String term = searchBy.toLowerCase();
+        lock.readLock().lock();
+        try {
+            PrimitiveIterator.OfLong matches = index.searchDevices(term, afterId);
+            for (long skipped = 0; skipped < offset && matches.hasNext(); skipped++) {
+                matches.nextLong();
+            }
+            List<Long> ids = new ArrayList<>(limit);
+            while (ids.size() < limit && matches.hasNext()) {
+                ids.add(matches.nextLong());
+            }
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The ids of the users other than administrators matching {@code searchBy}, ascending, after {@code afterId},
+     * skipping {@code offset}.
+     */
+    public List<Long> searchUsers(String searchBy, long afterId, long offset, int limit) {
+        String term = searchBy.toLowerCase();
+        lock.readLock().lock();
+        try {
+            return index.searchUsers(term).tailSet(afterId, false).stream().skip(offset).limit(limit).toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long countDevices(String searchBy) {
+        String term = searchBy.toLowerCase();
+        lock.readLock().lock();
+        try {
+            PrimitiveIterator.OfLong matches = index.searchDevices(term, 0);
+            long count = 0;
+            while (matches.hasNext()) {
+                matches.nextLong();
+                count++;
+            }
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long countUsers(String searchBy) {
+        String term = searchBy.toLowerCase();
+        lock.readLock().lock();
+        try {
+            return index.searchUsers(term).size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Queues {@code entity}'s new state once its transaction commits.
+     */
+    public void onSaved(Object entity) {
+        if (!enabled) {
+            return;
+        }
+        Change change = switch (entity) {
+            case Device device -> Change.device(
+                    device.getId(),
+                    device.getSerialNumber(),
+                    device.getUser() != null ? device.getUser().getId() : 0,
+                    device.getPassport() != null ? device.getPassport().getId() : 0
+            );
+            case User user -> Change.user(user.getId(), user.getFullName(), user.getAddress(), user.getEmail(),
+                    user.getPhone(), user.getRole() == UserRole.ADMIN);
+            case Passport passport -> Change.passport(passport.getId(), passport.getName(), passport.getModel());
+            default -> null;
+        };
+        enqueueAfterCommit(change);
+    }
+
+    /**
+     * Queues {@code entity}'s removal once its transaction commits.
+     */
+    public void onRemoved(Object entity) {
+        if (!enabled) {
+            return;
+        }
+        Change change = switch (entity) {
+            case Device device -> Change.of(Kind.DEVICE_REMOVED, device.getId());
+            case User user -> Change.of(Kind.USER_REMOVED, user.getId());
+            case Passport passport -> Change.of(Kind.PASSPORT_REMOVED, passport.getId());
+            default -> null;
+        };
+        enqueueAfterCommit(change);
+    }
+
+    private void enqueueAfterCommit(Change change) {
+        if (change == null) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            pending.add(change);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                pending.add(change);
+            }
+        });
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceRegistered(DeviceRegisteredEvent event) {
+        if (enabled) {
+            pending.add(Change.of(Kind.SERIAL_REGISTERED, event.serialNumber()));
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceDeleted(DeviceDeletedEvent event) {
+        if (enabled && event.id() != null) {
+            pending.add(Change.of(Kind.DEVICE_REMOVED, event.id()));
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPassportsChanged(PassportsChangedEvent event) {
+        if (enabled) {
+            pending.add(Change.of(Kind.PASSPORTS_ADDED, 0));
+        }
+    }
+
+    /**
+     * Applies the queued changes, so that searches see them.
+     */
+    @Scheduled(fixedDelayString = "${listings.search.index.refresh-interval:PT1S}")
+    public synchronized void refresh() {
+        if (journal == null || pending.isEmpty()) {
+            return;
+        }
+
+        List<Change> queued = new ArrayList<>();
+        for (Change change; (change = pending.poll()) != null; ) {
+            queued.add(change);
+        }
+        List<Change> changes;
+        try {
+            changes = resolve(queued);
+        } catch (RuntimeException e) {
+            // Put back in order for the next refresh.
+            for (int i = queued.size() - 1; i >= 0; i--) {
+                pending.addFirst(queued.get(i));
+            }
+            throw e;
+        }
+
+        lock.writeLock().lock();
+        try {
+            changes.forEach(this::apply);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads back the devices registered and the passports imported with plain JDBC, in one query per batch.
+     * A registered serial is always read back, since the device holding it in the index may be one deleted
+     * since; only a device already indexed as it is, by id, is left out.
+     */
+    private List<Change> resolve(List<Change> queued) {
+        Set<String> serials = queued.stream()
+                .filter(change -> change.kind() == Kind.SERIAL_REGISTERED)
+                .map(Change::text)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        boolean passportsAdded = queued.stream().anyMatch(change -> change.kind() == Kind.PASSPORTS_ADDED);
+        if (serials.isEmpty() && !passportsAdded) {
+            return queued;
+        }
+
+        long afterPassportId;
+        lock.readLock().lock();
+        try {
+            afterPassportId = index != null ? index.maxPassportId : 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, Change> registered = findDevicesBySerials(List.copyOf(serials));
+        List<Change> imported = new ArrayList<>();
+        if (passportsAdded) {
+            scan(PASSPORTS_SQL, afterPassportId, rs -> imported.add(passportChange(rs)));
+        }
+
+        lock.readLock().lock();
+        try {
+            // Those registered through JPA are mostly indexed already, from the listener.
+            Index current = index;
+            if (current != null) {
+                registered.values().removeIf(current::holds);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        List<Change> resolved = new ArrayList<>();
+        for (Change change : queued) {
+            switch (change.kind()) {
+                case SERIAL_REGISTERED -> {
+                    Change device = registered.remove(change.text());
+                    if (device != null) {
+                        resolved.add(device);
+                    }
+                }
+                case PASSPORTS_ADDED -> {
+                    resolved.addAll(imported);
+                    imported.clear();
+                }
+                default -> resolved.add(change);
+            }
+        }
+        return resolved;
+    }
+
+    private Map<String, Change> findDevicesBySerials(List<String> serials) {
+        Map<String, Change> devices = new HashMap<>();
+        for (int from = 0; from < serials.size(); from += SERIAL_BATCH_SIZE) {
+            List<String> batch = serials.subList(from, Math.min(from + SERIAL_BATCH_SIZE, serials.size()));
+            String sql = DEVICES_BY_SERIAL_SQL.formatted(String.join(",", Collections.nCopies(batch.size(), "?")));
+            jdbcTemplate.query(sql, (RowCallbackHandler) rs -> devices.put(rs.getString("serial_number"), deviceChange(rs)),
+                    batch.toArray());
+        }
+        return devices;
+    }
+
+    /**
+     * Applies and journals {@code change}; the write lock is held.
+     */
+    private void apply(Change change) {
+        if (index != null) {
+            index.apply(change);
+        }
+        if (rebuildLog != null) {
+            rebuildLog.add(change);
+        }
+        dirty = true;
+
+        long end = journal.append(serialize(change));
+        if (end >= 0) {
+            journalEnd = end;
+        } else if (index != null && rebuildLog == null) {
+            // The journal is full; a snapshot, which already holds the change, empties it.
+            writeSnapshot();
+        }
+        // During a rebuild the rebuilt index's snapshot holds the change.
+    }
+
+    private byte[] serialize(Change change) {
+        try {
+            return objectMapper.writeValueAsBytes(change);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the index to its snapshot if it changed since the last one.
+     */
+    @Scheduled(
+            fixedDelayString = "${listings.search.index.snapshot-interval:PT10M}",
+            initialDelayString = "${listings.search.index.snapshot-interval:PT10M}"
+    )
+    public void snapshot() {
+        if (journal == null) {
+            return;
+        }
+        // A read lock is enough: changes are applied and journaled under the write lock.
+        lock.readLock().lock();
+        try {
+            if (index != null && dirty) {
+                writeSnapshot();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot next to the old one and moves it over it, then acknowledges the journal up to here.
+     * If the process dies in between, the journal is replayed over the new snapshot, which changes nothing.
+     */
+    private void writeSnapshot() {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            index.write(out);
+        } catch (IOException e) {
+            logger.warn("Writing the search index snapshot failed: {}", e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Replacing the search index snapshot failed: {}", e.getMessage());
+            return;
+        }
+        if (journalEnd >= 0) {
+            journal.acknowledge(journalEnd);
+            journalEnd = -1;
+        }
+        dirty = false;
+    }
+
+    /**
+     * @return the snapshot, or null if there is none or it can't be read
+     */
+    private Index readSnapshot() {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                logger.warn("Search index snapshot {} has another format, rebuilding", snapshot);
+                return null;
+            }
+            return Index.read(in);
+        } catch (IOException e) {
+            logger.warn("Search index snapshot {} can't be read, rebuilding: {}", snapshot, e.getMessage());
+            return null;
+        }
+    }
+
+    @Scheduled(cron = "${listings.search.index.reindex-cron:0 0 * * * *}")
+    void scheduledReindex() {
+        if (enabled) {
+            startReindex();
+        }
+    }
+
+    /**
+     * Runs {@link #reindex()} on its own thread, so changes keep being applied meanwhile.
+     */
+    private void startReindex() {
+        Thread thread = new Thread(this::reindex, "search-index-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Rebuilds the index from the database and swaps it in, unless a rebuild is already running. Passports,
+     * users and devices are read {@value #CHUNK_SIZE} rows at a time by id range, so no query holds a long
+     * snapshot. Changes applied meanwhile are applied to the rebuilt index too before the swap; applying a change
+     * the rebuild already read again changes nothing.
+     */
+    public void reindex() {
+        if (!enabled || !rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lock.writeLock().lock();
+            try {
+                rebuildLog = new ArrayList<>();
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            long started = System.nanoTime();
+            Index rebuilt = new Index();
+            scan(PASSPORTS_SQL, 0, rs -> rebuilt.apply(passportChange(rs)));
+            scan(USERS_SQL, 0, rs -> rebuilt.apply(userChange(rs)));
+            scan(DEVICES_SQL, 0, rs -> rebuilt.apply(deviceChange(rs)));
+
+            lock.writeLock().lock();
+            try {
+                rebuildLog.forEach(rebuilt::apply);
+                index = rebuilt;
+                dirty = true;
+                writeSnapshot();
+            } finally {
+                rebuildLog = null;
+                lock.writeLock().unlock();
+            }
+            logger.info("Rebuilt the search index in {} ms: {} devices, {} users, {} passports",
+                    (System.nanoTime() - started) / 1_000_000, rebuilt.deviceCount(), rebuilt.userCount(), rebuilt.passportCount());
+        } catch (RuntimeException e) {
+            lock.writeLock().lock();
+            rebuildLog = null;
+            lock.writeLock().unlock();
+            logger.warn("Rebuilding the search index failed: {}", e.getMessage());
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    /**
+     * Reads the rows of {@code sql} with ids above {@code afterId}, {@value #CHUNK_SIZE} at a time.
+     */
+    private void scan(String sql, long afterId, RowCallbackHandler handler) {
+        long[] lastId = {afterId};
+        int[] rows = new int[1];
+        do {
+            rows[0] = 0;
+            jdbcTemplate.query(sql, (RowCallbackHandler) rs -> {
+                handler.processRow(rs);
+                lastId[0] = rs.getLong("id");
+                rows[0]++;
+            }, lastId[0], CHUNK_SIZE);
+        } while (rows[0] == CHUNK_SIZE);
+    }
+
+    private static Change passportChange(ResultSet rs) throws SQLException {
+        return Change.passport(rs.getLong("id"), rs.getString("name"), rs.getString("model"));
+    }
+
+    private static Change userChange(ResultSet rs) throws SQLException {
+        return Change.user(rs.getLong("id"), rs.getString("full_name"), rs.getString("address"), rs.getString("email"),
+                rs.getString("phone"), UserRole.ADMIN.name().equals(rs.getString("role")));
+    }
+
+    private static Change deviceChange(ResultSet rs) throws SQLException {
+        // getLong reads a null owner or passport as 0.
+        return Change.device(rs.getLong("id"), rs.getString("serial_number"), rs.getLong("user_id"), rs.getLong("passport_id"));
+    }
+
+    /**
+     * The lowercased fields, one per line, so that a term can't match across two of them.
+     */
+    private static String document(String... fields) {
+        return Stream.of(fields).filter(Objects::nonNull).map(String::toLowerCase).collect(Collectors.joining("\n"));
+    }
+}
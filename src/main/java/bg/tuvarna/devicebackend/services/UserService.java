@@ -3,19 +3,28 @@ package bg.tuvarna.devicebackend.services;
 import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
 import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
 import bg.tuvarna.devicebackend.models.dtos.ChangePasswordVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
 import bg.tuvarna.devicebackend.models.dtos.UserCreateVO;
 import bg.tuvarna.devicebackend.models.dtos.UserListing;
 import bg.tuvarna.devicebackend.models.dtos.UserUpdateVO;
 import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
 import bg.tuvarna.devicebackend.models.enums.UserRole;
+import bg.tuvarna.devicebackend.models.events.UserRegisteredEvent;
 import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.utils.Cursors;
 import bg.tuvarna.devicebackend.utils.CustomPage;
+import jakarta.transaction.Transactional;
 import lombok.AllArgsConstructor;
-import org.springframework.data.domain.Page;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 @Service
@@ -24,8 +33,34 @@ public class UserService {
     private final UserRepository userRepository;
     private final PasswordEncoder passwordEncoder;
     private final DeviceService deviceService;
+    private final ListingCountService listingCountService;
+    private final ListingSearchService listingSearchService;
+    private final SearchIndexService searchIndexService;
+    private final ApplicationEventPublisher eventPublisher;
 
+    @Transactional
     public void register(UserCreateVO userCreateVO) {
+        validateRegistration(userCreateVO);
+        register(userCreateVO, passwordEncoder.encode(userCreateVO.password()));
+    }
+
+    /**
+     * The checks {@link #register(UserCreateVO)} makes before touching the database.
+     */
+    public void validateRegistration(UserCreateVO userCreateVO) {
+        if (withDevice(userCreateVO)) {
+            deviceService.validateSerialNumber(userCreateVO.deviceSerialNumber());
+        }
+    }
+
+    /**
+     * Registers a user whose password is already encoded, as queued registrations keep it. The user and their
+     * device are saved in one transaction, so a device that fails for any reason leaves no user behind.
+     */
+    @Transactional
+    public void register(UserCreateVO userCreateVO, String encodedPassword) {
+        boolean withDevice = withDevice(userCreateVO);
+
         if (isEmailTaken(userCreateVO.email())) {
             throw new CustomException("Email already taken", ErrorCode.AlreadyExists);
         }
@@ -35,23 +70,18 @@ public class UserService {
 
         User user = new User(userCreateVO);
 
-        user.setPassword(passwordEncoder.encode(userCreateVO.password()));
+        user.setPassword(encodedPassword);
         user = userRepository.saveAndFlush(user);
 
-        if (
-                userCreateVO.deviceSerialNumber() == null || userCreateVO.deviceSerialNumber().isBlank()
-                || userCreateVO.purchaseDate() == null
-        ) {
-            return;
-        }
-
-        try {
+        if (withDevice) {
             deviceService.alreadyExist(userCreateVO.deviceSerialNumber());
             deviceService.registerDevice(userCreateVO.deviceSerialNumber(), userCreateVO.purchaseDate(), user);
-        } catch (CustomException e) {
-            userRepository.delete(user);
-            throw e;
         }
+        eventPublisher.publishEvent(new UserRegisteredEvent(userCreateVO.email()));
+    }
+
+    public String encodePassword(String password) {
+        return passwordEncoder.encode(password);
     }
 
     public boolean isEmailTaken(String email) {
@@ -72,37 +102,130 @@ public class UserService {
         return userRepository.findByEmailOrPhone(username).orElseThrow(() -> new CustomException("User not found", ErrorCode.EntityNotFound));
     }
 
-    public CustomPage<UserListing> getUsers(String searchBy, int page, int size) {
-        Page<User> userPage;
-        if (searchBy == null) {
-            userPage = userRepository.getAllUsers(PageRequest.of(page - 1, size));
+    /**
+     * A numbered page of the users matching {@code searchBy}, by id when {@link SearchIndexService} answers
+     * the search, ranked by relevance where {@link ListingSearchService} is available, otherwise by id.
+     */
+    public CustomPage<UserListing> getUsers(String searchBy, int page, int size, CountMode countMode) {
+        List<UserListing> users;
+        String lastCursor = null;
+        if (isIndexed(searchBy)) {
+            users = findUsers(searchIndexService.searchUsers(searchBy, 0, (long) (page - 1) * size, size));
+            if (!users.isEmpty()) {
+                lastCursor = Cursors.encode(users.get(users.size() - 1).id());
+            }
+        } else if (isRanked(searchBy)) {
+            List<ListingSearchService.Hit> hits = listingSearchService.searchUsers(searchBy, null, (long) (page - 1) * size, size);
+            users = findUsers(hits.stream().map(ListingSearchService.Hit::id).toList());
+            if (!hits.isEmpty()) {
+                lastCursor = hits.get(hits.size() - 1).cursor();
+            }
         } else {
-            userPage = userRepository.searchBy(searchBy, PageRequest.of(page - 1, size));
+            // Ordered by id so that pages don't overlap or skip users.
+            users = findUsersAfter(searchBy, 0, PageRequest.of(page - 1, size));
+            if (!users.isEmpty()) {
+                lastCursor = Cursors.encode(users.get(users.size() - 1).id());
+            }
         }
 
         CustomPage<UserListing> customPage = new CustomPage<>();
-        customPage.setTotalPages(userPage.getTotalPages());
-        customPage.setCurrentPage(userPage.getNumber() + 1);
-        customPage.setSize(userPage.getSize());
-        customPage.setTotalItems(userPage.getTotalElements());
-
-        customPage.setItems(userPage
-                .stream()
-                .peek(user -> {
-                            if (searchBy != null) {
-                                user.setDevices(user.getDevices().stream().filter(
-                                        device -> device.getSerialNumber().contains(searchBy)
-                                ).collect(Collectors.toList()));
-                            }
-                        }
-                )
-                .map(UserListing::new)
-                .toList()
-        );
+        customPage.setCurrentPage(page);
+        customPage.setSize(size);
+        ListingCountService.Count count = listingCountService.countUsers(searchBy, countMode);
+        customPage.setTotal(count.total(), count.mode());
+        boolean hasNext = count.mode() == CountMode.EXACT ? (long) page * size < count.total() : users.size() == size;
+        if (hasNext) {
+            customPage.setNextCursor(lastCursor);
+        }
+        customPage.setItems(withDevices(users, searchBy));
 
         return customPage;
     }
 
+    /**
+     * Keyset pagination over the same users as {@link #getUsers(String, int, int, CountMode)}: the page after
+     * the user {@code after} points at, or the first page for an empty cursor.
+     */
+    public CustomPage<UserListing> getUsers(String searchBy, String after, int size, CountMode countMode) {
+        if (size < 1) {
+            throw new CustomException("Page size must be positive", ErrorCode.Validation);
+        }
+
+        CustomPage<UserListing> customPage = new CustomPage<>();
+        customPage.setCurrentPage(-1);
+        customPage.setSize(size);
+        ListingCountService.Count count = listingCountService.countUsers(searchBy, countMode);
+        customPage.setTotal(count.total(), count.mode());
+
+        List<UserListing> users;
+        if (isIndexed(searchBy)) {
+            long afterId = after.isEmpty() ? 0 : Cursors.decodeId(after);
+            List<Long> ids = searchIndexService.searchUsers(searchBy, afterId, 0, size + 1);
+            if (ids.size() > size) {
+                ids = ids.subList(0, size);
+                customPage.setNextCursor(Cursors.encode(ids.get(size - 1)));
+            }
+            users = findUsers(ids);
+        } else if (isRanked(searchBy)) {
+            ListingSearchService.Hit afterHit = after.isEmpty() ? null : ListingSearchService.Hit.fromCursor(after);
+            List<ListingSearchService.Hit> hits = listingSearchService.searchUsers(searchBy, afterHit, 0, size + 1);
+            if (hits.size() > size) {
+                hits = hits.subList(0, size);
+                customPage.setNextCursor(hits.get(size - 1).cursor());
+            }
+            users = findUsers(hits.stream().map(ListingSearchService.Hit::id).toList());
+        } else {
+            long afterId = after.isEmpty() ? 0 : Cursors.decodeId(after);
+            users = findUsersAfter(searchBy, afterId, PageRequest.of(0, size + 1));
+            if (users.size() > size) {
+                users = users.subList(0, size);
+                customPage.setNextCursor(Cursors.encode(users.get(size - 1).id()));
+            }
+        }
+        customPage.setItems(withDevices(users, searchBy));
+
+        return customPage;
+    }
+
+    private boolean isIndexed(String searchBy) {
+        return searchBy != null && searchIndexService.isActive();
+    }
+
+    private boolean isRanked(String searchBy) {
+        return searchBy != null && listingSearchService.isAvailable();
+    }
+
+    /**
+     * The listings of the users with {@code ids}, in their order.
+     */
+    private List<UserListing> findUsers(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        Map<Long, UserListing> users = userRepository.findListingsByIds(ids).stream()
+                .collect(Collectors.toMap(UserListing::id, user -> user));
+        return ids.stream().map(users::get).filter(Objects::nonNull).toList();
+    }
+
+    private List<UserListing> findUsersAfter(String searchBy, long afterId, Pageable pageable) {
+        return searchBy == null
+                ? userRepository.getAllUsersAfter(afterId, pageable)
+                : userRepository.searchByAfter(searchBy, afterId, pageable);
+    }
+
+    /**
+     * Adds their devices to {@code users}, keeping only those matching {@code searchBy} when searching.
+     */
+    private List<UserListing> withDevices(List<UserListing> users, String searchBy) {
+        Map<Long, List<DeviceListingVO>> devices = deviceService.findListingsByOwners(users.stream().map(UserListing::id).toList());
+        return users.stream()
+                .map(user -> user.withDevices(devices.getOrDefault(user.id(), List.of()).stream()
+                        .filter(device -> searchBy == null || device.serialNumber().contains(searchBy))
+                        .toList()))
+                .toList();
+    }
+
     public User updateUser(Long id, UserUpdateVO userUpdateVO) {
         User user = getUserById(id);
 
@@ -138,4 +261,9 @@ public class UserService {
             throw new CustomException("Old password didn't match", ErrorCode.Validation);
         }
     }
-}
\ No newline at end of file
+
+    private static boolean withDevice(UserCreateVO userCreateVO) {
+        return userCreateVO.deviceSerialNumber() != null && !userCreateVO.deviceSerialNumber().isBlank()
+                && userCreateVO.purchaseDate() != null;
+    }
+}
@@ -0,0 +1,274 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.config.PostgresSchemaSetup;
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.dtos.ExpiringDeviceVO;
+import bg.tuvarna.devicebackend.models.dtos.ExpiringDevicesVO;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceUpdatedEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.utils.Cursors;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Answers "which devices' warranties expire within the next N days".
+ * <p>
+ * Listings walk the warranty expiration date in keyset order. On PostgreSQL they are served by a
+ * partial index over warranties that hadn't expired at the start of the month; the daily refresh
+ * replaces it with a smaller one when a new month starts, so it never holds long-expired devices.
+ * <p>
+ * Counts come from per-day buckets over the next {@code horizon} days, precomputed by the daily
+ * refresh and kept current by the device write events, so a count is two array reads. Writes that
+ * commit while a refresh runs are replayed onto its result, except those at or below the high-water mark the
+ * refresh takes right before its query, which the query already counted, like {@link PassportUtilizationService}.
+ * Bulk changes that publish no events (warranty recomputation) call {@link #refresh()} themselves.
+ */
+@Service
+public class WarrantyExpiryService {
+    private static final Logger logger = LoggerFactory.getLogger(WarrantyExpiryService.class);
+    private static final String INDEX_PREFIX = "devices_warranty_active_";
+    private static final DateTimeFormatter INDEX_MONTH = DateTimeFormatter.ofPattern("yyyyMM");
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * {@code cumulative[i]} is the number of devices whose warranty expires between {@code start} and {@code start + i} days.
+     */
+    private record Buckets(LocalDate start, AtomicLongArray cumulative) {
+    }
+
+    private record Change(long sequence, LocalDate warrantyExpirationDate, int delta) {
+    }
+
+    private final DeviceRepository deviceRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final PostgresSchemaSetup schemaSetup;
+    private final int horizonDays;
+    private final Object lock = new Object();
+    private long sequence;
+    private volatile Buckets buckets;
+    private List<Change> pending;
+
+    public WarrantyExpiryService(
+            DeviceRepository deviceRepository,
+            JdbcTemplate jdbcTemplate,
+            PostgresSchemaSetup schemaSetup,
+            MeterRegistry meterRegistry,
+            @Value("${warranty.expiry.horizon-days:400}") int horizonDays
+    ) {
+        this.deviceRepository = deviceRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.schemaSetup = schemaSetup;
+        this.horizonDays = horizonDays;
+
+        Gauge.builder("devices.warranty.expiring", this, service -> service.countExpiringWithin(30))
+                .tag("within", "30d")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    @Scheduled(cron = "${warranty.expiry.refresh-cron:0 5 0 * * *}")
+    public void refresh() {
+        if (schemaSetup.isPostgres()) {
+            refreshActiveWarrantyIndex(LocalDate.now().withDayOfMonth(1));
+        }
+        rebuildBuckets(LocalDate.now());
+    }
+
+    public synchronized void rebuildBuckets(LocalDate start) {
+        synchronized (lock) {
+            pending = new ArrayList<>();
+        }
+
+        long begin = System.nanoTime();
+        long[] daily = new long[horizonDays];
+        long highWaterMark;
+        try {
+            highWaterMark = jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "select warranty_expiration_date, count(*) from devices " +
+                                "where warranty_expiration_date between ? and ? group by warranty_expiration_date")) {
+                    statement.setObject(1, start);
+                    statement.setObject(2, start.plusDays(horizonDays - 1));
+                    long mark;
+                    synchronized (lock) {
+                        mark = sequence;
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            LocalDate date = resultSet.getObject(1, LocalDate.class);
+                            daily[(int) ChronoUnit.DAYS.between(start, date)] += resultSet.getLong(2);
+                        }
+                    }
+                    return mark;
+                }
+            });
+        } catch (RuntimeException e) {
+            synchronized (lock) {
+                pending = null;
+            }
+            throw e;
+        }
+
+        AtomicLongArray cumulative = new AtomicLongArray(horizonDays);
+        long total = 0;
+        for (int i = 0; i < horizonDays; i++) {
+            total += daily[i];
+            cumulative.set(i, total);
+        }
+        Buckets built = new Buckets(start, cumulative);
+
+        synchronized (lock) {
+            for (Change change : pending) {
+                if (change.sequence() > highWaterMark) {
+                    apply(built, change.warrantyExpirationDate(), change.delta());
+                }
+            }
+            pending = null;
+            buckets = built;
+        }
+        logger.info("Bucketed {} warranties expiring in the next {} days in {} ms",
+                total, horizonDays, (System.nanoTime() - begin) / 1_000_000);
+    }
+
+    /**
+     * Number of devices whose warranty expires between today and {@code days} days from now, inclusive.
+     * Served from the buckets; only a span reaching past them is counted in the database.
+     */
+    public long countExpiringWithin(int days) {
+        LocalDate today = LocalDate.now();
+        Buckets current = buckets;
+        if (current != null) {
+            long from = ChronoUnit.DAYS.between(current.start(), today);
+            long to = from + days;
+            if (from >= 0 && to < horizonDays) {
+                return current.cumulative().get((int) to) - (from > 0 ? current.cumulative().get((int) from - 1) : 0);
+            }
+        }
+        return deviceRepository.countExpiring(today, today.plusDays(days));
+    }
+
+    public ExpiringDevicesVO getExpiring(int days, String after, int size) {
+        if (days < 0) {
+            throw new CustomException("Invalid expiry window", ErrorCode.Validation);
+        }
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            throw new CustomException("Page size must be between 1 and " + MAX_PAGE_SIZE, ErrorCode.Validation);
+        }
+
+        LocalDate today = LocalDate.now();
+        // Without a cursor, start just before the window so every device in it qualifies.
+        LocalDate afterDate = today.minusDays(1);
+        long afterId = 0;
+        if (after != null) {
+            String[] cursor = Cursors.decode(after, 2);
+            try {
+                afterDate = LocalDate.parse(cursor[0]);
+                afterId = Long.parseLong(cursor[1]);
+            } catch (RuntimeException e) {
+                throw Cursors.invalid();
+            }
+        }
+
+        List<ExpiringDeviceVO> items = deviceRepository.findExpiring(
+                today, today.plusDays(days), afterDate, afterId, PageRequest.of(0, size + 1)
+        );
+        String nextCursor = null;
+        if (items.size() > size) {
+            items = items.subList(0, size);
+            ExpiringDeviceVO last = items.get(size - 1);
+            nextCursor = Cursors.encode(last.warrantyExpirationDate(), last.id());
+        }
+        return new ExpiringDevicesVO(countExpiringWithin(days), nextCursor, items);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceRegistered(DeviceRegisteredEvent event) {
+        record(event.warrantyExpirationDate(), 1);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceDeleted(DeviceDeletedEvent event) {
+        record(event.warrantyExpirationDate(), -1);
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDeviceUpdated(DeviceUpdatedEvent event) {
+        record(event.previousWarrantyExpirationDate(), -1);
+        record(event.warrantyExpirationDate(), 1);
+    }
+
+    private void record(LocalDate warrantyExpirationDate, int delta) {
+        if (warrantyExpirationDate == null) {
+            return;
+        }
+        synchronized (lock) {
+            sequence++;
+            if (pending != null) {
+                pending.add(new Change(sequence, warrantyExpirationDate, delta));
+            }
+            if (buckets != null) {
+                apply(buckets, warrantyExpirationDate, delta);
+            }
+        }
+    }
+
+    private void apply(Buckets target, LocalDate warrantyExpirationDate, int delta) {
+        long offset = ChronoUnit.DAYS.between(target.start(), warrantyExpirationDate);
+        if (offset < 0 || offset >= horizonDays) {
+            return;
+        }
+        for (int i = (int) offset; i < horizonDays; i++) {
+            target.cumulative().addAndGet(i, delta);
+        }
+    }
+
+    /**
+     * Makes sure the partial index for warranties active since {@code cutoff} exists and drops older ones.
+     * The index is built concurrently, so writes carry on while it is.
+     */
+    private void refreshActiveWarrantyIndex(LocalDate cutoff) {
+        String name = INDEX_PREFIX + cutoff.format(INDEX_MONTH) + "_idx";
+        try {
+            List<Boolean> valid = jdbcTemplate.queryForList(
+                    "SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?)", Boolean.class, "public." + name);
+            if (valid.equals(List.of(false))) {
+                // Left over from an interrupted build.
+                jdbcTemplate.execute("DROP INDEX CONCURRENTLY public." + name);
+            }
+            jdbcTemplate.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name +
+                    " ON public.devices (warranty_expiration_date, id) WHERE warranty_expiration_date >= DATE '" + cutoff + "'");
+
+            List<String> older = jdbcTemplate.queryForList(
+                    "SELECT indexname FROM pg_indexes WHERE schemaname = 'public' AND tablename = 'devices' " +
+                            "AND indexname LIKE '" + INDEX_PREFIX + "%' AND indexname <> ?", String.class, name);
+            for (String index : older) {
+                jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS public." + index);
+            }
+        } catch (DataAccessException e) {
+            logger.warn("Active warranty index {} not refreshed: {}", name, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package bg.tuvarna.devicebackend.services;
+
+import bg.tuvarna.devicebackend.models.dtos.WarrantyRecomputationVO;
+import bg.tuvarna.devicebackend.models.entities.WarrantyRecomputation;
+import bg.tuvarna.devicebackend.models.enums.RecomputationStatus;
+import bg.tuvarna.devicebackend.models.events.PassportWarrantyChangedEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.WarrantyRecomputationRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Brings device warranty dates in line with their passport after its warranty length changed.
+ * <p>
+ * Each change is stored as a {@link WarrantyRecomputation} and processed in the background, a chunk
+ * of devices at a time: one set-based UPDATE per chunk, committed together with the checkpoint, and
+ * a pause between chunks to leave the database room for regular traffic. A restart resumes from the
+ * last checkpoint, and a further change to the same passport restarts its recomputation from the
+ * beginning. The job's version column keeps two instances from committing the same chunk.
+ */
+@Service
+public class WarrantyRecomputationService {
+    private static final Logger logger = LoggerFactory.getLogger(WarrantyRecomputationService.class);
+    private static final int OWNER_EXTRA_MONTHS = 12;
+
+    private final WarrantyRecomputationRepository recomputationRepository;
+    private final DeviceRepository deviceRepository;
+    private final PassportUtilizationService passportUtilizationService;
+    private final WarrantyExpiryService warrantyExpiryService;
+    private final TransactionTemplate transactionTemplate;
+    private final int chunkSize;
+    private final Duration pause;
+    private final Counter recomputedDevices;
+
+    public WarrantyRecomputationService(
+            WarrantyRecomputationRepository recomputationRepository,
+            DeviceRepository deviceRepository,
+            PassportUtilizationService passportUtilizationService,
+            WarrantyExpiryService warrantyExpiryService,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${warranty.recompute.chunk-size:1000}") int chunkSize,
+            @Value("${warranty.recompute.pause:50ms}") Duration pause
+    ) {
+        this.recomputationRepository = recomputationRepository;
+        this.deviceRepository = deviceRepository;
+        this.passportUtilizationService = passportUtilizationService;
+        this.warrantyExpiryService = warrantyExpiryService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.chunkSize = chunkSize;
+        this.pause = pause;
+        this.recomputedDevices = meterRegistry.counter("warranty.recompute.devices");
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onPassportWarrantyChanged(PassportWarrantyChangedEvent event) {
+        schedule(event.passportId(), event.warrantyMonths());
+    }
+
+    public void schedule(Long passportId, int warrantyMonths) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                transactionTemplate.executeWithoutResult(status -> {
+                    WarrantyRecomputation recomputation = recomputationRepository.findByPassportId(passportId)
+                            .orElseGet(WarrantyRecomputation::new);
+                    recomputation.setPassportId(passportId);
+                    recomputation.setWarrantyMonths(warrantyMonths);
+                    recomputation.setStatus(RecomputationStatus.PENDING);
+                    recomputation.setLastDeviceId(0);
+                    recomputation.setUpdatedDevices(0);
+                    recomputation.setTotalDevices(deviceRepository.countByPassportId(passportId));
+                    recomputation.setStartedAt(LocalDateTime.now());
+                    recomputation.setFinishedAt(null);
+                    recomputationRepository.save(recomputation);
+                });
+                return;
+            } catch (OptimisticLockingFailureException e) {
+                // A chunk of the previous run committed in between; reset the job over it.
+                if (attempt == 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs every pending recomputation to completion. Also picks up the ones a previous run left unfinished.
+     */
+    @Scheduled(
+            fixedDelayString = "${warranty.recompute.poll-interval:PT5S}",
+            initialDelayString = "${warranty.recompute.poll-interval:PT5S}"
+    )
+    public synchronized void runPending() {
+        boolean recomputed = false;
+        for (WarrantyRecomputation pending : recomputationRepository.findByStatusOrderById(RecomputationStatus.PENDING)) {
+            long start = System.nanoTime();
+            recomputed = true;
+            while (processChunk(pending.getId())) {
+                if (!sleep()) {
+                    return;
+                }
+            }
+            logger.info("Recomputed device warranties of passport {} in {} ms",
+                    pending.getPassportId(), (System.nanoTime() - start) / 1_000_000);
+        }
+
+        if (recomputed) {
+            // Warranties may have crossed today's date either way.
+            passportUtilizationService.reconcile();
+            warrantyExpiryService.rebuildBuckets(LocalDate.now());
+        }
+    }
+
+    /**
+     * Updates the next chunk of devices and moves the checkpoint past it, in one transaction.
+     *
+     * @return whether the recomputation has more to do
+     */
+    private boolean processChunk(Long recomputationId) {
+        try {
+            Boolean more = transactionTemplate.execute(status -> {
+                WarrantyRecomputation recomputation = recomputationRepository.findById(recomputationId).orElse(null);
+                if (recomputation == null || recomputation.getStatus() != RecomputationStatus.PENDING) {
+                    return false;
+                }
+
+                List<Long> ids = deviceRepository.findIdsByPassportAfter(
+                        recomputation.getPassportId(), recomputation.getLastDeviceId(), PageRequest.of(0, chunkSize)
+                );
+                if (!ids.isEmpty()) {
+                    long toId = ids.get(ids.size() - 1);
+                    int months = recomputation.getWarrantyMonths();
+                    int updated = deviceRepository.recomputeWarranty(
+                            recomputation.getPassportId(), recomputation.getLastDeviceId(), toId, months, months + OWNER_EXTRA_MONTHS
+                    );
+                    recomputation.setLastDeviceId(toId);
+                    recomputation.setUpdatedDevices(recomputation.getUpdatedDevices() + updated);
+                    recomputedDevices.increment(updated);
+                }
+
+                if (ids.size() < chunkSize) {
+                    recomputation.setStatus(RecomputationStatus.COMPLETED);
+                    recomputation.setFinishedAt(LocalDateTime.now());
+                }
+                recomputationRepository.save(recomputation);
+                return recomputation.getStatus() == RecomputationStatus.PENDING;
+            });
+            return Boolean.TRUE.equals(more);
+        } catch (OptimisticLockingFailureException e) {
+            // The passport changed again and the job was reset; the chunk was rolled back, go on from the new checkpoint.
+            return true;
+        }
+    }
+
+    private boolean sleep() {
+        if (pause.isZero()) {
+            return true;
+        }
+        try {
+            Thread.sleep(pause);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public List<WarrantyRecomputationVO> getRecomputations() {
+        return recomputationRepository.findAll(Sort.by("id")).stream().map(WarrantyRecomputationVO::new).toList();
+    }
+}
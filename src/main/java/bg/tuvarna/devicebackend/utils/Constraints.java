@@ -0,0 +1,31 @@
+package bg.tuvarna.devicebackend.utils;
+
+import org.hibernate.exception.ConstraintViolationException;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.util.Locale;
+
+/**
+ * Tells which constraint a {@link DataIntegrityViolationException} comes from, so that only the violation a caller
+ * expects, such as a duplicate key, is reported as such and every other one, such as a NOT NULL or foreign key
+ * violation, is left to propagate.
+ */
+public final class Constraints {
+    private Constraints() {
+    }
+
+    /**
+     * Whether {@code e} is a violation of the constraint or unique index named {@code name}. Uses the name Hibernate
+     * extracted where there is one, otherwise the driver's message, which names the constraint on PostgreSQL and H2.
+     */
+    public static boolean isViolated(DataIntegrityViolationException e, String name) {
+        String expected = name.toLowerCase(Locale.ROOT);
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConstraintViolationException violation && violation.getConstraintName() != null) {
+                return violation.getConstraintName().toLowerCase(Locale.ROOT).contains(expected);
+            }
+        }
+        String message = e.getMostSpecificCause().getMessage();
+        return message != null && message.toLowerCase(Locale.ROOT).contains(expected);
+    }
+}
@@ -0,0 +1,56 @@
+package bg.tuvarna.devicebackend.utils;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.StringJoiner;
+
+/**
+ * Opaque cursors for keyset pagination: the sort key of the last returned row, base64url encoded so clients
+ * pass it back as is instead of building it themselves.
+ */
+public final class Cursors {
+    private Cursors() {
+    }
+
+    public static String encode(Object... keys) {
+        StringJoiner joiner = new StringJoiner(":");
+        for (Object key : keys) {
+            joiner.add(String.valueOf(key));
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(joiner.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the {@code keys} keys the cursor was encoded from
+     * @throws CustomException if {@code cursor} isn't a cursor of that many keys
+     */
+    public static String[] decode(String cursor, int keys) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", -1);
+            if (parts.length == keys) {
+                return parts;
+            }
+        } catch (IllegalArgumentException ignored) {
+            // Reported below.
+        }
+        throw invalid();
+    }
+
+    /**
+     * Decodes a cursor holding a single id.
+     */
+    public static long decodeId(String cursor) {
+        try {
+            return Long.parseLong(decode(cursor, 1)[0]);
+        } catch (NumberFormatException e) {
+            throw invalid();
+        }
+    }
+
+    public static CustomException invalid() {
+        return new CustomException("Invalid cursor", ErrorCode.Validation);
+    }
+}
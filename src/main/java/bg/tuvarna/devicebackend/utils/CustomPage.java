@@ -1,5 +1,7 @@
 package bg.tuvarna.devicebackend.utils;
 
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -18,6 +20,25 @@ public class CustomPage<T> {
     private int size;
     private long totalItems;
     private List<T> items;
+    /**
+     * Cursor for the page after this one, or null on the last page. Pages fetched by cursor leave
+     * {@code currentPage} at -1.
+     */
+    private String nextCursor;
+    /**
+     * How {@code totalItems} was computed; sent as a response header rather than in the body.
+     */
+    @JsonIgnore
+    private CountMode countMode;
+
+    /**
+     * Sets the total and the page count derived from it from {@code size}; a total of -1 means not counted.
+     */
+    public void setTotal(long totalItems, CountMode countMode) {
+        this.totalItems = totalItems;
+        this.totalPages = totalItems < 0 ? -1 : (int) ((totalItems + size - 1) / size);
+        this.countMode = countMode;
+    }
 
     public void setContent(List<T> content) {
         this.items = content;
@@ -0,0 +1,104 @@
+package bg.tuvarna.devicebackend.utils;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the result of an operation under a client-chosen key for a fixed time, so a retried
+ * request gets the first result instead of running again. A duplicate arriving while the first
+ * call still runs waits for it. Each key is bound to a fingerprint of its request; reusing a key
+ * for a different request is rejected.
+ * <p>
+ * Results the {@code keep} predicate rejects, and calls that throw, are not remembered; waiting
+ * duplicates then run the operation themselves. When full, the oldest entry is dropped.
+ */
+public class IdempotencyStore<V> {
+    private record Entry<V>(String fingerprint, CompletableFuture<V> result, long createdAt) {
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final LinkedHashMap<String, Entry<V>> entries;
+
+    public IdempotencyStore(int maxSize, long ttlNanos) {
+        this(maxSize, ttlNanos, System::nanoTime);
+    }
+
+    public IdempotencyStore(int maxSize, long ttlNanos, LongSupplier nanoClock) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        this.nanoClock = nanoClock;
+        this.entries = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > IdempotencyStore.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Runs {@code action} unless a result for {@code key} is stored or being produced, in which case
+     * that result is returned and {@code onReplay} is called.
+     *
+     * @throws CustomException if {@code key} was used with a different fingerprint
+     */
+    public V execute(String key, String fingerprint, Supplier<V> action, Predicate<V> keep, Runnable onReplay) {
+        while (true) {
+            Entry<V> entry;
+            boolean owner = false;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry != null && entry.result().isDone() && nanoClock.getAsLong() - entry.createdAt() >= ttlNanos) {
+                    entries.remove(key);
+                    entry = null;
+                }
+                if (entry == null) {
+                    entry = new Entry<>(fingerprint, new CompletableFuture<>(), nanoClock.getAsLong());
+                    entries.put(key, entry);
+                    owner = true;
+                }
+            }
+
+            if (!entry.fingerprint().equals(fingerprint)) {
+                throw new CustomException("Idempotency key was already used for a different request", ErrorCode.Validation);
+            }
+
+            if (!owner) {
+                V stored = entry.result().join();
+                if (stored != null) {
+                    onReplay.run();
+                    return stored;
+                }
+                // The first call wasn't remembered; try to become the one that runs it.
+                continue;
+            }
+
+            V result = null;
+            try {
+                result = action.get();
+                return result;
+            } finally {
+                if (result == null || !keep.test(result)) {
+                    synchronized (this) {
+                        entries.remove(key, entry);
+                    }
+                    entry.result().complete(null);
+                } else {
+                    entry.result().complete(result);
+                }
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
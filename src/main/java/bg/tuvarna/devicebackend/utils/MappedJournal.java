@@ -0,0 +1,144 @@
+package bg.tuvarna.devicebackend.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal in a memory-mapped file, for work that has been accepted but not done yet.
+ * Records are appended after the acknowledged offset and acknowledged in order once processed;
+ * opening the journal hands back the records that weren't, for replay.
+ * <p>
+ * An appended record is in the page cache right away, so it survives the process crashing;
+ * {@link #force()} also writes it to disk, to survive the machine going down. Once every record is
+ * acknowledged, the next append starts over at the beginning of the file.
+ * <p>
+ * Layout: a header holding a magic number and the acknowledged offset, then records of
+ * {@code [length][CRC32][payload]}. A zero length ends the journal. It is written past a record
+ * before the record's own length, so a record that was only partly written is never read back.
+ */
+public class MappedJournal implements Closeable {
+    private static final int MAGIC = 0x4a524e31;
+    private static final int ACKNOWLEDGED_OFFSET = 8;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    public record Entry(long endOffset, byte[] payload) {
+    }
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final List<Entry> unacknowledged;
+    private int position;
+
+    /**
+     * Opens the journal at {@code path}, creating it with {@code capacity} bytes if it doesn't exist.
+     */
+    public MappedJournal(Path path, int capacity) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // A journal created larger than the current capacity keeps its size, so nothing in it is cut off.
+        size = (int) Math.max(channel.size(), capacity);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.putLong(ACKNOWLEDGED_OFFSET, HEADER_SIZE);
+            buffer.putInt(0, MAGIC);
+        }
+        unacknowledged = readUnacknowledged();
+    }
+
+    /**
+     * The records that were appended but not acknowledged before the journal was opened, in append order.
+     */
+    public List<Entry> unacknowledged() {
+        return unacknowledged;
+    }
+
+    /**
+     * Reads the records after the acknowledged offset; appending continues after the last intact one.
+     */
+    private List<Entry> readUnacknowledged() {
+        List<Entry> entries = new ArrayList<>();
+        int offset = (int) buffer.getLong(ACKNOWLEDGED_OFFSET);
+        while (offset + RECORD_HEADER_SIZE <= size) {
+            int length = buffer.getInt(offset);
+            int end = offset + RECORD_HEADER_SIZE + length;
+            if (length <= 0 || end > size) {
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.get(offset + RECORD_HEADER_SIZE, payload);
+            if (buffer.getInt(offset + 4) != crc(payload)) {
+                break;
+            }
+            entries.add(new Entry(end, payload));
+            offset = end;
+        }
+
+        position = offset;
+        if (position + 4 <= size) {
+            // Cuts off whatever a torn append left behind.
+            buffer.putInt(position, 0);
+        }
+        return List.copyOf(entries);
+    }
+
+    /**
+     * @return the offset to acknowledge once the record is processed, or -1 if the journal is full
+     */
+    public synchronized long append(byte[] payload) {
+        if (position != HEADER_SIZE && buffer.getLong(ACKNOWLEDGED_OFFSET) == position) {
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.putLong(ACKNOWLEDGED_OFFSET, HEADER_SIZE);
+            position = HEADER_SIZE;
+        }
+
+        int end = position + RECORD_HEADER_SIZE + payload.length;
+        if (end + 4 > size || end < 0) {
+            return -1;
+        }
+
+        buffer.putInt(end, 0);
+        buffer.put(position + RECORD_HEADER_SIZE, payload);
+        buffer.putInt(position + 4, crc(payload));
+        buffer.putInt(position, payload.length);
+        position = end;
+        return end;
+    }
+
+    /**
+     * Marks every record ending at or before {@code endOffset} as processed.
+     */
+    public synchronized void acknowledge(long endOffset) {
+        buffer.putLong(ACKNOWLEDGED_OFFSET, endOffset);
+    }
+
+    public synchronized void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
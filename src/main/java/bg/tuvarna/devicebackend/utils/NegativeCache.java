@@ -0,0 +1,76 @@
+package bg.tuvarna.devicebackend.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded set of keys recently found to be absent, each remembered for a fixed time.
+ * When full, the oldest entry is dropped.
+ * <p>
+ * A lookup that misses should read {@link #generation()} before querying and pass it to
+ * {@link #put}. The entry is ignored if an invalidation happened in the meantime, so a result
+ * read before a concurrent insert committed can't be cached after that insert's invalidation.
+ */
+public class NegativeCache<K> {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LongSupplier nanoClock;
+    private final LinkedHashMap<K, Long> expiries;
+    private long generation;
+
+    public NegativeCache(int maxSize, long ttlNanos) {
+        this(maxSize, ttlNanos, System::nanoTime);
+    }
+
+    public NegativeCache(int maxSize, long ttlNanos, LongSupplier nanoClock) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        this.nanoClock = nanoClock;
+        this.expiries = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+                return size() > NegativeCache.this.maxSize;
+            }
+        };
+    }
+
+    public synchronized boolean contains(K key) {
+        Long expiresAt = expiries.get(key);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt - nanoClock.getAsLong() <= 0) {
+            expiries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized void put(K key, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        // Re-insert so a refreshed key moves to the young end of the eviction order.
+        expiries.remove(key);
+        expiries.put(key, nanoClock.getAsLong() + ttlNanos);
+    }
+
+    public synchronized void invalidate(K key) {
+        generation++;
+        expiries.remove(key);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        expiries.clear();
+    }
+
+    public synchronized int size() {
+        return expiries.size();
+    }
+}
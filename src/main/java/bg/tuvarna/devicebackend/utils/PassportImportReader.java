@@ -0,0 +1,172 @@
+package bg.tuvarna.devicebackend.utils;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.dtos.PassportCreateVO;
+import bg.tuvarna.devicebackend.models.enums.PassportImportFormat;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads passport rows one line at a time from a CSV or NDJSON body, so an import never holds
+ * more than the current line in memory.
+ * CSV input needs a header naming the {@link PassportCreateVO} fields, in any order; fields may be
+ * quoted, but a quoted field can't span lines.
+ * A line that can't be parsed is returned as a row with an error instead of aborting the import.
+ */
+public class PassportImportReader {
+    private static final String[] CSV_COLUMNS = {
+            "name", "model", "serialPrefix", "warrantyMonths", "fromSerialNumber", "toSerialNumber"
+    };
+
+    private final BufferedReader reader;
+    private final PassportImportFormat format;
+    private final ObjectMapper objectMapper;
+    private int[] csvColumns;
+    private long line;
+
+    public record Row(long line, PassportCreateVO passport, String error) {
+    }
+
+    public PassportImportReader(BufferedReader reader, PassportImportFormat format, ObjectMapper objectMapper) {
+        this.reader = reader;
+        this.format = format;
+        this.objectMapper = objectMapper;
+
+        if (format == PassportImportFormat.CSV) {
+            readCsvHeader();
+        }
+    }
+
+    /**
+     * @return the next non-empty line as a row, or null at the end of the input
+     */
+    public Row next() {
+        String text;
+        do {
+            text = readLine();
+            if (text == null) {
+                return null;
+            }
+        } while (text.isBlank());
+
+        return format == PassportImportFormat.CSV ? parseCsv(text) : parseJson(text);
+    }
+
+    private void readCsvHeader() {
+        String header = readLine();
+        if (header == null) {
+            throw new CustomException("CSV header is missing", ErrorCode.Validation);
+        }
+
+        List<String> names = splitCsv(header);
+        if (names == null) {
+            throw new CustomException("CSV header has an unterminated quoted field", ErrorCode.Validation);
+        }
+
+        csvColumns = new int[CSV_COLUMNS.length];
+        for (int i = 0; i < CSV_COLUMNS.length; i++) {
+            csvColumns[i] = -1;
+            for (int j = 0; j < names.size(); j++) {
+                if (names.get(j).trim().toLowerCase(Locale.ROOT).equals(CSV_COLUMNS[i].toLowerCase(Locale.ROOT))) {
+                    csvColumns[i] = j;
+                }
+            }
+            if (csvColumns[i] < 0) {
+                throw new CustomException("CSV header has no column " + CSV_COLUMNS[i], ErrorCode.Validation, CSV_COLUMNS[i]);
+            }
+        }
+    }
+
+    private Row parseCsv(String text) {
+        List<String> values = splitCsv(text);
+        if (values == null) {
+            return new Row(line, null, "Unterminated quoted field");
+        }
+
+        String[] fields = new String[CSV_COLUMNS.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = csvColumns[i] < values.size() ? values.get(csvColumns[i]).trim() : "";
+        }
+
+        Integer[] numbers = new Integer[3];
+        for (int i = 0; i < numbers.length; i++) {
+            String value = fields[i + 3];
+            if (value.isEmpty()) {
+                continue;
+            }
+            try {
+                numbers[i] = Integer.valueOf(value);
+            } catch (NumberFormatException e) {
+                return new Row(line, null, "Invalid number in column " + CSV_COLUMNS[i + 3]);
+            }
+        }
+
+        return new Row(line, new PassportCreateVO(fields[0], fields[1], fields[2], numbers[0], numbers[1], numbers[2]), null);
+    }
+
+    private Row parseJson(String text) {
+        try {
+            return new Row(line, objectMapper.readValue(text, PassportCreateVO.class), null);
+        } catch (JsonProcessingException e) {
+            return new Row(line, null, "Malformed JSON");
+        }
+    }
+
+    /**
+     * Splits one CSV line, honouring double quotes and {@code ""} escapes.
+     *
+     * @return the fields, or null if a quoted field isn't closed on this line
+     */
+    private static List<String> splitCsv(String text) {
+        List<String> values = new ArrayList<>(CSV_COLUMNS.length);
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    value.append(c);
+                } else if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+
+        if (quoted) {
+            return null;
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private String readLine() {
+        try {
+            String text = reader.readLine();
+            if (text != null) {
+                line++;
+            }
+            return text;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package bg.tuvarna.devicebackend.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Radix (compressed prefix) trie mapping string keys to values.
+ * {@link #prefixMatches(String)} walks the trie once along the input, so its cost is
+ * proportional to the input length and not to the number of stored keys.
+ */
+public final class PrefixTrie<V> {
+    private final Node<V> root = new Node<>("");
+    private int size;
+
+    public void put(String key, V value) {
+        Node<V> node = root;
+        int offset = 0;
+
+        while (offset < key.length()) {
+            Node<V> child = node.child(key.charAt(offset));
+            if (child == null) {
+                node.addChild(new Node<>(key.substring(offset)));
+                node = node.child(key.charAt(offset));
+                offset = key.length();
+                break;
+            }
+
+            int common = commonPrefixLength(child.label, key, offset);
+            if (common < child.label.length()) {
+                child = node.split(child, common);
+            }
+            node = child;
+            offset += common;
+        }
+
+        if (node.value == null) {
+            size++;
+        }
+        node.value = value;
+    }
+
+    public V get(String key) {
+        Node<V> node = root;
+        int offset = 0;
+        while (offset < key.length()) {
+            node = node.child(key.charAt(offset));
+            if (node == null || !key.startsWith(node.label, offset)) {
+                return null;
+            }
+            offset += node.label.length();
+        }
+        return node.value;
+    }
+
+    /**
+     * Returns the values of all keys that are a prefix of {@code input}, longest key first.
+     */
+    public List<V> prefixMatches(String input) {
+        List<V> matches = new ArrayList<>(2);
+        Node<V> node = root;
+        int offset = 0;
+
+        while (offset < input.length()) {
+            node = node.child(input.charAt(offset));
+            if (node == null || !input.startsWith(node.label, offset)) {
+                break;
+            }
+            offset += node.label.length();
+            if (node.value != null) {
+                matches.add(node.value);
+            }
+        }
+
+        if (matches.size() > 1) {
+            Collections.reverse(matches);
+        }
+        return matches;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int commonPrefixLength(String label, String key, int offset) {
+        int max = Math.min(label.length(), key.length() - offset);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(offset + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static final class Node<V> {
+        private String label;
+        private V value;
+        private char[] keys = new char[0];
+        private Node<V>[] children = newArray(0);
+
+        private Node(String label) {
+            this.label = label;
+        }
+
+        private Node<V> child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        private void addChild(Node<V> child) {
+            char c = child.label.charAt(0);
+            int insertAt = -Arrays.binarySearch(keys, c) - 1;
+
+            char[] newKeys = new char[keys.length + 1];
+            Node<V>[] newChildren = newArray(children.length + 1);
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newKeys[insertAt] = c;
+            newChildren[insertAt] = child;
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+
+            keys = newKeys;
+            children = newChildren;
+        }
+
+        /**
+         * Splits {@code child} after {@code at} characters of its label and returns the new
+         * intermediate node that takes its place.
+         */
+        private Node<V> split(Node<V> child, int at) {
+            Node<V> middle = new Node<>(child.label.substring(0, at));
+            child.label = child.label.substring(at);
+            middle.addChild(child);
+            children[Arrays.binarySearch(keys, middle.label.charAt(0))] = middle;
+            return middle;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Node<V>[] newArray(int length) {
+            return (Node<V>[]) new Node[length];
+        }
+    }
+}
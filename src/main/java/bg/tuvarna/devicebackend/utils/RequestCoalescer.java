@@ -0,0 +1,52 @@
+package bg.tuvarna.devicebackend.utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Lets concurrent loads of the same key share one call to the loader.
+ * The first caller runs the loader; callers arriving while it runs wait for its result
+ * (or exception) instead of starting their own.
+ * Results are not kept once the load finishes.
+ */
+public class RequestCoalescer<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Runnable onCoalesced;
+
+    /**
+     * @param onCoalesced called each time a caller joins a load that is already running
+     */
+    public RequestCoalescer(Runnable onCoalesced) {
+        this.onCoalesced = onCoalesced;
+    }
+
+    public V load(K key, Function<K, V> loader) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+
+        if (running != null) {
+            onCoalesced.run();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+
+        try {
+            V value = loader.apply(key);
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+}
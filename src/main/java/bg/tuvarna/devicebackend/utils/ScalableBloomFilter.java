@@ -0,0 +1,127 @@
+package bg.tuvarna.devicebackend.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over strings that grows as keys are added (Almeida et al., "Scalable Bloom Filters").
+ * Keys go into the newest stage; when it reaches its capacity a new stage with twice the capacity
+ * and half the false-positive rate is started, so the overall rate stays below the configured one
+ * however many keys are added. {@link #mightContain} never returns false for an added key.
+ * <p>
+ * Reads are lock-free. {@link #add} is synchronized; bits are set atomically so a concurrent
+ * reader never misses a key whose {@code add} has returned.
+ */
+public final class ScalableBloomFilter {
+    private static final int GROWTH_FACTOR = 2;
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    private final double falsePositiveRate;
+    private volatile Stage[] stages;
+    private long size;
+
+    public ScalableBloomFilter(int initialCapacity, double falsePositiveRate) {
+        if (initialCapacity <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Capacity must be positive and the false-positive rate in (0, 1)");
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        // The stage rates form a geometric series that sums to the configured rate.
+        this.stages = new Stage[]{new Stage(initialCapacity, falsePositiveRate * (1 - TIGHTENING_RATIO))};
+    }
+
+    public synchronized void add(CharSequence key) {
+        Stage[] current = stages;
+        Stage last = current[current.length - 1];
+        if (last.count == last.capacity) {
+            last = new Stage(last.capacity * GROWTH_FACTOR, last.falsePositiveRate * TIGHTENING_RATIO);
+            Stage[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = last;
+            stages = grown;
+        }
+        last.add(hash(key));
+        size++;
+    }
+
+    public boolean mightContain(CharSequence key) {
+        long hash = hash(key);
+        for (Stage stage : stages) {
+            if (stage.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (Stage stage : stages) {
+            bytes += stage.bits.length() * 8L;
+        }
+        return bytes;
+    }
+
+    public double falsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    // FNV-1a over the chars, then a murmur3 finalizer to spread the bits.
+    private static long hash(CharSequence key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Stage {
+        final long capacity;
+        final double falsePositiveRate;
+        final long bitCount;
+        final int hashCount;
+        final AtomicLongArray bits;
+        long count;
+
+        Stage(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            double ln2 = Math.log(2);
+            long words = Math.max(1, (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (ln2 * ln2) / 64));
+            this.bitCount = words * 64;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * ln2));
+            this.bits = new AtomicLongArray(Math.toIntExact(words));
+        }
+
+        // Double hashing (Kirsch and Mitzenmacher): the i-th probe is h1 + i * h2.
+        void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                long mask = 1L << bit;
+                bits.getAndAccumulate((int) (bit >>> 6), mask, (word, m) -> word | m);
+            }
+            count++;
+        }
+
+        boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
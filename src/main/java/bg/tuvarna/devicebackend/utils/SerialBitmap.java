@@ -0,0 +1,223 @@
+package bg.tuvarna.devicebackend.utils;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative ints in the style of a Roaring bitmap.
+ * Values are split into 65536-wide chunks by their upper 16 bits. A chunk with at most
+ * {@value #ARRAY_CONTAINER_MAX} values stores them as a sorted {@code char[]} (2 bytes per value);
+ * a fuller chunk uses a fixed 8 KiB bitmap (1 bit per possible value).
+ * Dense serial ranges therefore cost about 1 bit per serial, sparse ones about 2 bytes.
+ * <p>
+ * All methods are synchronized; operations are short and never block on I/O.
+ */
+public final class SerialBitmap {
+    private static final int ARRAY_CONTAINER_MAX = 4096;
+
+    private char[] keys = new char[1];
+    private Container[] containers = new Container[1];
+    private int containerCount;
+    private long cardinality;
+
+    public synchronized boolean add(int value) {
+        char high = (char) (value >>> 16);
+        char low = (char) value;
+
+        int i = Arrays.binarySearch(keys, 0, containerCount, high);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, high, new ArrayContainer());
+        }
+
+        Container container = containers[i];
+        if (container.cardinality() == ARRAY_CONTAINER_MAX && container instanceof ArrayContainer array && !array.contains(low)) {
+            container = containers[i] = array.toBitmap();
+        }
+        if (!container.add(low)) {
+            return false;
+        }
+        cardinality++;
+        return true;
+    }
+
+    public synchronized boolean remove(int value) {
+        int i = Arrays.binarySearch(keys, 0, containerCount, (char) (value >>> 16));
+        if (i < 0 || !containers[i].remove((char) value)) {
+            return false;
+        }
+        cardinality--;
+
+        Container container = containers[i];
+        if (container.cardinality() == 0) {
+            removeContainer(i);
+        } else if (container instanceof BitmapContainer bitmap && bitmap.cardinality() <= ARRAY_CONTAINER_MAX) {
+            containers[i] = bitmap.toArray();
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(int value) {
+        int i = Arrays.binarySearch(keys, 0, containerCount, (char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    public synchronized long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Approximate heap footprint, including array headers and the container index.
+     */
+    public synchronized long sizeInBytes() {
+        long bytes = 32 + 16 + 2L * keys.length + 16 + 4L * containers.length;
+        for (int i = 0; i < containerCount; i++) {
+            bytes += containers[i].sizeInBytes();
+        }
+        return bytes;
+    }
+
+    private void insertContainer(int i, char key, Container container) {
+        if (containerCount == keys.length) {
+            keys = Arrays.copyOf(keys, containerCount * 2);
+            containers = Arrays.copyOf(containers, containerCount * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, containerCount - i);
+        System.arraycopy(containers, i, containers, i + 1, containerCount - i);
+        keys[i] = key;
+        containers[i] = container;
+        containerCount++;
+    }
+
+    private void removeContainer(int i) {
+        System.arraycopy(keys, i + 1, keys, i, containerCount - i - 1);
+        System.arraycopy(containers, i + 1, containers, i, containerCount - i - 1);
+        containers[--containerCount] = null;
+    }
+
+    private interface Container {
+        boolean add(char value);
+
+        boolean remove(char value);
+
+        boolean contains(char value);
+
+        int cardinality();
+
+        long sizeInBytes();
+    }
+
+    private static final class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int cardinality;
+
+        @Override
+        public boolean add(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return false;
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_CONTAINER_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(char value) {
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i < 0) {
+                return false;
+            }
+            System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+            cardinality--;
+            if (values.length > 16 && cardinality < values.length / 4) {
+                values = Arrays.copyOf(values, values.length / 2);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return 16 + 16 + 2L * values.length;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private final long[] words = new long[1024];
+        private int cardinality;
+
+        @Override
+        public boolean add(char value) {
+            long bit = 1L << value;
+            long word = words[value >>> 6];
+            if ((word & bit) != 0) {
+                return false;
+            }
+            words[value >>> 6] = word | bit;
+            cardinality++;
+            return true;
+        }
+
+        @Override
+        public boolean remove(char value) {
+            long bit = 1L << value;
+            long word = words[value >>> 6];
+            if ((word & bit) == 0) {
+                return false;
+            }
+            words[value >>> 6] = word & ~bit;
+            cardinality--;
+            return true;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public long sizeInBytes() {
+            return 16 + 16 + 8L * words.length;
+        }
+
+        private ArrayContainer toArray() {
+            ArrayContainer array = new ArrayContainer();
+            array.values = new char[cardinality];
+            for (int w = 0; w < words.length; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    array.values[array.cardinality++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return array;
+        }
+    }
+}
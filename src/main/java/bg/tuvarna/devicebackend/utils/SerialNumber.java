@@ -0,0 +1,128 @@
+package bg.tuvarna.devicebackend.utils;
+
+/**
+ * Device serial number split into its prefix and trailing numeric part, e.g. {@code ABC00150}
+ * into {@code ABC} and {@code 150}.
+ * The static helpers parse without regular expressions, exceptions or intermediate strings,
+ * so they are safe to call on every request.
+ */
+public final class SerialNumber {
+    public static final int MAX_LENGTH = 64;
+    private static final int MAX_NUMBER_DIGITS = 18;
+
+    private final String value;
+    private final int prefixLength;
+    private final long number;
+
+    private SerialNumber(String value, int prefixLength, long number) {
+        this.value = value;
+        this.prefixLength = prefixLength;
+        this.number = number;
+    }
+
+    /**
+     * Splits {@code value} at the start of its trailing digits.
+     *
+     * @return the parsed serial, or null if {@code value} isn't a valid serial number
+     * or its trailing digits don't fit a long
+     */
+    public static SerialNumber parse(String value) {
+        if (!isValid(value)) {
+            return null;
+        }
+
+        int numberStart = numberStart(value);
+        if (value.length() - numberStart > MAX_NUMBER_DIGITS) {
+            return null;
+        }
+
+        long number = 0;
+        for (int i = numberStart; i < value.length(); i++) {
+            number = number * 10 + (value.charAt(i) - '0');
+        }
+        return new SerialNumber(value, numberStart, number);
+    }
+
+    /**
+     * A valid serial is at most {@value #MAX_LENGTH} characters and ends with a run of digits.
+     * The prefix may contain any characters; whether it belongs to a passport is up to the passport lookup.
+     */
+    public static boolean isValid(CharSequence value) {
+        if (value == null || value.isEmpty() || value.length() > MAX_LENGTH) {
+            return false;
+        }
+        return isDigit(value.charAt(value.length() - 1));
+    }
+
+    /**
+     * Parses the characters of {@code value} from {@code offset} to the end as a decimal number.
+     * Used when the prefix is already known, e.g. from a passport.
+     *
+     * @return the number, or -1 if the remainder is empty, contains a non-digit or doesn't fit an int
+     */
+    public static int parseNumber(CharSequence value, int offset) {
+        if (offset >= value.length()) {
+            return -1;
+        }
+
+        long number = 0;
+        for (int i = offset; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+            if (number > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) number;
+    }
+
+    private static int numberStart(CharSequence value) {
+        int i = value.length();
+        while (i > 0 && isDigit(value.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public String prefix() {
+        return value.substring(0, prefixLength);
+    }
+
+    public int prefixLength() {
+        return prefixLength;
+    }
+
+    public long number() {
+        return number;
+    }
+
+    public boolean hasPrefix(String prefix) {
+        return value.startsWith(prefix);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SerialNumber other && value.equals(other.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
@@ -0,0 +1,223 @@
+package bg.tuvarna.devicebackend.utils;
+
+import bg.tuvarna.devicebackend.models.entities.Passport;
+
+import java.util.*;
+
+/**
+ * Immutable lookup structure from a device serial number to the passport whose
+ * {@code [fromSerialNumber, toSerialNumber]} range contains it.
+ * Ranges are grouped per serial prefix in a {@link PrefixTrie} and kept sorted by their start,
+ * so a lookup is one walk along the serial plus a binary search per matching prefix.
+ */
+public final class SerialRangeIndex {
+    private static final SerialRangeIndex EMPTY = new SerialRangeIndex(new PrefixTrie<>(), new Ranges[0]);
+    private static final int BATCH_CHUNK = 1 << 16;
+    private static final int MAX_BATCH_GROUPS = 1 << 15;
+
+    private final PrefixTrie<Ranges> rangesByPrefix;
+    private final Ranges[] ordinals;
+
+    private SerialRangeIndex(PrefixTrie<Ranges> rangesByPrefix, Ranges[] ordinals) {
+        this.rangesByPrefix = rangesByPrefix;
+        this.ordinals = ordinals;
+    }
+
+    public static SerialRangeIndex empty() {
+        return EMPTY;
+    }
+
+    public static SerialRangeIndex of(Collection<Passport> passports) {
+        Map<String, List<Passport>> grouped = new HashMap<>();
+        for (Passport passport : passports) {
+            if (passport.getSerialPrefix() == null || passport.getSerialPrefix().isEmpty()) {
+                continue;
+            }
+            grouped.computeIfAbsent(passport.getSerialPrefix(), k -> new ArrayList<>()).add(passport);
+        }
+
+        PrefixTrie<Ranges> rangesByPrefix = new PrefixTrie<>();
+        Ranges[] ordinals = new Ranges[grouped.size()];
+        int ordinal = 0;
+        for (Map.Entry<String, List<Passport>> entry : grouped.entrySet()) {
+            ordinals[ordinal] = new Ranges(ordinal, entry.getKey().length(), entry.getValue());
+            rangesByPrefix.put(entry.getKey(), ordinals[ordinal]);
+            ordinal++;
+        }
+
+        return new SerialRangeIndex(rangesByPrefix, ordinals);
+    }
+
+    public Passport find(String serialId) {
+        if (serialId == null) {
+            return null;
+        }
+
+        // Longest prefix first, so "ABC" wins over "AB" for "ABC150".
+        for (Ranges ranges : rangesByPrefix.prefixMatches(serialId)) {
+            int number = SerialNumber.parseNumber(serialId, ranges.prefixLength);
+            if (number < 0) {
+                continue;
+            }
+
+            Passport passport = ranges.find(number);
+            if (passport != null) {
+                return passport;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Resolves many serials at once. Serials are grouped by their longest matching prefix and
+     * sorted by number, so each group is merged against its sorted ranges in a single pass.
+     *
+     * @return the passport for each serial at the same position, or null where none matches
+     */
+    public Passport[] findAll(List<String> serialIds) {
+        int count = serialIds.size();
+        Passport[] result = new Passport[count];
+        if (ordinals.length > MAX_BATCH_GROUPS) {
+            for (int i = 0; i < count; i++) {
+                result[i] = find(serialIds.get(i));
+            }
+            return result;
+        }
+
+        Ranges[] groups = new Ranges[count];
+        for (int chunkStart = 0; chunkStart < count; chunkStart += BATCH_CHUNK) {
+            int chunkEnd = Math.min(count, chunkStart + BATCH_CHUNK);
+
+            // Packs (group, number, position) into one sortable long: 15 + 31 + 16 bits.
+            long[] keys = new long[chunkEnd - chunkStart];
+            int resolvable = 0;
+            for (int i = chunkStart; i < chunkEnd; i++) {
+                String serialId = serialIds.get(i);
+                if (serialId == null) {
+                    continue;
+                }
+                List<Ranges> matches = rangesByPrefix.prefixMatches(serialId);
+                if (matches.isEmpty()) {
+                    continue;
+                }
+                groups[i] = matches.get(0);
+                int number = SerialNumber.parseNumber(serialId, groups[i].prefixLength);
+                if (number >= 0) {
+                    keys[resolvable++] = (long) groups[i].ordinal << 47 | (long) number << 16 | (i - chunkStart);
+                }
+            }
+            Arrays.sort(keys, 0, resolvable);
+
+            int groupOrdinal = -1;
+            int cursor = -1;
+            for (int k = 0; k < resolvable; k++) {
+                int ordinal = (int) (keys[k] >>> 47);
+                int number = (int) (keys[k] >>> 16 & Integer.MAX_VALUE);
+                int i = chunkStart + (int) (keys[k] & 0xFFFF);
+                Ranges group = ordinals[ordinal];
+                if (ordinal != groupOrdinal) {
+                    groupOrdinal = ordinal;
+                    cursor = -1;
+                }
+                // Numbers ascend within a group, so the last range starting at or before them only moves forward.
+                while (cursor + 1 < group.from.length && group.from[cursor + 1] <= number) {
+                    cursor++;
+                }
+                result[i] = group.findFrom(cursor, number);
+            }
+        }
+
+        // Serials not covered by their longest prefix may still belong to a shorter one.
+        for (int i = 0; i < count; i++) {
+            if (result[i] == null && groups[i] != null) {
+                result[i] = find(serialIds.get(i));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns whether the serial is the prefix of at least one passport followed by a number.
+     * Serials failing this check can never be resolved and may be rejected up front.
+     */
+    public boolean hasKnownPrefix(String serialId) {
+        if (serialId == null) {
+            return false;
+        }
+
+        for (Ranges ranges : rangesByPrefix.prefixMatches(serialId)) {
+            if (SerialNumber.parseNumber(serialId, ranges.prefixLength) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int prefixCount() {
+        return rangesByPrefix.size();
+    }
+
+    private static final class Ranges {
+        private final int ordinal;
+        private final int prefixLength;
+        private final int[] from;
+        private final int[] to;
+        private final int[] maxTo;
+        private final Passport[] passports;
+
+        private Ranges(int ordinal, int prefixLength, List<Passport> group) {
+            this.ordinal = ordinal;
+            this.prefixLength = prefixLength;
+            passports = group.stream()
+                    .sorted(Comparator.comparingInt(Passport::getFromSerialNumber))
+                    .toArray(Passport[]::new);
+            from = new int[passports.length];
+            to = new int[passports.length];
+            maxTo = new int[passports.length];
+
+            int runningMax = Integer.MIN_VALUE;
+            for (int i = 0; i < passports.length; i++) {
+                from[i] = passports[i].getFromSerialNumber();
+                to[i] = passports[i].getToSerialNumber();
+                runningMax = Math.max(runningMax, to[i]);
+                maxTo[i] = runningMax;
+            }
+        }
+
+        private Passport find(int number) {
+            return findFrom(lastStartingAtOrBefore(number), number);
+        }
+
+        /**
+         * @param start index of the last range starting at or before {@code number}
+         */
+        private Passport findFrom(int start, int number) {
+            // maxTo lets overlapping legacy ranges be found without a linear scan
+            // in the common, non-overlapping case.
+            for (int i = start; i >= 0 && maxTo[i] >= number; i--) {
+                if (to[i] >= number) {
+                    return passports[i];
+                }
+            }
+            return null;
+        }
+
+        private int lastStartingAtOrBefore(int number) {
+            int low = 0;
+            int high = from.length - 1;
+            int result = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (from[mid] <= number) {
+                    result = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package bg.tuvarna.devicebackend.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+
+/**
+ * In-memory substring index over short texts, such as a device's serial number or a user's details.
+ * For every trigram of the indexed texts it keeps the ids of the texts containing it, ascending, so the
+ * texts containing a term are found by walking the shortest of its trigrams' id lists, checking the others
+ * by binary search and confirming each candidate against its text. Matches come back in id order, from
+ * any id on, which is what keyset pagination needs. Terms shorter than a trigram are checked against every text.
+ * <p>
+ * Texts are matched as they were put, so callers lowercase both texts and terms. Not thread-safe.
+ */
+public final class TrigramIndex {
+    private final Map<Long, String> texts = new HashMap<>();
+    private final Map<Long, Ids> trigrams = new HashMap<>();
+    private final Ids all = new Ids();
+
+    /**
+     * Indexes {@code text} under {@code id}, replacing the text it had.
+     */
+    public void put(long id, String text) {
+        String previous = texts.put(id, text);
+        if (text.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            for (long trigram : trigramsOf(previous)) {
+                removeTrigram(trigram, id);
+            }
+        } else {
+            all.add(id);
+        }
+        for (long trigram : trigramsOf(text)) {
+            trigrams.computeIfAbsent(trigram, key -> new Ids()).add(id);
+        }
+    }
+
+    public void remove(long id) {
+        String previous = texts.remove(id);
+        if (previous == null) {
+            return;
+        }
+        all.remove(id);
+        for (long trigram : trigramsOf(previous)) {
+            removeTrigram(trigram, id);
+        }
+    }
+
+    public String get(long id) {
+        return texts.get(id);
+    }
+
+    public int size() {
+        return texts.size();
+    }
+
+    /**
+     * The indexed texts by id, read-only.
+     */
+    public Map<Long, String> texts() {
+        return Collections.unmodifiableMap(texts);
+    }
+
+    /**
+     * The ids of the texts containing {@code term}, ascending, from the first one above {@code afterId}.
+     */
+    public PrimitiveIterator.OfLong matches(String term, long afterId) {
+        long[] termTrigrams = trigramsOf(term);
+        if (termTrigrams.length == 0) {
+            return filter(all.iterator(afterId), term, new Ids[0]);
+        }
+
+        Ids[] lists = new Ids[termTrigrams.length];
+        for (int i = 0; i < termTrigrams.length; i++) {
+            lists[i] = trigrams.get(termTrigrams[i]);
+            if (lists[i] == null) {
+                return Ids.EMPTY.iterator(afterId);
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(ids -> ids.size));
+        return filter(lists[0].iterator(afterId), term, Arrays.copyOfRange(lists, 1, lists.length));
+    }
+
+    /**
+     * The ids of the texts containing {@code term}, ascending.
+     */
+    public List<Long> allMatches(String term) {
+        List<Long> ids = new ArrayList<>();
+        matches(term, Long.MIN_VALUE).forEachRemaining((long id) -> ids.add(id));
+        return ids;
+    }
+
+    /**
+     * The distinct ids {@code iterators} return, ascending; each of them has to be ascending too.
+     */
+    public static PrimitiveIterator.OfLong union(List<PrimitiveIterator.OfLong> iterators) {
+        record Head(long id, PrimitiveIterator.OfLong rest) {
+        }
+
+        PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparingLong(Head::id));
+        for (PrimitiveIterator.OfLong iterator : iterators) {
+            if (iterator.hasNext()) {
+                heads.add(new Head(iterator.nextLong(), iterator));
+            }
+        }
+        return new Lookahead() {
+            private long last = Long.MIN_VALUE;
+            private boolean started;
+
+            @Override
+            boolean advance() {
+                while (!heads.isEmpty()) {
+                    Head head = heads.poll();
+                    if (head.rest().hasNext()) {
+                        heads.add(new Head(head.rest().nextLong(), head.rest()));
+                    }
+                    if (!started || head.id() != last) {
+                        started = true;
+                        last = head.id();
+                        next = head.id();
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private PrimitiveIterator.OfLong filter(PrimitiveIterator.OfLong candidates, String term, Ids[] others) {
+        return new Lookahead() {
+            @Override
+            boolean advance() {
+                candidates:
+                while (candidates.hasNext()) {
+                    long id = candidates.nextLong();
+                    for (Ids other : others) {
+                        if (!other.contains(id)) {
+                            continue candidates;
+                        }
+                    }
+                    // Trigrams only narrow it down: "abcab" has every trigram of "bcabc" without containing it.
+                    if (texts.get(id).contains(term)) {
+                        next = id;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private void removeTrigram(long trigram, long id) {
+        Ids ids = trigrams.get(trigram);
+        ids.remove(id);
+        if (ids.size == 0) {
+            trigrams.remove(trigram);
+        }
+    }
+
+    /**
+     * The distinct trigrams of {@code text}, each packed into a long.
+     */
+    private static long[] trigramsOf(String text) {
+        if (text.length() < 3) {
+            return new long[0];
+        }
+        long[] packed = new long[text.length() - 2];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        }
+        return Arrays.stream(packed).distinct().toArray();
+    }
+
+    /**
+     * An iterator that finds its next element ahead of being asked for it.
+     */
+    private abstract static class Lookahead implements PrimitiveIterator.OfLong {
+        long next;
+        private Boolean ready;
+
+        /**
+         * Sets {@link #next} to the next element, if there is one.
+         */
+        abstract boolean advance();
+
+        @Override
+        public boolean hasNext() {
+            if (ready == null) {
+                ready = advance();
+            }
+            return ready;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = null;
+            return next;
+        }
+    }
+
+    /**
+     * A sorted set of ids in an array. Ids mostly arrive in ascending order, so adding is usually an append.
+     */
+    public static final class Ids {
+        static final Ids EMPTY = new Ids();
+
+        private long[] values = new long[4];
+        private int size;
+
+        public void add(long id) {
+            if (size == 0 || values[size - 1] < id) {
+                ensureCapacity();
+                values[size++] = id;
+                return;
+            }
+            int i = Arrays.binarySearch(values, 0, size, id);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            ensureCapacity();
+            System.arraycopy(values, i, values, i + 1, size - i);
+            values[i] = id;
+            size++;
+        }
+
+        public void remove(long id) {
+            int i = Arrays.binarySearch(values, 0, size, id);
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                size--;
+            }
+        }
+
+        public boolean contains(long id) {
+            return Arrays.binarySearch(values, 0, size, id) >= 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * The ids above {@code afterId}, ascending.
+         */
+        public PrimitiveIterator.OfLong iterator(long afterId) {
+            int found = Arrays.binarySearch(values, 0, size, afterId);
+            int start = found < 0 ? -found - 1 : found + 1;
+            return new PrimitiveIterator.OfLong() {
+                private int i = start;
+
+                @Override
+                public boolean hasNext() {
+                    return i < size;
+                }
+
+                @Override
+                public long nextLong() {
+                    if (i >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    return values[i++];
+                }
+            };
+        }
+
+        private void ensureCapacity() {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package bg.tuvarna.devicebackend.validators;
+
+import bg.tuvarna.devicebackend.annotations.ValidSerialNumber;
+import bg.tuvarna.devicebackend.utils.SerialNumber;
+import jakarta.validation.ConstraintValidator;
+import jakarta.validation.ConstraintValidatorContext;
+
+public class ValidSerialNumberValidator implements ConstraintValidator<ValidSerialNumber, String> {
+    @Override
+    public boolean isValid(String value, ConstraintValidatorContext constraintValidatorContext) {
+        // Presence is checked by @NotBlank where the field is required.
+        return value == null || value.isBlank() || SerialNumber.isValid(value);
+    }
+}
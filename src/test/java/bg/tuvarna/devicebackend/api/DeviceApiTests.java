@@ -1,10 +1,23 @@
 package bg.tuvarna.devicebackend.api;
 
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkDeleteVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkResultVO;
 import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
 import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceVO;
+import bg.tuvarna.devicebackend.models.dtos.RegistrationStatusVO;
 import bg.tuvarna.devicebackend.models.entities.Device;
 import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.models.enums.RegistrationStatus;
+import bg.tuvarna.devicebackend.services.AsyncRegistrationService;
+import bg.tuvarna.devicebackend.services.DeviceBulkRegistrationService;
 import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.utils.CustomPage;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -19,8 +32,10 @@ import org.springframework.test.web.servlet.MockMvc;
 
 import java.time.LocalDate;
 import java.util.Collections;
+import java.util.List;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
@@ -40,6 +55,12 @@ class DeviceApiTests {
     @MockBean
     private DeviceService deviceService;
 
+    @MockBean
+    private DeviceBulkRegistrationService deviceBulkRegistrationService;
+
+    @MockBean
+    private AsyncRegistrationService asyncRegistrationService;
+
     private Device device;
 
     @BeforeEach
@@ -74,7 +95,7 @@ class DeviceApiTests {
     @WithMockUser(username = "admin", authorities = "ADMIN")
 
     void isDeviceExistsShouldReturnOk() throws Exception {
-        when(deviceService.isDeviceExists("SN12345")).thenReturn(device);
+        when(deviceService.isDeviceExists("SN12345")).thenReturn(new DeviceVO(device));
 
         mvc.perform(get("/api/v1/devices/exists/SN12345"))
                 .andExpect(status().isOk())
@@ -95,6 +116,41 @@ class DeviceApiTests {
                 .andExpect(jsonPath("$.serialNumber").value("SN12345"));
     }
 
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void addDeviceWithRespondAsyncShouldReturnAccepted() throws Exception {
+        DeviceCreateVO createVO = new DeviceCreateVO("SN6789", LocalDate.now());
+        when(asyncRegistrationService.accepts("respond-async")).thenReturn(true);
+        when(asyncRegistrationService.submitDevice(any(DeviceCreateVO.class), any()))
+                .thenReturn(new RegistrationStatusVO("abc", RegistrationStatus.QUEUED, null));
+
+        mvc.perform(post("/api/v1/devices")
+                        .header("Prefer", "respond-async")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(createVO)))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Location", "http://localhost/api/v1/registrations/abc"))
+                .andExpect(jsonPath("$.status").value("QUEUED"));
+
+        verify(deviceService, never()).registerNewDevice(any(), any());
+    }
+
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void addDeviceWithFullQueueShouldReturnTooManyRequests() throws Exception {
+        DeviceCreateVO createVO = new DeviceCreateVO("SN6789", LocalDate.now());
+        when(asyncRegistrationService.accepts("respond-async")).thenReturn(true);
+        when(asyncRegistrationService.submitDevice(any(DeviceCreateVO.class), any()))
+                .thenThrow(new CustomException("Too many registrations in progress, try again later", ErrorCode.QueueFull));
+
+        mvc.perform(post("/api/v1/devices")
+                        .header("Prefer", "respond-async")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(createVO)))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().exists("Retry-After"));
+    }
+
     @Test
     @WithMockUser(username = "admin", authorities = "ADMIN")
 
@@ -112,6 +168,20 @@ class DeviceApiTests {
     @Test
     @WithMockUser(username = "admin", authorities = "ADMIN")
 
+    void addDeviceShouldRejectMalformedSerialNumber() throws Exception {
+        DeviceCreateVO createVO = new DeviceCreateVO("SN 6789;", LocalDate.now());
+
+        mvc.perform(post("/api/v1/devices")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(createVO)))
+                .andExpect(status().isBadRequest());
+
+        verifyNoInteractions(deviceService);
+    }
+
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+
     void updateDeviceShouldReturnOk() throws Exception {
         DeviceUpdateVO updateVO = new DeviceUpdateVO(LocalDate.now().plusDays(1), "Updated comment");
         when(deviceService.updateDevice(eq("SN12345"), any(DeviceUpdateVO.class))).thenReturn(device);
@@ -123,6 +193,44 @@ class DeviceApiTests {
                 .andExpect(jsonPath("$.serialNumber").value("SN12345"));
     }
 
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void updateDeviceWithIfMatchShouldReturnNewETag() throws Exception {
+        DeviceUpdateVO updateVO = new DeviceUpdateVO(LocalDate.now().plusDays(1), "Updated comment");
+        when(deviceService.updateDevice(eq("SN12345"), any(DeviceUpdateVO.class), eq(3L))).thenReturn(4L);
+
+        mvc.perform(put("/api/v1/devices/SN12345")
+                        .header("If-Match", "\"3\"")
+                        .header("Prefer", "return=minimal")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(updateVO)))
+                .andExpect(status().isNoContent())
+                .andExpect(header().string("ETag", "\"4\""));
+
+        verify(deviceService, never()).findDevice(any());
+    }
+
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void updateDeviceWithStaleIfMatchShouldReturnPreconditionFailed() throws Exception {
+        DeviceUpdateVO updateVO = new DeviceUpdateVO(LocalDate.now().plusDays(1), "Updated comment");
+        when(deviceService.updateDevice(eq("SN12345"), any(DeviceUpdateVO.class), eq(2L)))
+                .thenThrow(new CustomException("Device was modified by another request", ErrorCode.VersionMismatch));
+
+        mvc.perform(put("/api/v1/devices/SN12345")
+                        .header("If-Match", "\"2\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(updateVO)))
+                .andExpect(status().isPreconditionFailed())
+                .andExpect(jsonPath("$.errorCode").value(ErrorCode.VersionMismatch.getCode()));
+
+        mvc.perform(put("/api/v1/devices/SN12345")
+                        .header("If-Match", "W/\"2\"")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(updateVO)))
+                .andExpect(status().isPreconditionFailed());
+    }
+
     @Test
     @WithMockUser(username = "admin", authorities = "ADMIN")
 
@@ -134,4 +242,81 @@ class DeviceApiTests {
 
         verify(deviceService, times(1)).deleteDevice("SN12345");
     }
+
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void addDevicesShouldReturnPerDeviceResults() throws Exception {
+        when(deviceBulkRegistrationService.registerDevices(any())).thenReturn(List.of(
+                DeviceBulkResultVO.registered("SN1"),
+                DeviceBulkResultVO.rejected("SN2", "Device already registered")
+        ));
+
+        DeviceBulkCreateVO body = new DeviceBulkCreateVO(List.of(
+                new DeviceCreateVO("SN1", LocalDate.now()),
+                new DeviceCreateVO("SN2", LocalDate.now())
+        ));
+
+        mvc.perform(post("/api/v1/devices/bulk")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(body)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].registered").value(true))
+                .andExpect(jsonPath("$[1].error").value("Device already registered"));
+    }
+
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void getExpiringDevicesShouldRejectInvalidWindow() throws Exception {
+        mvc.perform(get("/api/v1/devices/expiring").param("within", "1y"))
+                .andExpect(status().isBadRequest());
+
+        mvc.perform(get("/api/v1/devices/expiring").param("within", "30d"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.items").isArray());
+    }
+
+    @Test
+    @WithMockUser(username = "user", authorities = "USER")
+    void bulkDeleteShouldBeForbiddenForUsers() throws Exception {
+        DeviceBulkDeleteVO body = new DeviceBulkDeleteVO(List.of("SN1"), null, null, null, null, false);
+
+        mvc.perform(post("/api/v1/devices/bulk-delete")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(body)))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    @WithMockUser(username = "user", authorities = "USER")
+    void metricsShouldBeForbiddenForUsers() throws Exception {
+        mvc.perform(get("/actuator/metrics/devices.lookup.coalesced"))
+                .andExpect(status().isForbidden());
+    }
+
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void metricsShouldBeAvailableToAdmins() throws Exception {
+        mvc.perform(get("/actuator/metrics"))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    @WithMockUser(username = "admin", authorities = "ADMIN")
+    void getDevicesShouldReportTheCountModeThatAnswered() throws Exception {
+        CustomPage<DeviceListingVO> page = new CustomPage<>();
+        page.setItems(List.of(new DeviceListingVO(1L, 1L, "SN1", LocalDate.now(), null, null,
+                null, null, null, null, null, null, null)));
+        page.setSize(10);
+        page.setTotal(120, CountMode.APPROX);
+        when(deviceService.getDevices(eq("sn"), anyInt(), anyInt(), eq(CountMode.APPROX))).thenReturn(page);
+
+        mvc.perform(get("/api/v1/devices").param("searchBy", "sn").param("count", "approx"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("X-Total-Count-Mode", "approx"))
+                .andExpect(jsonPath("$.totalPages").value(12))
+                .andExpect(jsonPath("$.countMode").doesNotExist());
+
+        mvc.perform(get("/api/v1/devices").param("count", "roughly"))
+                .andExpect(status().isBadRequest());
+    }
 }
@@ -0,0 +1,150 @@
+package bg.tuvarna.devicebackend.api;
+
+import bg.tuvarna.devicebackend.config.IdempotencyFilter;
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+@ActiveProfiles("test")
+class IdempotencyApiTests {
+
+    @Autowired
+    private MockMvc mvc;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @MockBean
+    private DeviceService deviceService;
+
+    private Device device;
+
+    @BeforeEach
+    void setUp() {
+        Passport passport = new Passport();
+        passport.setId(1L);
+
+        device = new Device();
+        device.setSerialNumber("SN100");
+        device.setPurchaseDate(LocalDate.now());
+        device.setPassport(passport);
+        device.setRenovations(Collections.emptyList());
+    }
+
+    private MvcResult register(String key, String serialNumber) throws Exception {
+        return mvc.perform(post("/api/v1/devices/anonymousDevice")
+                        .header(IdempotencyFilter.HEADER, key)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(new DeviceCreateVO(serialNumber, LocalDate.now()))))
+                .andReturn();
+    }
+
+    @Test
+    void retryShouldReplayFirstResponseWithoutRegisteringAgain() throws Exception {
+        when(deviceService.addAnonymousDevice(any(DeviceCreateVO.class))).thenReturn(device);
+        String key = UUID.randomUUID().toString();
+
+        MvcResult first = register(key, "SN100");
+        MvcResult retry = register(key, "SN100");
+
+        verify(deviceService, times(1)).addAnonymousDevice(any(DeviceCreateVO.class));
+        assertEquals(201, first.getResponse().getStatus());
+        assertEquals(201, retry.getResponse().getStatus());
+        assertEquals(first.getResponse().getContentAsString(), retry.getResponse().getContentAsString());
+        assertEquals(first.getResponse().getHeader("Location"), retry.getResponse().getHeader("Location"));
+        assertNull(first.getResponse().getHeader(IdempotencyFilter.REPLAYED_HEADER));
+        assertEquals("true", retry.getResponse().getHeader(IdempotencyFilter.REPLAYED_HEADER));
+    }
+
+    @Test
+    void reusingKeyForDifferentBodyShouldBeRejected() throws Exception {
+        when(deviceService.addAnonymousDevice(any(DeviceCreateVO.class))).thenReturn(device);
+        String key = UUID.randomUUID().toString();
+
+        register(key, "SN100");
+        MvcResult reused = register(key, "SN101");
+
+        assertEquals(400, reused.getResponse().getStatus());
+        verify(deviceService, times(1)).addAnonymousDevice(any(DeviceCreateVO.class));
+    }
+
+    @Test
+    void concurrentDuplicateShouldWaitForInFlightRequest() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(deviceService.addAnonymousDevice(any(DeviceCreateVO.class))).thenAnswer(invocation -> {
+            entered.countDown();
+            assertTrue(release.await(10, TimeUnit.SECONDS));
+            return device;
+        });
+        String key = UUID.randomUUID().toString();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<MvcResult> first = executor.submit(() -> register(key, "SN100"));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            Future<MvcResult> duplicate = executor.submit(() -> register(key, "SN100"));
+
+            // Give the duplicate time to reach the store and start waiting.
+            Thread.sleep(200);
+            assertFalse(duplicate.isDone());
+            release.countDown();
+
+            assertEquals(201, first.get(10, TimeUnit.SECONDS).getResponse().getStatus());
+            assertEquals(201, duplicate.get(10, TimeUnit.SECONDS).getResponse().getStatus());
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(deviceService, times(1)).addAnonymousDevice(any(DeviceCreateVO.class));
+    }
+
+    @Test
+    void serverErrorShouldNotBeStored() throws Exception {
+        when(deviceService.addAnonymousDevice(any(DeviceCreateVO.class)))
+                .thenThrow(new RuntimeException("database down"))
+                .thenReturn(device);
+        String key = UUID.randomUUID().toString();
+
+        assertEquals(500, register(key, "SN100").getResponse().getStatus());
+        assertEquals(201, register(key, "SN100").getResponse().getStatus());
+        verify(deviceService, times(2)).addAnonymousDevice(any(DeviceCreateVO.class));
+    }
+
+    @Test
+    void requestWithoutKeyShouldNotBeStored() throws Exception {
+        when(deviceService.addAnonymousDevice(any(DeviceCreateVO.class))).thenReturn(device);
+        String body = mapper.writeValueAsString(new DeviceCreateVO("SN100", LocalDate.now()));
+
+        for (int i = 0; i < 2; i++) {
+            mvc.perform(post("/api/v1/devices/anonymousDevice").contentType(MediaType.APPLICATION_JSON).content(body))
+                    .andExpect(status().isCreated())
+                    .andExpect(header().doesNotExist(IdempotencyFilter.REPLAYED_HEADER));
+        }
+        verify(deviceService, times(2)).addAnonymousDevice(any(DeviceCreateVO.class));
+    }
+}
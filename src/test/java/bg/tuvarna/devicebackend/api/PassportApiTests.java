@@ -1,9 +1,16 @@
 package bg.tuvarna.devicebackend.api;
 
 import bg.tuvarna.devicebackend.models.dtos.PassportCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.PassportImportResultVO;
+import bg.tuvarna.devicebackend.models.dtos.PassportResolveVO;
 import bg.tuvarna.devicebackend.models.dtos.PassportUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.PassportUtilizationVO;
+import bg.tuvarna.devicebackend.models.dtos.SerialResolutionVO;
 import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.enums.PassportImportFormat;
+import bg.tuvarna.devicebackend.services.PassportImportService;
 import bg.tuvarna.devicebackend.services.PassportService;
+import bg.tuvarna.devicebackend.services.PassportUtilizationService;
 import bg.tuvarna.devicebackend.utils.CustomPage;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
@@ -18,6 +25,7 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -39,6 +47,12 @@ class PassportApiTests {
     @MockBean
     private PassportService passportService;
 
+    @MockBean
+    private PassportImportService passportImportService;
+
+    @MockBean
+    private PassportUtilizationService passportUtilizationService;
+
     private Passport passport;
 
     @BeforeEach
@@ -115,4 +129,51 @@ class PassportApiTests {
                 .andExpect(jsonPath("$.name").value("Smart Device"))
                 .andExpect(jsonPath("$.model").value("X1000"));
     }
+
+    @Test
+    void resolveSerialNumbersShouldReturnOkWithoutAuth() throws Exception {
+        when(passportService.resolveSerialNumbers(List.of("SN5", "XX1")))
+                .thenReturn(List.of(new SerialResolutionVO("SN5", passport), new SerialResolutionVO("XX1", null)));
+
+        mvc.perform(post("/api/v1/passports/resolve")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(new PassportResolveVO(List.of("SN5", "XX1")))))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].found").value(true))
+                .andExpect(jsonPath("$[0].passport.name").value("Smart Device"))
+                .andExpect(jsonPath("$[1].found").value(false));
+    }
+
+    @Test
+    @WithMockUser(authorities = "ADMIN")
+    void importPassportsShouldStreamRowResults() throws Exception {
+        doAnswer(invocation -> {
+            Consumer<PassportImportResultVO> report = invocation.getArgument(2);
+            report.accept(PassportImportResultVO.imported(2, 7));
+            report.accept(PassportImportResultVO.rejected(3, "Serial range overlaps line 2"));
+            return 1L;
+        }).when(passportImportService).importPassports(any(), eq(PassportImportFormat.CSV), any());
+
+        mvc.perform(post("/api/v1/passports/import")
+                        .contentType("text/csv")
+                        .content("name,model,serialPrefix,warrantyMonths,fromSerialNumber,toSerialNumber\n"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andExpect(content().string(
+                        "{\"line\":2,\"imported\":true,\"id\":7,\"error\":null}\n" +
+                        "{\"line\":3,\"imported\":false,\"id\":null,\"error\":\"Serial range overlaps line 2\"}\n"));
+    }
+
+    @Test
+    @WithMockUser(authorities = "ADMIN")
+    void getUtilizationShouldReturnCountsPerPassport() throws Exception {
+        when(passportUtilizationService.getUtilization()).thenReturn(List.of(new PassportUtilizationVO(passport, 25, 20, 3)));
+
+        mvc.perform(get("/api/v1/passports/utilization"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].passportId").value(1))
+                .andExpect(jsonPath("$[0].capacity").value(100))
+                .andExpect(jsonPath("$[0].anonymous").value(5))
+                .andExpect(jsonPath("$[0].utilization").value(0.25));
+    }
 }
@@ -1,7 +1,13 @@
 package bg.tuvarna.devicebackend.repository;
 
+import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
 import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
 import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.DeviceRepositoryCustom;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import jakarta.persistence.EntityManager;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -12,6 +18,8 @@ import org.springframework.data.domain.PageRequest;
 import org.springframework.test.context.ActiveProfiles;
 
 import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -22,6 +30,12 @@ class DeviceRepoTests {
     @Autowired
     private DeviceRepository deviceRepository;
 
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private EntityManager entityManager;
+
     private Device device;
 
     @BeforeEach
@@ -48,7 +62,47 @@ class DeviceRepoTests {
 
     @Test
     void findDeviceByIdShouldReturnCorrectDevice() {
-        assertTrue(deviceRepository.findById("SN123").isPresent());
-        assertEquals("SN123", deviceRepository.findById("SN123").get().getSerialNumber());
+        assertTrue(deviceRepository.findBySerialNumber("SN123").isPresent());
+        assertEquals("SN123", deviceRepository.findBySerialNumber("SN123").get().getSerialNumber());
+    }
+
+    @Test
+    void updateIfVersionShouldApplyOnlyAtTheGivenVersion() {
+        Passport passport = passportRepository.save(Passport.builder().name("P").serialPrefix("SN").fromSerialNumber(1).toSerialNumber(999).warrantyMonths(12).build());
+        device.setPassport(passport);
+        deviceRepository.saveAndFlush(device);
+        long version = device.getVersion();
+        LocalDate previousWarranty = device.getWarrantyExpirationDate();
+        DeviceUpdateVO update = new DeviceUpdateVO(LocalDate.now().minusDays(1), "updated");
+
+        Optional<DeviceRepositoryCustom.PreviousState> previous = deviceRepository.updateIfVersion(
+                "SN123", version, passport.getId(), update, LocalDate.now().plusMonths(1), LocalDate.now().plusMonths(13));
+        assertTrue(previous.isPresent());
+        assertEquals(previousWarranty, previous.get().warrantyExpirationDate());
+        assertFalse(previous.get().owned());
+
+        entityManager.clear();
+        Device updated = deviceRepository.findBySerialNumber("SN123").orElseThrow();
+        assertEquals(version + 1, updated.getVersion());
+        assertEquals("updated", updated.getComment());
+        assertEquals(LocalDate.now().plusMonths(1), updated.getWarrantyExpirationDate());
+
+        assertTrue(deviceRepository.updateIfVersion(
+                "SN123", version, passport.getId(), update, LocalDate.now(), LocalDate.now()).isEmpty());
+    }
+
+    @Test
+    void getAllDevicesAfterShouldSeekById() {
+        Device second = new Device();
+        second.setSerialNumber("SN124");
+        second.setPurchaseDate(LocalDate.now());
+        deviceRepository.save(second);
+
+        assertEquals(List.of("SN123"), deviceRepository.getAllDevicesAfter(0, PageRequest.of(0, 1))
+                .stream().map(DeviceListingVO::serialNumber).toList());
+        assertEquals(List.of("SN124"), deviceRepository.getAllDevicesAfter(device.getId(), PageRequest.of(0, 5))
+                .stream().map(DeviceListingVO::serialNumber).toList());
+        assertEquals(List.of("SN124"), deviceRepository.findAllAfter("sn124", 0, PageRequest.of(0, 5))
+                .stream().map(DeviceListingVO::serialNumber).toList());
     }
 }
@@ -2,12 +2,19 @@ package bg.tuvarna.devicebackend.repository;
 
 import bg.tuvarna.devicebackend.models.entities.Passport;
 import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
@@ -20,6 +27,9 @@ class PassportRepoTests {
     @Autowired
     private PassportRepository passportRepository;
 
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
     private Passport passport;
 
     @BeforeEach
@@ -48,8 +58,63 @@ class PassportRepoTests {
     }
 
     @Test
-    void findByFromSerialShouldReturnPassports() {
-        List<Passport> result = passportRepository.findByFromSerial("ABC101");
-        assertFalse(result.isEmpty());
+    void findByFromSerialNumberBetweenShouldFindEnclosingRange() {
+        List<Passport> result = passportRepository.findByFromSerialNumberBetween("ABC", 120, 130);
+        assertEquals(1, result.size());
+    }
+
+    @Test
+    void findByFromSerialNumberBetweenShouldIgnoreAdjacentRangeAndOtherPrefix() {
+        assertTrue(passportRepository.findByFromSerialNumberBetween("ABC", 201, 300).isEmpty());
+        assertTrue(passportRepository.findByFromSerialNumberBetween("ABD", 100, 200).isEmpty());
+    }
+
+    private Statistics statistics() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        return statistics;
+    }
+
+    // The second-level cache only sees committed data, so these run outside the test transaction.
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    void findByIdShouldBeServedFromSecondLevelCache() {
+        passportRepository.findById(passport.getId());
+
+        Statistics statistics = statistics();
+        Passport cached = passportRepository.findById(passport.getId()).orElseThrow();
+
+        assertEquals("ABC", cached.getSerialPrefix());
+        assertEquals(0, statistics.getPrepareStatementCount());
+        assertEquals(1, statistics.getSecondLevelCacheHitCount());
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    void passportPageShouldBeServedFromQueryCache() {
+        passportRepository.findAll(PageRequest.of(0, 1));
+
+        Statistics statistics = statistics();
+        Page<Passport> result = passportRepository.findAll(PageRequest.of(0, 1));
+
+        assertEquals(1, result.getContent().size());
+        assertEquals(1, result.getTotalElements());
+        // Both the page and its count query.
+        assertEquals(0, statistics.getPrepareStatementCount());
+        assertEquals(2, statistics.getQueryCacheHitCount());
+    }
+
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    void savingPassportShouldInvalidateCachedQuery() {
+        passportRepository.findAll(PageRequest.of(0, 10));
+
+        passport.setSerialPrefix("XYZ");
+        passportRepository.save(passport);
+
+        Statistics statistics = statistics();
+        assertEquals("XYZ", passportRepository.findAll(PageRequest.of(0, 10)).getContent().get(0).getSerialPrefix());
+        assertEquals(0, statistics.getQueryCacheHitCount());
+        assertEquals("XYZ", passportRepository.findById(passport.getId()).orElseThrow().getSerialPrefix());
     }
 }
@@ -1,5 +1,6 @@
 package bg.tuvarna.devicebackend.repository;
 
+import bg.tuvarna.devicebackend.models.dtos.UserListing;
 import bg.tuvarna.devicebackend.models.entities.User;
 import bg.tuvarna.devicebackend.models.enums.UserRole;
 import bg.tuvarna.devicebackend.repositories.UserRepository;
@@ -12,6 +13,7 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.test.context.ActiveProfiles;
 
+import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -74,4 +76,21 @@ class UserRepoTests {
         Page<User> result = userRepository.getAllUsers(Pageable.ofSize(2));
         assertFalse(result.isEmpty());
     }
+
+    @Test
+    void searchByAfterShouldSeekPastTheCursor() {
+        User second = userRepository.save(User.builder()
+                .fullName("Gosho Ivanov")
+                .email("ivanov@abv.bg")
+                .phone("0888654321")
+                .role(UserRole.USER)
+                .build());
+
+        List<UserListing> first = userRepository.searchByAfter("gosho", 0, Pageable.ofSize(1));
+        assertEquals(List.of(user.getId()), first.stream().map(UserListing::id).toList());
+
+        List<UserListing> next = userRepository.searchByAfter("gosho", user.getId(), Pageable.ofSize(1));
+        assertEquals(List.of(second.getId()), next.stream().map(UserListing::id).toList());
+        assertTrue(userRepository.getAllUsersAfter(second.getId(), Pageable.ofSize(1)).isEmpty());
+    }
 }
@@ -0,0 +1,214 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.RegistrationStatusVO;
+import bg.tuvarna.devicebackend.models.dtos.UserCreateVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.RegistrationStatus;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.services.AsyncRegistrationService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import bg.tuvarna.devicebackend.services.UserService;
+import bg.tuvarna.devicebackend.utils.MappedJournal;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@SpringBootTest(properties = {
+        "registration.async.enabled=true",
+        "registration.async.journal-path=${java.io.tmpdir}/registrations-${random.uuid}.journal",
+        "registration.async.journal-size=64KB",
+        "registration.async.retry-delay=50ms",
+        "registration.async.queue-capacity=3"
+})
+@ActiveProfiles("test")
+class AsyncRegistrationServiceTests {
+
+    @Autowired
+    private AsyncRegistrationService asyncRegistrationService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @SpyBean
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @BeforeEach
+    void setUp() {
+        passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("AR")
+                .warrantyMonths(12).fromSerialNumber(1).toSerialNumber(100).build());
+        passportSerialIndex.rebuild();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAllInBatch();
+        userRepository.deleteAll(userRepository.findAll().stream().filter(user -> user.getEmail().endsWith("@async.test")).toList());
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+    }
+
+    private RegistrationStatusVO awaitDone(String id) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            RegistrationStatusVO status = asyncRegistrationService.getStatus(id);
+            if (status.status() != RegistrationStatus.QUEUED) {
+                return status;
+            }
+            Thread.sleep(50);
+        }
+        fail("Registration " + id + " still queued");
+        return null;
+    }
+
+    private static UserCreateVO user(String email, String phone, String serialNumber) {
+        return new UserCreateVO("Async User", "Password1!", email, phone, null,
+                serialNumber != null ? LocalDate.now() : null, serialNumber);
+    }
+
+    @Test
+    void queuedDeviceRegistrationShouldBeCommitted() throws InterruptedException {
+        User owner = userRepository.save(User.builder().fullName("Owner").email("owner@async.test").phone("0888100200").build());
+
+        RegistrationStatusVO queued = asyncRegistrationService.submitDevice(new DeviceCreateVO("AR1", LocalDate.now()), owner);
+        assertEquals(RegistrationStatus.QUEUED, queued.status());
+
+        assertEquals(RegistrationStatus.REGISTERED, awaitDone(queued.id()).status());
+        Device device = deviceRepository.findBySerialNumber("AR1").orElseThrow();
+        assertEquals(owner.getId(), device.getUser().getId());
+    }
+
+    @Test
+    void failingRegistrationShouldNotHoldBackTheRestOfItsGroup() throws InterruptedException {
+        RegistrationStatusVO first = asyncRegistrationService.submitUser(user("first@async.test", "0888100201", "AR2"));
+        RegistrationStatusVO duplicate = asyncRegistrationService.submitUser(user("first@async.test", "0888100202", null));
+        RegistrationStatusVO second = asyncRegistrationService.submitUser(user("second@async.test", "0888100203", null));
+
+        assertEquals(RegistrationStatus.REGISTERED, awaitDone(first.id()).status());
+        RegistrationStatusVO failed = awaitDone(duplicate.id());
+        assertEquals(RegistrationStatus.FAILED, failed.status());
+        assertEquals("Email already taken", failed.error());
+        assertEquals(RegistrationStatus.REGISTERED, awaitDone(second.id()).status());
+
+        User registered = userService.getUserByUsername("first@async.test");
+        assertNotEquals("Password1!", registered.getPassword());
+        assertTrue(deviceRepository.existsBySerialNumber("AR2"));
+    }
+
+    @Test
+    void registrationsShouldStayQueuedWhileTheDatabaseIsDown() throws InterruptedException {
+        User owner = userRepository.save(User.builder().fullName("Owner").email("outage@async.test").phone("0888100204").build());
+        AtomicBoolean down = new AtomicBoolean(true);
+        doAnswer(invocation -> {
+            if (down.get()) {
+                throw new DataAccessResourceFailureException("Connection refused");
+            }
+            // The spy wraps the repository proxy, so the real method is reached through its default answer.
+            return mockingDetails(deviceRepository).getMockCreationSettings().getDefaultAnswer().answer(invocation);
+        }).when(deviceRepository).insert(any(Device.class));
+
+        RegistrationStatusVO queued = asyncRegistrationService.submitDevice(new DeviceCreateVO("AR3", LocalDate.now()), owner);
+
+        verify(deviceRepository, timeout(5000).atLeast(4)).insert(any(Device.class));
+        assertEquals(RegistrationStatus.QUEUED, asyncRegistrationService.getStatus(queued.id()).status());
+        assertFalse(deviceRepository.existsBySerialNumber("AR3"));
+
+        down.set(false);
+        assertEquals(RegistrationStatus.REGISTERED, awaitDone(queued.id()).status());
+        assertTrue(deviceRepository.existsBySerialNumber("AR3"));
+    }
+
+    @Test
+    void registrationsBeingRetriedShouldCountAgainstTheCapacity() throws InterruptedException {
+        User owner = userRepository.save(User.builder().fullName("Owner").email("backlog@async.test").phone("0888100206").build());
+        AtomicBoolean down = new AtomicBoolean(true);
+        doAnswer(invocation -> {
+            if (down.get()) {
+                throw new DataAccessResourceFailureException("Connection refused");
+            }
+            return mockingDetails(deviceRepository).getMockCreationSettings().getDefaultAnswer().answer(invocation);
+        }).when(deviceRepository).insert(any(Device.class));
+
+        List<RegistrationStatusVO> queued = new ArrayList<>();
+        for (String serialNumber : List.of("AR5", "AR6", "AR7")) {
+            queued.add(asyncRegistrationService.submitDevice(new DeviceCreateVO(serialNumber, LocalDate.now()), owner));
+        }
+        // Taken off the queue by the writer, but still waiting for the database.
+        verify(deviceRepository, timeout(5000).atLeast(4)).insert(any(Device.class));
+
+        CustomException full = assertThrows(CustomException.class,
+                () -> asyncRegistrationService.submitDevice(new DeviceCreateVO("AR8", LocalDate.now()), owner));
+        assertEquals(ErrorCode.QueueFull, full.getErrorCode());
+
+        down.set(false);
+        for (RegistrationStatusVO registration : queued) {
+            assertEquals(RegistrationStatus.REGISTERED, awaitDone(registration.id()).status());
+        }
+        RegistrationStatusVO accepted = asyncRegistrationService.submitDevice(new DeviceCreateVO("AR8", LocalDate.now()), owner);
+        assertEquals(RegistrationStatus.REGISTERED, awaitDone(accepted.id()).status());
+    }
+
+    @Test
+    void userRegisteredRightAwayShouldNotOutliveAFailedDevice() {
+        doThrow(new DataAccessResourceFailureException("Connection refused"))
+                .when(deviceRepository).insert(any(Device.class));
+
+        assertThrows(DataAccessResourceFailureException.class,
+                () -> userService.register(user("sync@async.test", "0888100205", "AR4")));
+
+        assertNull(userRepository.getByEmail("sync@async.test"));
+        assertFalse(deviceRepository.existsBySerialNumber("AR4"));
+    }
+
+    @Test
+    void journalShouldReplayOnlyUnacknowledgedRecords(@TempDir Path directory) throws Exception {
+        Path path = directory.resolve("test.journal");
+        long firstEnd;
+        try (MappedJournal journal = new MappedJournal(path, 1024)) {
+            firstEnd = journal.append("first".getBytes(StandardCharsets.UTF_8));
+            journal.append("second".getBytes(StandardCharsets.UTF_8));
+            journal.acknowledge(firstEnd);
+        }
+
+        try (MappedJournal journal = new MappedJournal(path, 1024)) {
+            List<MappedJournal.Entry> entries = journal.unacknowledged();
+            assertEquals(1, entries.size());
+            assertEquals("second", new String(entries.get(0).payload(), StandardCharsets.UTF_8));
+
+            journal.acknowledge(entries.get(0).endOffset());
+            assertTrue(journal.append(new byte[2000]) < 0);
+            assertTrue(journal.append("third".getBytes(StandardCharsets.UTF_8)) > 0);
+        }
+    }
+}
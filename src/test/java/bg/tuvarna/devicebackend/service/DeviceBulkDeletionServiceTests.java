@@ -0,0 +1,155 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkDeleteResultVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkDeleteVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.entities.Renovation;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.repositories.RenovationRepository;
+import bg.tuvarna.devicebackend.services.DeviceBulkDeletionService;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import bg.tuvarna.devicebackend.services.PassportService;
+import bg.tuvarna.devicebackend.services.WarrantyExpiryService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class DeviceBulkDeletionServiceTests {
+
+    @Autowired
+    private DeviceBulkDeletionService deviceBulkDeletionService;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private WarrantyExpiryService warrantyExpiryService;
+
+    @Autowired
+    private PassportService passportService;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private RenovationRepository renovationRepository;
+
+    private static final LocalDate TODAY = LocalDate.now();
+
+    private Passport passport;
+
+    @BeforeEach
+    void setUp() {
+        passport = passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("BD")
+                .warrantyMonths(12).fromSerialNumber(1).toSerialNumber(100).build());
+        passportSerialIndex.rebuild();
+
+        for (int i = 1; i <= 12; i++) {
+            save("BD" + i);
+        }
+        Renovation renovation = new Renovation();
+        renovation.setDescription("Screen");
+        renovation.setRenovationDate(TODAY);
+        renovation.setDevice(deviceRepository.findBySerialNumber("BD2").orElseThrow());
+        renovationRepository.save(renovation);
+        warrantyExpiryService.rebuildBuckets(TODAY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        renovationRepository.deleteAllInBatch();
+        deviceRepository.deleteAllInBatch();
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+        warrantyExpiryService.rebuildBuckets(TODAY);
+    }
+
+    private void save(String serialNumber) {
+        Device device = new Device();
+        device.setSerialNumber(serialNumber);
+        device.setPurchaseDate(TODAY);
+        device.setWarrantyExpirationDate(TODAY.plusDays(10));
+        device.setPassport(passport);
+        deviceRepository.save(device);
+    }
+
+    @Test
+    void serialNumbersShouldDeleteDevicesAndTheirRenovations() {
+        DeviceBulkDeleteResultVO result = deviceBulkDeletionService.deleteBySerialNumbers(List.of("BD1", "BD2", "BD2", "BD99"));
+
+        assertEquals(2, result.deletedDevices());
+        assertEquals(1, result.deletedRenovations());
+        assertNull(result.passportDeleted());
+        assertEquals(10, deviceRepository.count());
+        assertThrows(CustomException.class, () -> deviceService.isDeviceExists("BD1"));
+        assertEquals(10, warrantyExpiryService.countExpiringWithin(30));
+    }
+
+    @Test
+    void serialRangeShouldMatchTheNumberAfterThePrefix() {
+        DeviceBulkDeleteResultVO result = deviceBulkDeletionService.deleteBySerialRange("BD", 2, 10);
+
+        assertEquals(9, result.deletedDevices());
+        assertEquals(List.of("BD1", "BD11", "BD12"),
+                deviceRepository.findAll().stream().map(Device::getSerialNumber).sorted().toList());
+    }
+
+    @Test
+    void serialRangeShouldMatchNumbersWrittenWithLeadingZeros() {
+        save("BD007");
+        save("BD0100");
+        save("BD5X");
+
+        DeviceBulkDeleteResultVO result = deviceBulkDeletionService.deleteBySerialRange("BD", 7, 11);
+
+        assertEquals(6, result.deletedDevices());
+        assertEquals(List.of("BD0100", "BD1", "BD12", "BD2", "BD3", "BD4", "BD5", "BD5X", "BD6"),
+                deviceRepository.findAll().stream().map(Device::getSerialNumber).sorted().toList());
+    }
+
+    @Test
+    void passportShouldBeDeletedAfterItsDevices() {
+        DeviceBulkDeleteResultVO result = deviceBulkDeletionService.deleteByPassport(passport.getId(), true);
+
+        assertEquals(12, result.deletedDevices());
+        assertEquals(1, result.deletedRenovations());
+        assertTrue(result.passportDeleted());
+        assertFalse(passportRepository.existsById(passport.getId()));
+    }
+
+    @Test
+    void passportStillInUseShouldNotBeDeleted() {
+        assertEquals(0, passportService.deleteUnused(List.of(passport.getId())));
+        assertTrue(passportRepository.existsById(passport.getId()));
+    }
+
+    @Test
+    void requestShouldSelectExactlyOneWay() {
+        assertThrows(CustomException.class, () -> deviceBulkDeletionService.delete(
+                new DeviceBulkDeleteVO(List.of("BD1"), null, null, null, passport.getId(), false)));
+        assertThrows(CustomException.class, () -> deviceBulkDeletionService.delete(
+                new DeviceBulkDeleteVO(null, null, null, null, null, false)));
+        assertThrows(CustomException.class, () -> deviceBulkDeletionService.delete(
+                new DeviceBulkDeleteVO(List.of("BD1"), null, null, null, null, true)));
+    }
+}
@@ -0,0 +1,117 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceBulkResultVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.services.DeviceBulkRegistrationService;
+import bg.tuvarna.devicebackend.services.DeviceRegistrationIndex;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class DeviceBulkRegistrationServiceTests {
+
+    @Autowired
+    private DeviceBulkRegistrationService deviceBulkRegistrationService;
+
+    @Autowired
+    private DeviceRegistrationIndex deviceRegistrationIndex;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    private Passport passport;
+
+    @BeforeEach
+    void setUp() {
+        passport = passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("BK")
+                .warrantyMonths(24).fromSerialNumber(1).toSerialNumber(5000).build());
+
+        Device device = new Device();
+        device.setSerialNumber("BK5");
+        device.setPurchaseDate(LocalDate.now());
+        device.setPassport(passport);
+        deviceRepository.save(device);
+
+        passportSerialIndex.rebuild();
+        deviceRegistrationIndex.rebuild();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAll();
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+        deviceRegistrationIndex.rebuild();
+    }
+
+    @Test
+    void bulkRegistrationShouldReportEveryDeviceInRequestOrder() {
+        LocalDate purchaseDate = LocalDate.of(2024, 1, 15);
+        List<DeviceCreateVO> devices = new ArrayList<>();
+        for (int i = 1; i <= 2500; i++) {
+            devices.add(new DeviceCreateVO("BK" + i, purchaseDate));
+        }
+        devices.add(new DeviceCreateVO("BK7", purchaseDate));
+        devices.add(new DeviceCreateVO("ZZ1", purchaseDate));
+        devices.add(new DeviceCreateVO("BK2600", null));
+
+        List<DeviceBulkResultVO> results = deviceBulkRegistrationService.registerDevices(devices);
+
+        assertEquals(devices.size(), results.size());
+        assertEquals("BK1", results.get(0).serialNumber());
+        assertTrue(results.get(0).registered());
+        assertEquals("Device already registered", results.get(4).error());
+        assertEquals("Duplicate serial number in request", results.get(2500).error());
+        assertEquals("Invalid serial number", results.get(2501).error());
+        assertEquals("Device purchase date is required", results.get(2502).error());
+        assertEquals(2499, results.stream().filter(DeviceBulkResultVO::registered).count());
+
+        assertEquals(2500, deviceRepository.count());
+        assertEquals(purchaseDate.plusMonths(24), deviceRepository.findBySerialNumber("BK2000").orElseThrow().getWarrantyExpirationDate());
+        assertEquals(DeviceRegistrationIndex.Status.REGISTERED, deviceRegistrationIndex.status("BK2500"));
+    }
+
+    @Test
+    void bulkRegistrationShouldFallBackToSingleInsertsWhenASerialWasTakenConcurrently() {
+        // Registered behind the index's back, so only the insert can notice the conflict.
+        jdbcTemplate.update("insert into devices (serial_number, purchase_date, passport_id) values (?, ?, ?)",
+                "BK20", LocalDate.now(), passport.getId());
+
+        List<DeviceBulkResultVO> results = deviceBulkRegistrationService.registerDevices(List.of(
+                new DeviceCreateVO("BK10", LocalDate.now()),
+                new DeviceCreateVO("BK20", LocalDate.now()),
+                new DeviceCreateVO("BK30", LocalDate.now())
+        ));
+
+        assertTrue(results.get(0).registered());
+        assertEquals("Device already registered", results.get(1).error());
+        assertTrue(results.get(2).registered());
+        assertEquals(4, deviceRepository.count());
+    }
+}
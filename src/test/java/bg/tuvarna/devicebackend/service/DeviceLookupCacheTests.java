@@ -0,0 +1,133 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.services.DeviceLookupCache;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class DeviceLookupCacheTests {
+
+    @MockBean
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private DeviceLookupCache deviceLookupCache;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setUp() {
+        eventPublisher.publishEvent(new PassportsChangedEvent());
+    }
+
+    private static Device device(String serialNumber) {
+        Device device = new Device();
+        device.setSerialNumber(serialNumber);
+        device.setPassport(Passport.builder().id(1L).name("Lookup").serialPrefix("SN").build());
+        return device;
+    }
+
+    private double count(String name, String... tags) {
+        return meterRegistry.counter(name, tags).count();
+    }
+
+    @Test
+    void repeatedMissShouldBeServedFromNegativeCache() {
+        when(deviceRepository.findBySerialNumber("SN404")).thenReturn(Optional.empty());
+        double hits = count("devices.lookup.negative.cache", "result", "hit");
+
+        assertNull(deviceLookupCache.find("SN404"));
+        assertNull(deviceLookupCache.find("SN404"));
+        assertNull(deviceLookupCache.find("SN404"));
+
+        verify(deviceRepository, times(1)).findBySerialNumber("SN404");
+        assertEquals(hits + 2, count("devices.lookup.negative.cache", "result", "hit"));
+    }
+
+    @Test
+    void registrationShouldInvalidateNegativeEntry() {
+        Device device = device("SN500");
+        when(deviceRepository.findBySerialNumber("SN500")).thenReturn(Optional.empty()).thenReturn(Optional.of(device));
+
+        assertNull(deviceLookupCache.find("SN500"));
+        eventPublisher.publishEvent(new DeviceRegisteredEvent("SN500", null, false, null));
+
+        assertEquals(new DeviceVO(device), deviceLookupCache.find("SN500"));
+    }
+
+    @Test
+    void passportChangeShouldClearNegativeCache() {
+        when(deviceRepository.findBySerialNumber("SN600")).thenReturn(Optional.empty());
+
+        deviceLookupCache.find("SN600");
+        eventPublisher.publishEvent(new PassportsChangedEvent());
+        deviceLookupCache.find("SN600");
+
+        verify(deviceRepository, times(2)).findBySerialNumber("SN600");
+    }
+
+    @Test
+    void concurrentLookupsShouldShareOneQuery() throws Exception {
+        Device device = device("SN700");
+        CountDownLatch release = new CountDownLatch(1);
+        when(deviceRepository.findBySerialNumber("SN700")).thenAnswer(inv -> {
+            release.await(5, TimeUnit.SECONDS);
+            return Optional.of(device);
+        });
+
+        int threads = 8;
+        double coalesced = count("devices.lookup.coalesced");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<DeviceVO>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(() -> deviceLookupCache.find("SN700")));
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (count("devices.lookup.coalesced") < coalesced + threads - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+
+            // One immutable copy is shared instead of the entity the loading thread's persistence context manages.
+            for (Future<DeviceVO> result : results) {
+                assertEquals(new DeviceVO(device), result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        verify(deviceRepository, times(1)).findBySerialNumber("SN700");
+        assertEquals(coalesced + threads - 1, count("devices.lookup.coalesced"));
+    }
+}
@@ -0,0 +1,138 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.UserRole;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.services.DeviceRegistrationIndex;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class DeviceRegistrationConcurrencyTests {
+    private static final int THREADS = 8;
+    private static final int SERIALS = 50;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private DeviceRegistrationIndex deviceRegistrationIndex;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private final List<User> users = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("CR")
+                .warrantyMonths(12).fromSerialNumber(1).toSerialNumber(1000).build());
+        for (int i = 0; i < THREADS; i++) {
+            users.add(userRepository.save(User.builder().fullName("User " + i).email("cr" + i + "@example.com")
+                    .phone("0888" + i).role(UserRole.USER).build()));
+        }
+        passportSerialIndex.rebuild();
+        deviceRegistrationIndex.rebuild();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAll();
+        userRepository.deleteAll();
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+        deviceRegistrationIndex.rebuild();
+    }
+
+    @Test
+    void concurrentRegistrationsShouldHaveExactlyOneWinnerPerSerial() throws Exception {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        Map<String, Long> winners = new ConcurrentHashMap<>();
+        AtomicInteger duplicates = new AtomicInteger();
+        List<Throwable> unexpected = new CopyOnWriteArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int s = 1; s <= SERIALS; s++) {
+                String serialNumber = "CR" + s;
+                CyclicBarrier start = new CyclicBarrier(THREADS);
+                List<Future<?>> attempts = new ArrayList<>();
+                for (User user : users) {
+                    attempts.add(executor.submit(() -> {
+                        try {
+                            start.await();
+                            deviceService.registerNewDevice(new DeviceCreateVO(serialNumber, LocalDate.now()), user);
+                            assertNull(winners.put(serialNumber, user.getId()));
+                        } catch (CustomException e) {
+                            if (e.getErrorCode() == ErrorCode.AlreadyExists) duplicates.incrementAndGet();
+                            else unexpected.add(e);
+                        } catch (Throwable e) {
+                            unexpected.add(e);
+                        }
+                    }));
+                }
+                for (Future<?> attempt : attempts) attempt.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long statements = statistics.getPrepareStatementCount();
+        long entityLoads = statistics.getEntityLoadCount();
+
+        assertTrue(unexpected.isEmpty(), () -> "Unexpected failures: " + unexpected);
+        assertEquals(SERIALS, winners.size());
+        assertEquals(SERIALS * (THREADS - 1), duplicates.get());
+
+        // No lost updates: every stored owner is the caller that was told it won.
+        winners.forEach((serialNumber, userId) ->
+                assertEquals(userId, deviceRepository.findBySerialNumber(serialNumber).orElseThrow().getUser().getId()));
+        assertEquals(SERIALS, deviceRepository.count());
+
+        // Each attempt costs at most its INSERT: there is no existence query and no merge select
+        // (the previous path needed both), and losers the bitmap already knows about cost nothing.
+        long attemptCount = (long) SERIALS * THREADS;
+        assertTrue(statements <= attemptCount, () -> statements + " statements for " + attemptCount + " attempts");
+        assertEquals(0, entityLoads);
+
+    }
+}
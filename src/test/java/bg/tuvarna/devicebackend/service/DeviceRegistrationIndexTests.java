@@ -0,0 +1,184 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.events.DeviceDeletedEvent;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.models.events.PassportsChangedEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.services.DeviceRegistrationIndex;
+import bg.tuvarna.devicebackend.utils.ScalableBloomFilter;
+import bg.tuvarna.devicebackend.utils.SerialBitmap;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.time.LocalDate;
+
+import static bg.tuvarna.devicebackend.services.DeviceRegistrationIndex.Status.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class DeviceRegistrationIndexTests {
+
+    @Autowired
+    private DeviceRegistrationIndex deviceRegistrationIndex;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Passport passport;
+
+    @BeforeEach
+    void setUp() {
+        passport = passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("RB")
+                .warrantyMonths(24).fromSerialNumber(1000).toSerialNumber(200_000).build());
+
+        Device device = new Device();
+        device.setSerialNumber("RB1500");
+        device.setPurchaseDate(LocalDate.now());
+        device.setPassport(passport);
+        deviceRepository.save(device);
+
+        deviceRegistrationIndex.rebuild();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAll();
+        passportRepository.deleteAll();
+        deviceRegistrationIndex.rebuild();
+    }
+
+    @Test
+    void rebuildShouldIndexExistingDevices() {
+        assertEquals(REGISTERED, deviceRegistrationIndex.status("RB1500"));
+        assertEquals(NOT_REGISTERED, deviceRegistrationIndex.status("RB1501"));
+        // Serials no bitmap can place are answered by the Bloom filter, which has seen none of them.
+        assertEquals(NOT_REGISTERED, deviceRegistrationIndex.status("RB999"));
+        assertEquals(NOT_REGISTERED, deviceRegistrationIndex.status("XX1500"));
+        assertEquals(1, deviceRegistrationIndex.registeredDevices());
+    }
+
+    @Test
+    void eventsShouldUpdateBitmapWithoutRebuild() {
+        eventPublisher.publishEvent(new DeviceRegisteredEvent("RB1501", null, false, null));
+        assertEquals(REGISTERED, deviceRegistrationIndex.status("RB1501"));
+
+        eventPublisher.publishEvent(new DeviceDeletedEvent(null, "RB1500", null, false, null));
+        assertEquals(NOT_REGISTERED, deviceRegistrationIndex.status("RB1500"));
+    }
+
+    @Test
+    void passportChangeShouldRebuildInTheBackground() throws InterruptedException {
+        Passport added = passportRepository.save(Passport.builder().name("Device").model("X2").serialPrefix("RC")
+                .warrantyMonths(24).fromSerialNumber(1).toSerialNumber(1000).build());
+        Device device = new Device();
+        device.setSerialNumber("RC10");
+        device.setPurchaseDate(LocalDate.now());
+        device.setPassport(added);
+        deviceRepository.save(device);
+
+        eventPublisher.publishEvent(new PassportsChangedEvent());
+        for (int i = 0; i < 100 && !deviceRegistrationIndex.isCurrent(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(deviceRegistrationIndex.isCurrent());
+        assertEquals(REGISTERED, deviceRegistrationIndex.status("RC10"));
+        assertEquals(NOT_REGISTERED, deviceRegistrationIndex.status("RC11"));
+        assertEquals(REGISTERED, deviceRegistrationIndex.status("RB1500"));
+    }
+
+    @Test
+    void indexSharedWithOtherInstancesShouldNeverAnswer() {
+        DeviceRegistrationIndex shared = new DeviceRegistrationIndex(passportRepository, jdbcTemplate, transactionManager,
+                new SimpleMeterRegistry(), 1_000, 0.01, false);
+        shared.rebuild();
+
+        assertFalse(shared.isCurrent());
+        assertEquals(UNKNOWN, shared.status("RB1500"));
+        assertEquals(UNKNOWN, shared.status("RB1501"));
+        // Not even a serial the Bloom filter has definitely not seen skips the database.
+        assertEquals(UNKNOWN, shared.status("XX1500"));
+    }
+
+    @Test
+    void unplacedSerialsShouldFallBackToDatabaseOnlyWhenFilterMatches() {
+        // Left outside its passport's range, e.g. after the range was narrowed.
+        Device device = new Device();
+        device.setSerialNumber("RB50");
+        device.setPurchaseDate(LocalDate.now());
+        device.setPassport(passport);
+        deviceRepository.save(device);
+        deviceRegistrationIndex.rebuild();
+
+        assertEquals(UNKNOWN, deviceRegistrationIndex.status("RB50"));
+        assertEquals(NOT_REGISTERED, deviceRegistrationIndex.status("RB60"));
+        assertEquals(1, deviceRegistrationIndex.filterKeys());
+
+        eventPublisher.publishEvent(new DeviceRegisteredEvent("ZZ7", null, false, null));
+        assertEquals(UNKNOWN, deviceRegistrationIndex.status("ZZ7"));
+    }
+
+    @Test
+    void filterShouldStayWithinFalsePositiveRateAsItGrows() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1_000, 0.01);
+        for (int i = 0; i < 100_000; i++) {
+            filter.add("IN" + i);
+        }
+
+        for (int i = 0; i < 100_000; i++) {
+            assertTrue(filter.mightContain("IN" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain("OUT" + i)) falsePositives++;
+        }
+        assertTrue(falsePositives < 1_000, falsePositives + " false positives");
+        assertEquals(100_000, filter.size());
+    }
+
+    @Test
+    void bitmapShouldSwitchContainersAsDensityChanges() {
+        SerialBitmap bitmap = new SerialBitmap();
+        for (int i = 0; i < 70_000; i++) {
+            assertTrue(bitmap.add(i * 2));
+        }
+        assertFalse(bitmap.add(0));
+        assertEquals(70_000, bitmap.cardinality());
+        assertTrue(bitmap.contains(139_998));
+        assertFalse(bitmap.contains(139_997));
+        // Three chunks of 32768, 32768 and 4464 values, each above the array limit: three 8 KiB bitmaps.
+        assertTrue(bitmap.sizeInBytes() < 3 * 8_500);
+
+        for (int i = 0; i < 69_000; i++) {
+            assertTrue(bitmap.remove(i * 2));
+        }
+        assertEquals(1_000, bitmap.cardinality());
+        assertTrue(bitmap.contains(138_000));
+        assertFalse(bitmap.contains(137_998));
+        // Only the last chunk is left, back in a sorted array well below a bitmap's 8 KiB.
+        assertTrue(bitmap.sizeInBytes() < 5_000);
+    }
+}
@@ -1,26 +1,37 @@
 package bg.tuvarna.devicebackend.service;
 
 import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
 import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
 import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
 import bg.tuvarna.devicebackend.models.entities.Device;
 import bg.tuvarna.devicebackend.models.entities.Passport;
 import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
 import bg.tuvarna.devicebackend.repositories.DeviceRepository;
 import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.ListingSearchService;
 import bg.tuvarna.devicebackend.services.PassportService;
+import bg.tuvarna.devicebackend.utils.Cursors;
+import bg.tuvarna.devicebackend.utils.CustomPage;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Pageable;
 import org.springframework.test.context.ActiveProfiles;
 
 import java.time.LocalDate;
+import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @SpringBootTest
@@ -33,6 +44,9 @@ class DeviceServiceTests {
     @MockBean
     private PassportService passportService;
 
+    @MockBean
+    private ListingSearchService listingSearchService;
+
     @Autowired
     private DeviceService deviceService;
 
@@ -49,14 +63,52 @@ class DeviceServiceTests {
     @Test
     void registerDeviceShouldSaveSuccessfully() {
         when(passportService.findPassportBySerialId("SN123")).thenReturn(passport);
-        when(deviceRepository.save(any(Device.class))).thenAnswer(inv -> inv.getArgument(0));
+        when(deviceRepository.insert(any(Device.class))).thenAnswer(inv -> inv.getArgument(0));
 
         Device result = deviceService.registerDevice("SN123", LocalDate.now(), user);
 
         assertNotNull(result);
         assertEquals("SN123", result.getSerialNumber());
         assertNotNull(result.getWarrantyExpirationDate());
-        verify(deviceRepository, times(1)).save(any(Device.class));
+        verify(deviceRepository, times(1)).insert(any(Device.class));
+        verify(deviceRepository, never()).save(any(Device.class));
+    }
+
+    @Test
+    void registerDeviceShouldMapDuplicateKeyToAlreadyExists() {
+        when(passportService.findPassportBySerialId("SN123")).thenReturn(passport);
+        when(deviceRepository.insert(any(Device.class))).thenThrow(new DataIntegrityViolationException(
+                "duplicate key value violates unique constraint \"devices_serial_number_key\""));
+
+        CustomException ex = assertThrows(
+                CustomException.class,
+                () -> deviceService.registerDevice("SN123", LocalDate.now(), user)
+        );
+
+        assertEquals(ErrorCode.AlreadyExists, ex.getErrorCode());
+    }
+
+    @Test
+    void registerDeviceShouldNotReportOtherConstraintViolationsAsDuplicates() {
+        when(passportService.findPassportBySerialId("SN123")).thenReturn(passport);
+        when(deviceRepository.insert(any(Device.class))).thenThrow(new DataIntegrityViolationException(
+                "null value in column \"purchase_date\" violates not-null constraint"));
+
+        assertThrows(
+                DataIntegrityViolationException.class,
+                () -> deviceService.registerDevice("SN123", LocalDate.now(), user)
+        );
+    }
+
+    @Test
+    void registerDeviceShouldLetDatabaseFailuresThrough() {
+        when(passportService.findPassportBySerialId("SN123")).thenReturn(passport);
+        when(deviceRepository.insert(any(Device.class))).thenThrow(new DataAccessResourceFailureException("Connection refused"));
+
+        assertThrows(
+                DataAccessResourceFailureException.class,
+                () -> deviceService.registerDevice("SN123", LocalDate.now(), user)
+        );
     }
 
     @Test
@@ -75,7 +127,7 @@ class DeviceServiceTests {
     void findDeviceShouldReturnDeviceWhenExists() {
         Device d = new Device();
         d.setSerialNumber("SN123");
-        when(deviceRepository.findById("SN123")).thenReturn(Optional.of(d));
+        when(deviceRepository.findBySerialNumber("SN123")).thenReturn(Optional.of(d));
 
         Device found = deviceService.findDevice("SN123");
 
@@ -85,19 +137,30 @@ class DeviceServiceTests {
 
     @Test
     void findDeviceShouldReturnNullWhenNotExists() {
-        when(deviceRepository.findById("SN404")).thenReturn(Optional.empty());
+        when(deviceRepository.findBySerialNumber("SN404")).thenReturn(Optional.empty());
         Device found = deviceService.findDevice("SN404");
         assertNull(found);
     }
 
     @Test
     void alreadyExistShouldThrowIfExists() {
-        Device existing = new Device();
-        when(deviceRepository.findById("SN123")).thenReturn(Optional.of(existing));
+        when(deviceRepository.existsBySerialNumber("SN123")).thenReturn(true);
 
         assertThrows(CustomException.class, () -> deviceService.alreadyExist("SN123"));
     }
 
+    @Test
+    void registerNewDeviceShouldRejectUnknownPrefixWithoutDatabase() {
+        doThrow(new CustomException("Invalid serial number", ErrorCode.Failed))
+                .when(passportService).validateSerialPrefix("ZZ1");
+
+        assertThrows(
+                CustomException.class,
+                () -> deviceService.registerNewDevice(new DeviceCreateVO("ZZ1", LocalDate.now()), user)
+        );
+        verifyNoInteractions(deviceRepository);
+    }
+
     @Test
     void updateDeviceShouldSaveUpdatedInfo() {
         Device d = new Device();
@@ -109,7 +172,7 @@ class DeviceServiceTests {
 
         DeviceUpdateVO updateVO = new DeviceUpdateVO(LocalDate.now(), "updated comment");
 
-        when(deviceRepository.findById("SN123")).thenReturn(Optional.of(d));
+        when(deviceRepository.findBySerialNumber("SN123")).thenReturn(Optional.of(d));
         when(deviceRepository.save(any(Device.class))).thenAnswer(inv -> inv.getArgument(0));
 
         Device updated = deviceService.updateDevice("SN123", updateVO);
@@ -124,6 +187,7 @@ class DeviceServiceTests {
         doNothing().when(deviceRepository).deleteBySerialNumber("SN123");
         assertDoesNotThrow(() -> deviceService.deleteDevice("SN123"));
         verify(deviceRepository, times(1)).deleteBySerialNumber("SN123");
+        verify(deviceRepository, never()).findBySerialNumber("SN123");
     }
 
     @Test
@@ -131,4 +195,71 @@ class DeviceServiceTests {
         doThrow(new RuntimeException("fail")).when(deviceRepository).deleteBySerialNumber("SN123");
         assertThrows(CustomException.class, () -> deviceService.deleteDevice("SN123"));
     }
+
+    @Test
+    void updateDeviceWithStaleVersionShouldThrowVersionMismatch() {
+        Device d = new Device();
+        d.setSerialNumber("SN123");
+        d.setPassport(passport);
+        d.setVersion(5L);
+        when(deviceRepository.findBySerialNumber("SN123")).thenReturn(Optional.of(d));
+
+        CustomException ex = assertThrows(
+                CustomException.class,
+                () -> deviceService.updateDevice("SN123", new DeviceUpdateVO(LocalDate.now(), "stale"), 4L)
+        );
+
+        assertEquals(ErrorCode.VersionMismatch, ex.getErrorCode());
+        verify(deviceRepository, never()).save(any(Device.class));
+    }
+
+    @Test
+    void getDevicesByCursorShouldSeekFromTheCursorAndSkipCounting() {
+        DeviceListingVO first = listing(7L);
+        DeviceListingVO second = listing(9L);
+        when(deviceRepository.getAllDevicesAfter(eq(0L), any(Pageable.class))).thenReturn(List.of(first, second));
+        when(deviceRepository.getAllDevicesAfter(eq(7L), any(Pageable.class))).thenReturn(List.of(second));
+
+        CustomPage<DeviceListingVO> page = deviceService.getDevices(null, "", 1, CountMode.NONE);
+        assertEquals(List.of(first), page.getItems());
+        assertEquals(-1, page.getTotalItems());
+        assertNotNull(page.getNextCursor());
+
+        CustomPage<DeviceListingVO> last = deviceService.getDevices(null, page.getNextCursor(), 1, CountMode.NONE);
+        assertEquals(List.of(second), last.getItems());
+        assertNull(last.getNextCursor());
+
+        CustomException ex = assertThrows(CustomException.class, () -> deviceService.getDevices(null, "%%", 1, CountMode.NONE));
+        assertEquals(ErrorCode.Validation, ex.getErrorCode());
+    }
+
+    @Test
+    void rankedSearchShouldKeepTheRelevanceOrderAndSeekPastItsCursor() {
+        ListingSearchService.Hit best = new ListingSearchService.Hit(9L, 1.5f);
+        ListingSearchService.Hit next = new ListingSearchService.Hit(7L, 0.8f);
+        ListingSearchService.Hit last = new ListingSearchService.Hit(8L, 0.8f);
+        when(listingSearchService.isAvailable()).thenReturn(true);
+        when(listingSearchService.searchDevices("sn", null, 0, 3)).thenReturn(List.of(best, next, last));
+        when(listingSearchService.searchDevices("sn", next, 0, 3)).thenReturn(List.of(last));
+        when(deviceRepository.findListingsByIds(List.of(9L, 7L))).thenReturn(List.of(listing(7L), listing(9L)));
+        when(deviceRepository.findListingsByIds(List.of(8L))).thenReturn(List.of(listing(8L)));
+
+        CustomPage<DeviceListingVO> page = deviceService.getDevices("sn", "", 2, CountMode.NONE);
+        assertEquals(List.of(9L, 7L), page.getItems().stream().map(DeviceListingVO::id).toList());
+        assertEquals(next, ListingSearchService.Hit.fromCursor(page.getNextCursor()));
+
+        CustomPage<DeviceListingVO> end = deviceService.getDevices("sn", page.getNextCursor(), 2, CountMode.NONE);
+        assertEquals(List.of(8L), end.getItems().stream().map(DeviceListingVO::id).toList());
+        assertNull(end.getNextCursor());
+
+        CustomException ex = assertThrows(CustomException.class,
+                () -> deviceService.getDevices("sn", Cursors.encode(9L), 1, CountMode.NONE));
+        assertEquals(ErrorCode.Validation, ex.getErrorCode());
+        verify(deviceRepository, never()).findAllAfter(any(), anyLong(), any());
+    }
+
+    private static DeviceListingVO listing(long id) {
+        return new DeviceListingVO(id, 1L, "SN" + id, LocalDate.now(), null, null,
+                null, null, null, null, null, null, null);
+    }
 }
@@ -0,0 +1,101 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.UserCreateVO;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.ListingCountService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import bg.tuvarna.devicebackend.services.UserService;
+import bg.tuvarna.devicebackend.utils.CustomPage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class ListingCountServiceTests {
+
+    @Autowired
+    private ListingCountService listingCountService;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @BeforeEach
+    void setUp() {
+        passportRepository.save(Passport.builder().name("Counter").model("C1").serialPrefix("LC")
+                .warrantyMonths(12).fromSerialNumber(1).toSerialNumber(100).build());
+        passportSerialIndex.rebuild();
+        listingCountService.reconcile();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAllInBatch();
+        userRepository.deleteAll(userRepository.findAll().stream().filter(user -> user.getEmail().endsWith("@count.test")).toList());
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+        listingCountService.reconcile();
+    }
+
+    @Test
+    void unfilteredTotalsShouldFollowWritesWithoutCounting() {
+        long devices = listingCountService.countDevices(null, CountMode.EXACT).total();
+        long users = listingCountService.countUsers(null, CountMode.EXACT).total();
+
+        deviceService.addAnonymousDevice(new DeviceCreateVO("LC1", LocalDate.now()));
+        deviceService.addAnonymousDevice(new DeviceCreateVO("LC2", LocalDate.now()));
+        userService.register(new UserCreateVO("Count User", "Password1!", "user@count.test", "0888300400",
+                null, LocalDate.now(), "LC3"));
+        deviceService.deleteDevice("LC1");
+
+        assertEquals(new ListingCountService.Count(devices + 2, CountMode.EXACT), listingCountService.countDevices(null, CountMode.APPROX));
+        assertEquals(users + 1, listingCountService.countUsers(null, CountMode.EXACT).total());
+        assertEquals(ListingCountService.Count.NONE, listingCountService.countDevices(null, CountMode.NONE));
+    }
+
+    @Test
+    void filteredPagesShouldBeCountedExactlyWithoutPlannerEstimates() {
+        deviceService.addAnonymousDevice(new DeviceCreateVO("LC11", LocalDate.now()));
+        deviceService.addAnonymousDevice(new DeviceCreateVO("LC12", LocalDate.now()));
+        deviceService.addAnonymousDevice(new DeviceCreateVO("LC20", LocalDate.now()));
+
+        // H2 has no planner estimate, so approx falls back to an exact count.
+        CustomPage<?> page = deviceService.getDevices("lc1", 1, 1, CountMode.APPROX);
+        assertEquals(CountMode.EXACT, page.getCountMode());
+        assertEquals(2, page.getTotalItems());
+        assertEquals(2, page.getTotalPages());
+        assertNotNull(page.getNextCursor());
+
+        CustomPage<?> uncounted = deviceService.getDevices("lc1", 2, 1, CountMode.NONE);
+        assertEquals(-1, uncounted.getTotalItems());
+        assertEquals(1, uncounted.getItems().size());
+    }
+}
@@ -0,0 +1,127 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
+import bg.tuvarna.devicebackend.models.dtos.UserListing;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Renovation;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.models.enums.UserRole;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.RenovationRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.UserService;
+import bg.tuvarna.devicebackend.utils.CustomPage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@ActiveProfiles("test")
+class ListingStatementCountTests {
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private RenovationRepository renovationRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < 30; i++) {
+            User user = userRepository.save(User.builder().fullName("Listed User " + i)
+                    .email("user" + i + "@listing.test").phone("08884000" + (10 + i)).role(UserRole.USER).build());
+            for (int j = 0; j < 2; j++) {
+                Device device = new Device();
+                device.setSerialNumber("LS" + i + "-" + j);
+                device.setPurchaseDate(LocalDate.now());
+                device.setUser(user);
+                deviceRepository.save(device);
+
+                Renovation renovation = new Renovation();
+                renovation.setDescription("Repair");
+                renovation.setRenovationDate(LocalDate.now());
+                renovation.setDevice(device);
+                renovationRepository.save(renovation);
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        renovationRepository.deleteAllInBatch();
+        deviceRepository.deleteAllInBatch();
+        userRepository.deleteAllInBatch(userRepository.findAll().stream().filter(user -> user.getEmail().endsWith("@listing.test")).toList());
+    }
+
+    private long statements(Supplier<CustomPage<?>> listing) {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        assertFalse(listing.get().getItems().isEmpty());
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    void devicePagesShouldTakeTheSameStatementsWhateverTheirSize() {
+        long small = statements(() -> deviceService.getDevices(null, 1, 5, CountMode.NONE));
+        long large = statements(() -> deviceService.getDevices(null, 1, 25, CountMode.NONE));
+
+        assertEquals(2, small);
+        assertEquals(small, large);
+        assertEquals(small, statements(() -> deviceService.getDevices("LS", "", 25, CountMode.NONE)));
+    }
+
+    @Test
+    void userPagesShouldTakeTheSameStatementsWhateverTheirSize() {
+        long small = statements(() -> userService.getUsers(null, 1, 5, CountMode.NONE));
+        long large = statements(() -> userService.getUsers(null, 1, 25, CountMode.NONE));
+
+        assertEquals(3, small);
+        assertEquals(small, large);
+    }
+
+    @Test
+    void listingsShouldKeepTheirJsonShape() throws Exception {
+        CustomPage<DeviceListingVO> devices = deviceService.getDevices("LS0-0", 1, 5, CountMode.NONE);
+        DeviceListingVO device = devices.getItems().get(0);
+        assertEquals(1, device.renovations().size());
+
+        String json = objectMapper.writeValueAsString(device);
+        assertTrue(json.startsWith("{\"serialNumber\":"));
+        assertFalse(json.contains("userId"));
+        assertFalse(json.contains("deviceId"));
+        assertTrue(json.contains("\"renovations\":[{\"id\":"));
+
+        UserListing user = userService.getUsers("LS0-", 1, 5, CountMode.NONE).getItems().get(0);
+        assertEquals(2, user.devices().size());
+        assertTrue(objectMapper.writeValueAsString(user).startsWith("{\"id\":" + user.id() + ","));
+    }
+}
@@ -0,0 +1,89 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.PassportUpdateVO;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import bg.tuvarna.devicebackend.services.PassportService;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class PassportCacheTests {
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private PassportService passportService;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Passport passport;
+    private Statistics statistics;
+
+    @BeforeEach
+    void setUp() {
+        passport = passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("PC")
+                .warrantyMonths(12).fromSerialNumber(1).toSerialNumber(100).build());
+        passportSerialIndex.rebuild();
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAll();
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+    }
+
+    private long statementsToRegister(String serialNumber) {
+        statistics.clear();
+        deviceService.addAnonymousDevice(new DeviceCreateVO(serialNumber, LocalDate.now()));
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Test
+    void registrationShouldNotReadPassport() {
+        entityManagerFactory.getCache().evictAll();
+
+        // the persisted device only needs the passport's id for its foreign key, cached or not
+        assertEquals(1, statementsToRegister("PC1"));
+        assertEquals(1, statementsToRegister("PC2"));
+        assertEquals(0, statistics.getEntityLoadCount());
+    }
+
+    @Test
+    void passportUpdateShouldRefreshCachedEntity() {
+        passportRepository.findById(passport.getId());
+
+        passportService.update(passport.getId(), new PassportUpdateVO(null, null, null, 36, null, null));
+
+        assertEquals(36, passportRepository.findById(passport.getId()).orElseThrow().getWarrantyMonths());
+    }
+}
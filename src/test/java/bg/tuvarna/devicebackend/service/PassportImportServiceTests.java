@@ -0,0 +1,143 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.models.dtos.PassportImportResultVO;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.enums.PassportImportFormat;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.services.PassportImportService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class PassportImportServiceTests {
+
+    @Autowired
+    private PassportImportService passportImportService;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @AfterEach
+    void tearDown() {
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+    }
+
+    private List<PassportImportResultVO> importText(String text, PassportImportFormat format) {
+        List<PassportImportResultVO> results = new ArrayList<>();
+        passportImportService.importPassports(new BufferedReader(new StringReader(text)), format, results::add);
+        return results;
+    }
+
+    @Test
+    void csvImportShouldReportEveryRowInInputOrder() {
+        passportRepository.save(Passport.builder().name("Old").model("M0").serialPrefix("ABC")
+                .warrantyMonths(12).fromSerialNumber(500).toSerialNumber(599).build());
+
+        String csv = """
+                serialPrefix,name,model,warrantyMonths,fromSerialNumber,toSerialNumber
+                ABC,"Device, A",X1,24,100,199
+                ABC,Device B,X1,24,150,160
+                ABC,Device C,X1,24,550,650
+                ABC,Device D,X1,24,not-a-number,10
+
+                XYZ,Device E,X2,24,150,160
+                ABC,,X1,24,200,299
+                """;
+
+        List<PassportImportResultVO> results = importText(csv, PassportImportFormat.CSV);
+
+        assertEquals(List.of(2L, 3L, 4L, 5L, 7L, 8L), results.stream().map(PassportImportResultVO::line).toList());
+        assertTrue(results.get(0).imported());
+        assertEquals("Serial range overlaps line 2", results.get(1).error());
+        assertEquals("Serial range overlaps an existing passport", results.get(2).error());
+        assertEquals("Invalid number in column fromSerialNumber", results.get(3).error());
+        assertTrue(results.get(4).imported());
+        assertFalse(results.get(5).imported());
+
+        Passport imported = passportRepository.findById(results.get(0).id()).orElseThrow();
+        assertEquals("Device, A", imported.getName());
+        assertEquals(3, passportRepository.count());
+        assertEquals(imported.getId(), passportSerialIndex.find("ABC150").getId());
+    }
+
+    @Test
+    void ndjsonImportShouldRejectMalformedLines() {
+        String ndjson = """
+                {"name":"Device A","model":"X1","serialPrefix":"ND","warrantyMonths":24,"fromSerialNumber":1,"toSerialNumber":10}
+                {"name":"Device B",
+                {"name":"Device C","model":"X1","serialPrefix":"ND","warrantyMonths":24,"fromSerialNumber":20,"toSerialNumber":11}
+                """;
+
+        List<PassportImportResultVO> results = importText(ndjson, PassportImportFormat.NDJSON);
+
+        assertTrue(results.get(0).imported());
+        assertEquals("Malformed JSON", results.get(1).error());
+        assertEquals("From serial number must not be greater than to serial number", results.get(2).error());
+        assertEquals(1, passportRepository.count());
+    }
+
+    @Test
+    void importShouldFindOverlapsAcrossChunks() {
+        StringBuilder csv = new StringBuilder("name,model,serialPrefix,warrantyMonths,fromSerialNumber,toSerialNumber\n");
+        for (int i = 0; i < 1500; i++) {
+            csv.append("Device,X1,CH,24,").append(i * 10).append(',').append(i * 10 + 9).append('\n');
+        }
+        csv.append("Device,X1,CH,24,5,5\n");
+
+        List<PassportImportResultVO> results = importText(csv.toString(), PassportImportFormat.CSV);
+
+        assertEquals(1501, results.size());
+        assertEquals(1500, results.stream().filter(PassportImportResultVO::imported).count());
+        assertEquals("Serial range overlaps an existing passport", results.get(1500).error());
+        assertEquals(1500, passportRepository.count());
+    }
+
+    @Test
+    void importShouldNotReportOtherConstraintViolationsAsOverlaps() {
+        String csv = "name,model,serialPrefix,warrantyMonths,fromSerialNumber,toSerialNumber\n" +
+                "Device,X1,CN,24,100,199\n" +
+                "D".repeat(300) + ",X1,CN,24,200,299\n";
+
+        assertThrows(DataIntegrityViolationException.class, () -> importText(csv, PassportImportFormat.CSV));
+        assertEquals(0, passportRepository.count());
+    }
+
+    @Test
+    void eachCommittedChunkShouldBeVisibleBeforeTheNextOneIsRead() {
+        StringBuilder csv = new StringBuilder("name,model,serialPrefix,warrantyMonths,fromSerialNumber,toSerialNumber\n");
+        for (int i = 0; i < 1500; i++) {
+            csv.append("Device,X1,CV,24,").append(i * 10).append(',').append(i * 10 + 9).append('\n');
+        }
+
+        List<Boolean> visible = new ArrayList<>();
+        passportImportService.importPassports(new BufferedReader(new StringReader(csv.toString())), PassportImportFormat.CSV,
+                result -> visible.add(passportSerialIndex.find("CV" + (result.line() - 2) * 10) != null));
+
+        assertEquals(1500, visible.size());
+        assertFalse(visible.contains(false));
+    }
+
+    @Test
+    void csvImportShouldRequireHeaderColumns() {
+        assertThrows(CustomException.class, () -> importText("name,model\nA,B\n", PassportImportFormat.CSV));
+        assertThrows(CustomException.class, () -> importText("", PassportImportFormat.CSV));
+    }
+}
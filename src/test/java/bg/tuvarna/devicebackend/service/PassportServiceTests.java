@@ -1,10 +1,13 @@
 package bg.tuvarna.devicebackend.service;
 
 import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.controllers.exceptions.ErrorCode;
 import bg.tuvarna.devicebackend.models.dtos.PassportCreateVO;
 import bg.tuvarna.devicebackend.models.dtos.PassportUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.SerialResolutionVO;
 import bg.tuvarna.devicebackend.models.entities.Passport;
 import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
 import bg.tuvarna.devicebackend.services.PassportService;
 import bg.tuvarna.devicebackend.utils.CustomPage;
 import org.junit.jupiter.api.BeforeEach;
@@ -12,6 +15,7 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
@@ -35,6 +39,9 @@ class PassportServiceTests {
     @Autowired
     private PassportService passportService;
 
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
     private Passport passport;
 
     @BeforeEach
@@ -52,7 +59,7 @@ class PassportServiceTests {
 
     @Test
     void createPassportShouldSaveWhenNoConflict() {
-        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 100, 200, 24);
+        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 24, 100, 200);
         when(passportRepository.findByFromSerialNumberBetween(anyString(), anyInt(), anyInt())).thenReturn(Collections.emptyList());
         when(passportRepository.save(any(Passport.class))).thenReturn(passport);
 
@@ -65,7 +72,7 @@ class PassportServiceTests {
 
     @Test
     void createPassportShouldThrowWhenSerialRangeExists() {
-        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 100, 200, 24);
+        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 24, 100, 200);
         when(passportRepository.findByFromSerialNumberBetween(anyString(), anyInt(), anyInt()))
                 .thenReturn(List.of(passport));
 
@@ -75,6 +82,36 @@ class PassportServiceTests {
         verify(passportRepository, never()).save(any());
     }
 
+    @Test
+    void createPassportShouldRejectInvertedRange() {
+        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 24, 200, 100);
+
+        CustomException ex = assertThrows(CustomException.class, () -> passportService.create(createVO));
+
+        assertEquals(ErrorCode.Validation, ex.getErrorCode());
+        verify(passportRepository, never()).save(any());
+    }
+
+    @Test
+    void createPassportShouldMapConstraintViolationToAlreadyExists() {
+        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 24, 100, 200);
+        when(passportRepository.findByFromSerialNumberBetween(anyString(), anyInt(), anyInt())).thenReturn(Collections.emptyList());
+        when(passportRepository.save(any(Passport.class))).thenThrow(new DataIntegrityViolationException("passports_serial_range_excl"));
+
+        CustomException ex = assertThrows(CustomException.class, () -> passportService.create(createVO));
+
+        assertEquals(ErrorCode.AlreadyExists, ex.getErrorCode());
+    }
+
+    @Test
+    void createPassportShouldNotReportOtherConstraintViolationsAsOverlaps() {
+        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 24, 100, 200);
+        when(passportRepository.findByFromSerialNumberBetween(anyString(), anyInt(), anyInt())).thenReturn(Collections.emptyList());
+        when(passportRepository.save(any(Passport.class))).thenThrow(new DataIntegrityViolationException("null value in column \"name\""));
+
+        assertThrows(DataIntegrityViolationException.class, () -> passportService.create(createVO));
+    }
+
     @Test
     void findPassportByIdShouldReturnWhenExists() {
         when(passportRepository.findById(1L)).thenReturn(Optional.of(passport));
@@ -94,12 +131,104 @@ class PassportServiceTests {
                 .toSerialNumber(300)
                 .build();
 
-        when(passportRepository.findByFromSerial(anyString())).thenReturn(List.of(passport, other));
+        when(passportRepository.findAll()).thenReturn(List.of(passport, other));
+        passportSerialIndex.rebuild();
+        clearInvocations(passportRepository);
 
         Passport found = passportService.findPassportBySerialId("ABC150");
 
         assertNotNull(found);
         assertEquals("ABC", found.getSerialPrefix());
+        verifyNoInteractions(passportRepository);
+    }
+
+    @Test
+    void findPassportBySerialIdShouldPreferLongestPrefix() {
+        Passport shorter = Passport.builder()
+                .id(2L)
+                .serialPrefix("AB")
+                .fromSerialNumber(0)
+                .toSerialNumber(1000)
+                .build();
+
+        when(passportRepository.findAll()).thenReturn(List.of(shorter, passport));
+        passportSerialIndex.rebuild();
+
+        assertEquals(1L, passportService.findPassportBySerialId("ABC150").getId());
+        assertEquals(2L, passportService.findPassportBySerialId("AB150").getId());
+    }
+
+    @Test
+    void findPassportBySerialIdShouldAcceptAnyPrefixCharacters() {
+        Passport unusual = Passport.builder()
+                .id(2L)
+                .serialPrefix("ÄK+(")
+                .fromSerialNumber(1)
+                .toSerialNumber(10)
+                .build();
+
+        when(passportRepository.findAll()).thenReturn(List.of(passport, unusual));
+        passportSerialIndex.rebuild();
+
+        assertEquals(2L, passportService.findPassportBySerialId("ÄK+(5").getId());
+    }
+
+    @Test
+    void findPassportBySerialIdShouldThrowWhenOutOfRange() {
+        when(passportRepository.findAll()).thenReturn(List.of(passport));
+        passportSerialIndex.rebuild();
+
+        assertThrows(CustomException.class, () -> passportService.findPassportBySerialId("ABC201"));
+        assertThrows(CustomException.class, () -> passportService.findPassportBySerialId("ABCX150"));
+    }
+
+    @Test
+    void resolveSerialNumbersShouldKeepRequestOrder() {
+        Passport next = Passport.builder()
+                .id(2L)
+                .serialPrefix("ABC")
+                .fromSerialNumber(201)
+                .toSerialNumber(300)
+                .build();
+
+        when(passportRepository.findAll()).thenReturn(List.of(next, passport));
+        passportSerialIndex.rebuild();
+
+        List<SerialResolutionVO> result = passportService.resolveSerialNumbers(
+                List.of("ABC250", "XYZ1", "ABC100", "ABC301", "ABC99", "ABC200")
+        );
+
+        assertEquals(6, result.size());
+        assertEquals(2L, result.get(0).passport().id());
+        assertFalse(result.get(1).found());
+        assertEquals(1L, result.get(2).passport().id());
+        assertFalse(result.get(3).found());
+        assertFalse(result.get(4).found());
+        assertEquals(1L, result.get(5).passport().id());
+        assertEquals("ABC200", result.get(5).serialNumber());
+    }
+
+    @Test
+    void validateSerialPrefixShouldRejectUnknownPrefix() {
+        when(passportRepository.findAll()).thenReturn(List.of(passport));
+        passportSerialIndex.rebuild();
+
+        assertDoesNotThrow(() -> passportService.validateSerialPrefix("ABC999999"));
+        assertThrows(CustomException.class, () -> passportService.validateSerialPrefix("XYZ150"));
+        assertThrows(CustomException.class, () -> passportService.validateSerialPrefix("ABC"));
+        assertThrows(CustomException.class, () -> passportService.validateSerialPrefix("ABC 150"));
+    }
+
+    @Test
+    void createPassportShouldRefreshSerialIndex() {
+        PassportCreateVO createVO = new PassportCreateVO("Device A", "Model X", "ABC", 24, 100, 200);
+        when(passportRepository.findByFromSerialNumberBetween(anyString(), anyInt(), anyInt())).thenReturn(Collections.emptyList());
+        when(passportRepository.save(any(Passport.class))).thenReturn(passport);
+        when(passportRepository.findAll()).thenReturn(List.of(passport));
+
+        passportService.create(createVO);
+
+        assertEquals(passport, passportService.findPassportBySerialId("ABC100"));
     }
 
 
@@ -0,0 +1,140 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.DeviceUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.PassportUtilizationVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import bg.tuvarna.devicebackend.services.PassportUtilizationService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class PassportUtilizationServiceTests {
+
+    @Autowired
+    private PassportUtilizationService passportUtilizationService;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @SpyBean
+    private JdbcTemplate jdbcTemplate;
+
+    private Passport passport;
+
+    @BeforeEach
+    void setUp() {
+        passport = passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("UT")
+                .warrantyMonths(12).fromSerialNumber(1).toSerialNumber(10).build());
+        passportSerialIndex.rebuild();
+        passportUtilizationService.reconcile();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAll();
+        userRepository.deleteAll();
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+        passportUtilizationService.reconcile();
+    }
+
+    private PassportUtilizationVO utilization() {
+        return passportUtilizationService.getUtilization().stream()
+                .filter(u -> u.passportId().equals(passport.getId()))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    @Test
+    void writesShouldUpdateCountersWithoutQuery() {
+        User user = new User();
+        user.setEmail("owner@example.com");
+        user = userRepository.save(user);
+
+        deviceService.registerDevice("UT1", LocalDate.now(), user);
+        deviceService.addAnonymousDevice(new DeviceCreateVO("UT2", LocalDate.now().minusYears(3)));
+        deviceService.addAnonymousDevice(new DeviceCreateVO("UT3", LocalDate.now()));
+
+        PassportUtilizationVO utilization = utilization();
+        assertEquals(10, utilization.capacity());
+        assertEquals(3, utilization.registered());
+        assertEquals(1, utilization.owned());
+        assertEquals(2, utilization.anonymous());
+        assertEquals(1, utilization.warrantyExpired());
+        assertEquals(0.3, utilization.utilization(), 1e-9);
+
+        deviceService.updateDevice("UT2", new DeviceUpdateVO(LocalDate.now(), "Renewed"));
+        deviceService.deleteDevice("UT3");
+
+        utilization = utilization();
+        assertEquals(2, utilization.registered());
+        assertEquals(1, utilization.anonymous());
+        assertEquals(0, utilization.warrantyExpired());
+    }
+
+    @Test
+    void writesCommittedBeforeTheReconcileQueryShouldBeCountedOnce() {
+        // Commits after the reconcile started but before its query ran, so the query sees it.
+        doAnswer(invocation -> {
+            deviceService.addAnonymousDevice(new DeviceCreateVO("UT4", LocalDate.now()));
+            return invocation.callRealMethod();
+        }).doCallRealMethod().when(jdbcTemplate).execute(any(ConnectionCallback.class));
+
+        passportUtilizationService.reconcile();
+
+        assertEquals(1, utilization().registered());
+        assertEquals(1, utilization().anonymous());
+    }
+
+    @Test
+    void reconcileShouldReplaceCountersWithDatabaseCounts() {
+        Device device = new Device();
+        device.setSerialNumber("UT5");
+        device.setPassport(passport);
+        device.setWarrantyExpirationDate(LocalDate.now().minusDays(1));
+        deviceRepository.save(device);
+
+        assertEquals(0, utilization().registered());
+
+        passportUtilizationService.reconcile();
+
+        PassportUtilizationVO utilization = utilization();
+        assertEquals(1, utilization.registered());
+        assertEquals(1, utilization.anonymous());
+        assertEquals(1, utilization.warrantyExpired());
+    }
+}
@@ -56,7 +56,7 @@ class RenovationServiceTests {
 
     @Test
     void saveShouldCreateRenovationSuccessfully() {
-        when(deviceService.isDeviceExists("SN001")).thenReturn(device);
+        when(deviceService.getRegisteredDevice("SN001")).thenReturn(device);
         when(renovationRepository.save(any(Renovation.class))).thenReturn(renovation);
 
         Renovation result = renovationService.save(renovationCreateVO);
@@ -66,13 +66,13 @@ class RenovationServiceTests {
         assertEquals(LocalDate.of(2024, 5, 1), result.getRenovationDate());
         assertEquals("SN001", result.getDevice().getSerialNumber());
 
-        verify(deviceService, times(1)).isDeviceExists("SN001");
+        verify(deviceService, times(1)).getRegisteredDevice("SN001");
         verify(renovationRepository, times(1)).save(any(Renovation.class));
     }
 
     @Test
     void saveShouldThrowWhenDeviceNotFound() {
-        when(deviceService.isDeviceExists("SN001"))
+        when(deviceService.getRegisteredDevice("SN001"))
                 .thenThrow(new RuntimeException("Device not registered"));
 
         RuntimeException ex = assertThrows(
@@ -86,7 +86,7 @@ class RenovationServiceTests {
 
     @Test
     void saveShouldCallRepositoryWithCorrectData() {
-        when(deviceService.isDeviceExists(anyString())).thenReturn(device);
+        when(deviceService.getRegisteredDevice(anyString())).thenReturn(device);
         when(renovationRepository.save(any(Renovation.class))).thenAnswer(invocation -> {
             Renovation saved = invocation.getArgument(0);
             saved.setId(5L);
@@ -0,0 +1,259 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.DeviceListingVO;
+import bg.tuvarna.devicebackend.models.dtos.UserListing;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.enums.CountMode;
+import bg.tuvarna.devicebackend.models.enums.SearchStrategy;
+import bg.tuvarna.devicebackend.models.enums.UserRole;
+import bg.tuvarna.devicebackend.models.events.DeviceRegisteredEvent;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.SearchIndexService;
+import bg.tuvarna.devicebackend.services.UserService;
+import bg.tuvarna.devicebackend.utils.CustomPage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class SearchIndexServiceTests {
+    private static final Path INDEX_PATH = createTempDirectory();
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) {
+        registry.add("listings.search.strategy", () -> "index");
+        registry.add("listings.search.index.path", INDEX_PATH::toString);
+        registry.add("listings.search.index.journal-size", () -> "1MB");
+        // Only the tests refresh, so what is searchable before a refresh doesn't depend on timing.
+        registry.add("listings.search.index.refresh-interval", () -> "PT1H");
+    }
+
+    @Autowired
+    private SearchIndexService searchIndexService;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    private Passport passport;
+    private User owner;
+
+    private static Path createTempDirectory() {
+        try {
+            return Files.createTempDirectory("search-index");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        // Without a snapshot the index is first built in the background.
+        for (int i = 0; i < 100 && !searchIndexService.isActive(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(searchIndexService.isActive());
+
+        passport = passportRepository.save(Passport.builder().name("KettlePro").model("KP-7").serialPrefix("IXS")
+                .warrantyMonths(12).fromSerialNumber(1).toSerialNumber(100).build());
+        owner = userRepository.save(User.builder().fullName("Ownerdoe Indexed").email("owner@idxsearch.test")
+                .phone("0888500001").role(UserRole.USER).build());
+        userRepository.save(User.builder().fullName("Ownerdoe Admin").email("admin@idxsearch.test")
+                .phone("0888500002").role(UserRole.ADMIN).build());
+        saveDevice("IXS-idxsearch-1", owner);
+        saveDevice("IXS-idxsearch-2", owner);
+        saveDevice("IXS-idxsearch-30", null);
+        searchIndexService.refresh();
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAllInBatch(deviceRepository.findAll().stream()
+                .filter(device -> device.getSerialNumber().startsWith("IXS-")).toList());
+        userRepository.deleteAllInBatch(userRepository.findAll().stream()
+                .filter(user -> user.getEmail().endsWith("@idxsearch.test")).toList());
+        passportRepository.deleteAllInBatch(passportRepository.findAll().stream()
+                .filter(passport -> passport.getSerialPrefix().equals("IXS")).toList());
+        searchIndexService.reindex();
+    }
+
+    private Device saveDevice(String serialNumber, User user) {
+        Device device = new Device();
+        device.setSerialNumber(serialNumber);
+        device.setPurchaseDate(LocalDate.now());
+        device.setPassport(passport);
+        device.setUser(user);
+        return deviceRepository.save(device);
+    }
+
+    private List<Long> databaseDeviceIds(String searchBy) {
+        return deviceRepository.findAllAfter(searchBy, 0, PageRequest.of(0, 100)).stream().map(DeviceListingVO::id).toList();
+    }
+
+    private List<Long> databaseUserIds(String searchBy) {
+        return userRepository.searchByAfter(searchBy, 0, PageRequest.of(0, 100)).stream().map(UserListing::id).toList();
+    }
+
+    @Test
+    void searchesShouldMatchWhatTheDatabaseSearchMatches() {
+        for (String searchBy : List.of("idxsearch", "IDXSEARCH-3", "ch-1", "kettlepro", "KP-7", "ownerdoe", "@idxsearch.test")) {
+            List<Long> devices = databaseDeviceIds(searchBy);
+            assertEquals(devices, searchIndexService.searchDevices(searchBy, 0, 0, 100), searchBy);
+            assertEquals(devices.size(), searchIndexService.countDevices(searchBy), searchBy);
+
+            List<Long> users = databaseUserIds(searchBy);
+            assertEquals(users, searchIndexService.searchUsers(searchBy, 0, 0, 100), searchBy);
+            assertEquals(users.size(), searchIndexService.countUsers(searchBy), searchBy);
+        }
+        assertEquals(2, searchIndexService.countDevices("ownerdoe"));
+        assertEquals(List.of(owner.getId()), searchIndexService.searchUsers("ownerdoe", 0, 0, 100));
+        assertTrue(searchIndexService.searchDevices("idxsearch-1x", 0, 0, 100).isEmpty());
+    }
+
+    @Test
+    void listingsShouldPageThroughTheIndexById() {
+        List<Long> expected = databaseDeviceIds("idxsearch");
+
+        List<Long> walked = new ArrayList<>();
+        String cursor = "";
+        do {
+            CustomPage<DeviceListingVO> page = deviceService.getDevices("idxsearch", cursor, 2, CountMode.EXACT);
+            assertEquals(3, page.getTotalItems());
+            page.getItems().forEach(device -> walked.add(device.id()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertEquals(expected, walked);
+
+        CustomPage<DeviceListingVO> second = deviceService.getDevices("idxsearch", 2, 2, CountMode.EXACT);
+        assertEquals(expected.subList(2, 3), second.getItems().stream().map(DeviceListingVO::id).toList());
+
+        CustomPage<UserListing> users = userService.getUsers("kettlepro", 1, 10, CountMode.EXACT);
+        assertEquals(List.of(owner.getId()), users.getItems().stream().map(UserListing::id).toList());
+        assertEquals(1, users.getTotalItems());
+    }
+
+    @Test
+    void changesShouldBeSearchableAfterARefresh() {
+        User renamed = userRepository.findById(owner.getId()).orElseThrow();
+        renamed.setFullName("Renamed Holder");
+        userRepository.save(renamed);
+        Device added = saveDevice("IXS-idxsearch-4", null);
+
+        assertEquals(2, searchIndexService.countDevices("ownerdoe"));
+        assertFalse(searchIndexService.searchDevices("idxsearch-4", 0, 0, 10).contains(added.getId()));
+
+        searchIndexService.refresh();
+        assertEquals(0, searchIndexService.countDevices("ownerdoe"));
+        assertEquals(2, searchIndexService.countDevices("renamed holder"));
+        assertEquals(List.of(added.getId()), searchIndexService.searchDevices("idxsearch-4", 0, 0, 10));
+
+        // Deleted with a JPQL statement, registered with a plain insert: both only known from their events.
+        deviceService.deleteDevice("IXS-idxsearch-4");
+        jdbcTemplate.update("insert into devices (serial_number, purchase_date, passport_id, version) values (?, ?, ?, 0)",
+                "IXS-idxsearch-5", LocalDate.now(), passport.getId());
+        eventPublisher.publishEvent(new DeviceRegisteredEvent("IXS-idxsearch-5", passport.getId(), false, null));
+
+        searchIndexService.refresh();
+        assertEquals(databaseDeviceIds("idxsearch"), searchIndexService.searchDevices("idxsearch", 0, 0, 10));
+        assertEquals(1, searchIndexService.countDevices("idxsearch-5"));
+        assertEquals(0, searchIndexService.countDevices("idxsearch-4"));
+    }
+
+    @Test
+    void aSerialDeletedAndRegisteredAgainInOneRefreshShouldBeIndexedAsTheNewDevice() {
+        deviceService.deleteDevice("IXS-idxsearch-30");
+        for (String serialNumber : List.of("IXS-idxsearch-30", "IXS-IDXSEARCH-30")) {
+            jdbcTemplate.update("insert into devices (serial_number, purchase_date, passport_id, version) values (?, ?, ?, 0)",
+                    serialNumber, LocalDate.now(), passport.getId());
+            eventPublisher.publishEvent(new DeviceRegisteredEvent(serialNumber, passport.getId(), false, null));
+        }
+
+        searchIndexService.refresh();
+        List<Long> registered = databaseDeviceIds("idxsearch-30");
+        assertEquals(2, registered.size());
+        assertEquals(registered, searchIndexService.searchDevices("idxsearch-30", 0, 0, 10));
+    }
+
+    @Test
+    void aRestartShouldLoadTheSnapshotAndReplayTheJournal() throws IOException {
+        searchIndexService.snapshot();
+        Device journaled = saveDevice("IXS-idxsearch-6", owner);
+        searchIndexService.refresh();
+
+        Path copy = Files.createTempDirectory("search-index-restart");
+        try (var files = Files.list(INDEX_PATH)) {
+            for (Path file : files.toList()) {
+                Files.copy(file, copy.resolve(file.getFileName()));
+            }
+        }
+        // Gone from the database, so finding it proves the restarted index came from disk.
+        jdbcTemplate.update("delete from devices where id = ?", journaled.getId());
+
+        SearchIndexService restarted = new SearchIndexService(jdbcTemplate, objectMapper, SearchStrategy.INDEX,
+                copy.toString(), DataSize.ofMegabytes(1));
+        restarted.start();
+        try {
+            assertTrue(restarted.isActive());
+            assertEquals(List.of(journaled.getId()), restarted.searchDevices("idxsearch-6", 0, 0, 10));
+            assertEquals(searchIndexService.searchUsers("ownerdoe", 0, 0, 10), restarted.searchUsers("ownerdoe", 0, 0, 10));
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    void reindexShouldRepairChangesTheIndexMissed() {
+        jdbcTemplate.update("update devices set serial_number = ? where serial_number = ?", "IXS-idxsearch-77", "IXS-idxsearch-30");
+        assertEquals(0, searchIndexService.countDevices("idxsearch-77"));
+
+        searchIndexService.reindex();
+        assertEquals(1, searchIndexService.countDevices("idxsearch-77"));
+        assertEquals(0, searchIndexService.countDevices("idxsearch-30"));
+    }
+}
@@ -0,0 +1,136 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.controllers.exceptions.CustomException;
+import bg.tuvarna.devicebackend.models.dtos.DeviceCreateVO;
+import bg.tuvarna.devicebackend.models.dtos.ExpiringDeviceVO;
+import bg.tuvarna.devicebackend.models.dtos.ExpiringDevicesVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.services.DeviceService;
+import bg.tuvarna.devicebackend.services.PassportSerialIndex;
+import bg.tuvarna.devicebackend.services.WarrantyExpiryService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+
+@SpringBootTest
+@ActiveProfiles("test")
+class WarrantyExpiryServiceTests {
+
+    @Autowired
+    private WarrantyExpiryService warrantyExpiryService;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private PassportSerialIndex passportSerialIndex;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @SpyBean
+    private JdbcTemplate jdbcTemplate;
+
+    private static final LocalDate TODAY = LocalDate.now();
+
+    private Passport passport;
+
+    @BeforeEach
+    void setUp() {
+        passport = passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("EX")
+                .warrantyMonths(0).fromSerialNumber(1).toSerialNumber(100).build());
+        passportSerialIndex.rebuild();
+
+        save("EX1", TODAY.minusDays(3));
+        save("EX2", TODAY.plusDays(5));
+        save("EX3", TODAY);
+        save("EX4", TODAY.plusDays(5));
+        save("EX5", TODAY.plusDays(40));
+        save("EX6", TODAY.plusDays(500));
+        warrantyExpiryService.rebuildBuckets(TODAY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        deviceRepository.deleteAll();
+        passportRepository.deleteAll();
+        passportSerialIndex.rebuild();
+        warrantyExpiryService.rebuildBuckets(TODAY);
+    }
+
+    private void save(String serialNumber, LocalDate warrantyExpirationDate) {
+        Device device = new Device();
+        device.setSerialNumber(serialNumber);
+        device.setPurchaseDate(TODAY.minusYears(1));
+        device.setWarrantyExpirationDate(warrantyExpirationDate);
+        device.setPassport(passport);
+        deviceRepository.save(device);
+    }
+
+    @Test
+    void countsShouldComeFromBucketsAndTheDatabaseBeyondThem() {
+        assertEquals(1, warrantyExpiryService.countExpiringWithin(0));
+        assertEquals(3, warrantyExpiryService.countExpiringWithin(30));
+        assertEquals(4, warrantyExpiryService.countExpiringWithin(40));
+        assertEquals(5, warrantyExpiryService.countExpiringWithin(600));
+    }
+
+    @Test
+    void listingShouldPageInExpiryOrder() {
+        ExpiringDevicesVO first = warrantyExpiryService.getExpiring(60, null, 2);
+        assertEquals(4, first.totalItems());
+        assertEquals(List.of("EX3", "EX2"), first.items().stream().map(ExpiringDeviceVO::serialNumber).toList());
+        assertNotNull(first.nextCursor());
+
+        ExpiringDevicesVO second = warrantyExpiryService.getExpiring(60, first.nextCursor(), 2);
+        assertEquals(List.of("EX4", "EX5"), second.items().stream().map(ExpiringDeviceVO::serialNumber).toList());
+        assertNull(second.nextCursor());
+        assertEquals("X1", second.items().get(0).passportModel());
+    }
+
+    @Test
+    void invalidCursorShouldThrow() {
+        assertThrows(CustomException.class, () -> warrantyExpiryService.getExpiring(30, "not a cursor", 10));
+    }
+
+    @Test
+    void writesShouldUpdateBucketsWithoutRebuild() {
+        deviceService.addAnonymousDevice(new DeviceCreateVO("EX7", TODAY));
+        assertEquals(4, warrantyExpiryService.countExpiringWithin(30));
+
+        deviceService.deleteDevice("EX2");
+        assertEquals(3, warrantyExpiryService.countExpiringWithin(30));
+    }
+
+    @Test
+    void writesCommittedBeforeTheRebuildQueryShouldBeCountedOnce() {
+        // Commits after the rebuild started but before its query ran, so the query sees it.
+        doAnswer(invocation -> {
+            deviceService.addAnonymousDevice(new DeviceCreateVO("EX7", TODAY));
+            return invocation.callRealMethod();
+        }).doCallRealMethod().when(jdbcTemplate).execute(any(ConnectionCallback.class));
+
+        warrantyExpiryService.rebuildBuckets(TODAY);
+
+        assertEquals(4, warrantyExpiryService.countExpiringWithin(30));
+    }
+}
@@ -0,0 +1,129 @@
+package bg.tuvarna.devicebackend.service;
+
+import bg.tuvarna.devicebackend.models.dtos.PassportUpdateVO;
+import bg.tuvarna.devicebackend.models.dtos.WarrantyRecomputationVO;
+import bg.tuvarna.devicebackend.models.entities.Device;
+import bg.tuvarna.devicebackend.models.entities.Passport;
+import bg.tuvarna.devicebackend.models.entities.User;
+import bg.tuvarna.devicebackend.models.entities.WarrantyRecomputation;
+import bg.tuvarna.devicebackend.models.enums.RecomputationStatus;
+import bg.tuvarna.devicebackend.models.enums.UserRole;
+import bg.tuvarna.devicebackend.repositories.DeviceRepository;
+import bg.tuvarna.devicebackend.repositories.PassportRepository;
+import bg.tuvarna.devicebackend.repositories.UserRepository;
+import bg.tuvarna.devicebackend.repositories.WarrantyRecomputationRepository;
+import bg.tuvarna.devicebackend.services.PassportService;
+import bg.tuvarna.devicebackend.services.WarrantyRecomputationService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "warranty.recompute.chunk-size=3",
+        "warranty.recompute.pause=0s"
+})
+@ActiveProfiles("test")
+class WarrantyRecomputationServiceTests {
+
+    @Autowired
+    private WarrantyRecomputationService warrantyRecomputationService;
+
+    @Autowired
+    private WarrantyRecomputationRepository recomputationRepository;
+
+    @Autowired
+    private PassportService passportService;
+
+    @Autowired
+    private PassportRepository passportRepository;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    private static final LocalDate PURCHASE_DATE = LocalDate.of(2024, 1, 31);
+
+    private Passport passport;
+    private User owner;
+    private final List<Device> devices = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        passport = passportRepository.save(Passport.builder().name("Device").model("X1").serialPrefix("WR")
+                .warrantyMonths(24).fromSerialNumber(1).toSerialNumber(100).build());
+        owner = userRepository.save(User.builder().fullName("Owner").email("owner@recompute.test")
+                .phone("0888000111").role(UserRole.USER).build());
+
+        devices.clear();
+        for (int i = 1; i <= 8; i++) {
+            Device device = new Device();
+            device.setSerialNumber("WR" + i);
+            device.setPurchaseDate(PURCHASE_DATE);
+            device.setPassport(passport);
+            device.setUser(i % 2 == 0 ? owner : null);
+            device.setWarrantyExpirationDate(PURCHASE_DATE.plusMonths(i % 2 == 0 ? 36 : 24));
+            devices.add(deviceRepository.save(device));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        recomputationRepository.deleteAll();
+        // Not deleteAll: the owner's eagerly loaded device list would cascade its devices back.
+        deviceRepository.deleteAllInBatch();
+        userRepository.deleteById(owner.getId());
+        passportRepository.deleteAll();
+    }
+
+    @Test
+    void warrantyChangeShouldRecomputeEveryDeviceInChunks() {
+        passportService.update(passport.getId(), new PassportUpdateVO(null, null, null, 6, null, null));
+
+        warrantyRecomputationService.runPending();
+
+        for (Device device : deviceRepository.findAll()) {
+            LocalDate expected = PURCHASE_DATE.plusMonths(device.getUser() != null ? 18 : 6);
+            assertEquals(expected, device.getWarrantyExpirationDate(), device.getSerialNumber());
+        }
+
+        WarrantyRecomputationVO progress = warrantyRecomputationService.getRecomputations().get(0);
+        assertEquals(RecomputationStatus.COMPLETED, progress.status());
+        assertEquals(8, progress.updatedDevices());
+        assertEquals(8, progress.totalDevices());
+        assertEquals(1, progress.progress());
+    }
+
+    @Test
+    void recomputationShouldResumeFromItsCheckpoint() {
+        warrantyRecomputationService.schedule(passport.getId(), 6);
+        WarrantyRecomputation recomputation = recomputationRepository.findByPassportId(passport.getId()).orElseThrow();
+        recomputation.setLastDeviceId(devices.get(3).getId());
+        recomputation.setUpdatedDevices(4);
+        recomputationRepository.save(recomputation);
+
+        warrantyRecomputationService.runPending();
+
+        assertEquals(PURCHASE_DATE.plusMonths(24), deviceRepository.findBySerialNumber("WR1").orElseThrow().getWarrantyExpirationDate());
+        assertEquals(PURCHASE_DATE.plusMonths(6), deviceRepository.findBySerialNumber("WR5").orElseThrow().getWarrantyExpirationDate());
+        assertEquals(PURCHASE_DATE.plusMonths(18), deviceRepository.findBySerialNumber("WR8").orElseThrow().getWarrantyExpirationDate());
+        assertEquals(8, recomputationRepository.findByPassportId(passport.getId()).orElseThrow().getUpdatedDevices());
+    }
+
+    @Test
+    void unchangedWarrantyShouldNotScheduleRecomputation() {
+        passportService.update(passport.getId(), new PassportUpdateVO("Renamed", null, null, 24, null, null));
+
+        assertTrue(recomputationRepository.findByPassportId(passport.getId()).isEmpty());
+    }
+}